@@ -0,0 +1,158 @@
+package org.example;
+
+import akka.actor.testkit.typed.javadsl.BehaviorTestKit;
+import akka.actor.testkit.typed.javadsl.TestInbox;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message handling throughput of each behavior in isolation.
+ * The behaviors run synchronously in a BehaviorTestKit, their peers are test inboxes,
+ * so neither mailboxes nor dispatchers are part of the measurement.
+ * Each operation is the full round of messages one order causes in that behavior.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BehaviorBenchmark {
+
+    private BehaviorTestKit<OrderBook.Command> orderBook;
+    private TestInbox<ProductionLine.Command> orderBookLine;
+
+    private BehaviorTestKit<ProductionLine.Command> productionLine;
+    private TestInbox<WorkerPool.Command> productionLineWorkerPool;
+    private TestInbox<Worker.Command> productionLineWorker;
+    private TestInbox<OrderBook.Command> productionLineOrderBook;
+
+    private BehaviorTestKit<Worker.Command> worker;
+    private TestInbox<ReservationBatcher.Command> workerStorage;
+    private TestInbox<ProductionLine.Command> workerLine;
+    private TestInbox<WorkerPool.Command> workerPool;
+
+    private BehaviorTestKit<LocalStorage.Command> localStorage;
+    private TestInbox<ReservationBatcher.Command> localStorageBatcher;
+    private TestInbox<Worker.Command> localStorageWorker;
+    private int[] batchOrders;
+    private int[] batchAttempts;
+    private int[] batchItems;
+    private akka.actor.typed.ActorRef<Worker.Command>[] batchWorkers;
+
+    private int nextOrder;
+
+    // Items of the catalog, the storage keeps stock for all of them
+    @Param({"4", "4096"})
+    private int catalogItems;
+
+    // Items per reservation batch in the localStorage benchmark
+    private static final int BATCH = 64;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        FactorySettings settings = BenchmarkSettings.settings(BenchmarkSettings.catalog(catalogItems));
+        FactoryClock clock = BenchmarkSettings.STOPPED_CLOCK;
+        SplittableRandom seeds = new SplittableRandom(settings.randomSeed);
+        FactoryMetrics metrics = new FactoryMetrics(settings, clock);
+
+        orderBookLine = TestInbox.create("productionLine");
+        orderBook = BehaviorTestKit.create(OrderBook.create(
+                new akka.actor.typed.ActorRef[]{orderBookLine.getRef()}, null, settings, clock, metrics, null));
+        orderBookLine.receiveMessage(); // RegisterOrderBook
+
+        productionLineWorkerPool = TestInbox.create("workerPool");
+        productionLineWorker = TestInbox.create("worker");
+        productionLineOrderBook = TestInbox.create("orderBook");
+        productionLine = BehaviorTestKit.create(ProductionLine.create(
+                productionLineWorkerPool.getRef(), null, settings, clock, metrics, seeds.split()));
+        productionLine.run(new ProductionLine.RegisterOrderBook(productionLineOrderBook.getRef()));
+        productionLineOrderBook.receiveMessage(); // ProductionLineAvailable
+
+        workerStorage = TestInbox.create("localStorage");
+        workerLine = TestInbox.create("productionLine");
+        workerPool = TestInbox.create("workerPool");
+        worker = BehaviorTestKit.create(Worker.create("Worker-1",
+                StoragePartitions.of(workerStorage.getRef()), workerPool.getRef(), settings, metrics, seeds.split()));
+
+        localStorageBatcher = TestInbox.create("reservationBatcher");
+        localStorageWorker = TestInbox.create("worker");
+        // Orders of two distinct items spread over the catalog
+        SplittableRandom items = seeds.split();
+        batchOrders = new int[BATCH];
+        batchAttempts = new int[BATCH];
+        batchItems = new int[BATCH];
+        batchWorkers = new akka.actor.typed.ActorRef[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            batchOrders[i] = i / 2;
+            batchAttempts[i] = 1;
+            do {
+                batchItems[i] = items.nextInt(catalogItems);
+            } while (i % 2 == 1 && batchItems[i] == batchItems[i - 1]);
+            batchWorkers[i] = localStorageWorker.getRef();
+        }
+        localStorage = BehaviorTestKit.create(LocalStorage.create(
+                StoragePartitions.of(localStorageBatcher.getRef()), 0,
+                settings, clock, metrics, null, seeds.split(), null));
+    }
+
+    //Order accepted, dispatched to the only line and completed
+    @Benchmark
+    public Object orderBook() {
+        int orderNumber = nextOrder++;
+        orderBook.run(new OrderBook.AddOrder(orderNumber));
+        orderBook.run(new OrderBook.ProductionLineAvailable(orderBookLine.getRef(), 1));
+        orderBook.run(new OrderBook.OrderCompleted(orderNumber));
+        return orderBookLine.receiveMessage();
+    }
+
+    //Order passed through all stages of the line
+    @Benchmark
+    public Object productionLine() {
+        int orderNumber = nextOrder++;
+        productionLine.run(new ProductionLine.StartProduction(orderNumber));
+        productionLine.run(new ProductionLine.BodyBuilt(orderNumber));
+        productionLine.run(new ProductionLine.SpecialItemsFetched(orderNumber, productionLineWorker.getRef()));
+        productionLine.run(new ProductionLine.SpecialRequestsInstalled(orderNumber));
+        productionLineWorkerPool.receiveMessage();
+        productionLineOrderBook.receiveMessage(); // ProductionAccepted
+        productionLineOrderBook.receiveMessage();
+        return productionLineOrderBook.receiveMessage();
+    }
+
+    //Special items reserved, granted and committed
+    @Benchmark
+    public Object worker() {
+        int orderNumber = nextOrder++;
+        worker.run(new Worker.FetchSpecialItems(orderNumber, workerLine.getRef()));
+        var reserve = (ReservationBatcher.Reserve) workerStorage.receiveMessage();
+        worker.run(new Worker.ItemsReserved(orderNumber, reserve.attempt, reserve.items));
+        workerStorage.receiveMessage();
+        workerPool.receiveMessage();
+        return workerLine.receiveMessage();
+    }
+
+    //A batch of items reserved and committed, reported per item
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public Object localStorage() {
+        localStorage.run(new LocalStorage.ReserveBatch(batchOrders, batchAttempts, batchItems, batchWorkers,
+                localStorageBatcher.getRef()));
+        localStorage.run(new LocalStorage.CommitBatch(batchOrders, batchAttempts, batchItems));
+        return localStorageBatcher.receiveMessage();
+    }
+}
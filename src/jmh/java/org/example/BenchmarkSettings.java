@@ -0,0 +1,69 @@
+package org.example;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Settings shared by the actor benchmarks: no journal, no build or restock delays
+ * and more stock than any benchmark run can use up, so only the message handling is measured.
+ */
+final class BenchmarkSettings {
+
+    static final Config CONFIG = ConfigFactory.parseString(String.join("\n",
+            "akka.loglevel = WARNING",
+            "factory {",
+            "  random-seed = 42",
+            "  journal.enabled = false",
+            "  production-line.body-build-time { min = 0s, max = 0s }",
+            "  local-storage {",
+            "    initial-stock = 1000000000",
+            "    reorder-point = 0",
+            "    restock-time { min = 0s, max = 0s }",
+            "  }",
+            "}"))
+            .withFallback(ConfigFactory.load());
+
+    //A clock that never fires, the benchmarks deliver the scheduled messages themselves
+    static final FactoryClock STOPPED_CLOCK = new FactoryClock() {
+        @Override
+        public long currentTimeMillis() {
+            return 0;
+        }
+
+        @Override
+        public <T> void scheduleOnce(Duration delay, akka.actor.typed.ActorRef<T> target, T message) {
+        }
+    };
+
+    private BenchmarkSettings() {
+    }
+
+    //Overrides using a generated catalog of the given number of items
+    static Config catalog(int items) {
+        List<String> lines = new ArrayList<>(items);
+        for (int i = 0; i < items; i++) {
+            lines.add(i + ",Item " + i);
+        }
+        try {
+            Path file = Files.createTempFile("catalog", ".csv");
+            file.toFile().deleteOnExit();
+            Files.write(file, lines);
+            return ConfigFactory.empty().withValue("factory.catalog.file", ConfigValueFactory.fromAnyRef(file.toString()));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write benchmark catalog", e);
+        }
+    }
+
+    static FactorySettings settings(Config overrides) {
+        return FactorySettings.fromConfig(overrides.withFallback(CONFIG).getConfig("factory"));
+    }
+}
@@ -0,0 +1,105 @@
+package org.example;
+
+import akka.actor.testkit.typed.javadsl.ActorTestKit;
+import akka.actor.typed.DispatcherSelector;
+import akka.actor.typed.javadsl.Behaviors;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip to an actor standing in for the OrderBook while other actors block, e.g. workers
+ * waiting for an external stock lookup. With "shared" all of them run on the default dispatcher,
+ * with "isolated" on the dispatchers of application.conf: the OrderBook on its pinned thread,
+ * the blocking actors on factory.blocking-io-dispatcher. Compare the percentiles of both.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatcherIsolationBenchmark {
+
+    // More blocking actors than the default dispatcher has threads on most machines
+    private static final int BLOCKING_ACTORS = 32;
+    private static final long BLOCK_MILLIS = 1;
+
+    @Param({"shared", "isolated"})
+    public String layout;
+
+    //Message answered right away, as the OrderBook answers most of its messages
+    static final class Ping {
+        final CompletableFuture<Void> pong;
+
+        Ping(CompletableFuture<Void> pong) {
+            this.pong = pong;
+        }
+    }
+
+    private ActorTestKit testKit;
+    private akka.actor.typed.ActorRef<Ping> orderBook;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        testKit = ActorTestKit.create("DispatcherIsolationBenchmark", BenchmarkSettings.CONFIG);
+        boolean isolated = layout.equals("isolated");
+        var bookDispatcher = DispatcherSelector.fromConfig(isolated
+                ? "factory.order-book-dispatcher" : "akka.actor.default-dispatcher");
+        var blockingDispatcher = DispatcherSelector.fromConfig(isolated
+                ? "factory.blocking-io-dispatcher" : "akka.actor.default-dispatcher");
+
+        CompletableFuture<akka.actor.typed.ActorRef<Ping>> started = new CompletableFuture<>();
+        testKit.spawn(Behaviors.<Void>setup(context -> {
+            // Each blocking actor keeps itself busy until the system stops
+            for (int i = 0; i < BLOCKING_ACTORS; i++) {
+                var blocking = context.spawn(Behaviors.receive(String.class)
+                        .onAnyMessage(msg -> {
+                            Thread.sleep(BLOCK_MILLIS);
+                            return Behaviors.same();
+                        })
+                        .build(), "blocking-" + i, blockingDispatcher);
+                context.spawn(Behaviors.<String>setup(feeder -> {
+                    // Lasts well beyond a trial at one message per millisecond
+                    for (int j = 0; j < 100_000; j++) {
+                        blocking.tell("lookup");
+                    }
+                    return Behaviors.empty();
+                }), "feeder-" + i);
+            }
+            started.complete(context.spawn(Behaviors.receive(Ping.class)
+                    .onMessage(Ping.class, msg -> {
+                        msg.pong.complete(null);
+                        return Behaviors.same();
+                    })
+                    .build(), "orderBook", bookDispatcher));
+            return Behaviors.empty();
+        }), "plant");
+        orderBook = started.get(10, TimeUnit.SECONDS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        testKit.shutdownTestKit();
+    }
+
+    @Benchmark
+    public void dispatchLatency() {
+        CompletableFuture<Void> pong = new CompletableFuture<>();
+        orderBook.tell(new Ping(pong));
+        pong.join();
+    }
+}
@@ -0,0 +1,87 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses a backlog of a million orders into batches the way OrderIngestion does, against reading
+ * them line by line as Strings and splitting them. Run with -prof gc: the parser allocates the
+ * batch arrays only, the String version several objects per line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrderParserBenchmark {
+
+    private static final int ORDERS = 1_000_000;
+    private static final int BATCH = 1000;
+
+    private ByteBuffer backlog;
+    private String backlogText;
+    private OrderParser parser;
+
+    @Setup
+    public void setup() {
+        ItemCatalog catalog = ItemCatalog.load(null);
+        OrderPriority[] priorities = OrderPriority.values();
+        StringBuilder text = new StringBuilder(ORDERS * 32);
+        for (int i = 0; i < ORDERS; i++) {
+            text.append(i).append(',').append(i % 8).append(',').append(priorities[i % priorities.length].name())
+                    .append(',').append(i % 3 == 0 ? "1767225600000" : "").append(',')
+                    .append(i % catalog.size()).append(';').append((i + 1) % catalog.size()).append('\n');
+        }
+        backlogText = text.toString();
+        byte[] bytes = backlogText.getBytes(StandardCharsets.US_ASCII);
+        backlog = ByteBuffer.allocateDirect(bytes.length).put(bytes);
+        parser = new OrderParser(BATCH, catalog);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ORDERS)
+    public long orderParser() {
+        backlog.clear();
+        long checksum = 0;
+        while (backlog.hasRemaining()) {
+            parser.parse(backlog, true);
+            OrderBook.AddOrders batch = parser.drain();
+            checksum += batch.orderNumbers.length + batch.items.length;
+        }
+        return checksum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ORDERS)
+    public long splitLines() throws IOException {
+        long checksum = 0;
+        BufferedReader reader = new BufferedReader(new StringReader(backlogText));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.split(",", -1);
+            int orderNumber = Integer.parseInt(fields[0]);
+            OrderPriority priority = OrderPriority.valueOf(fields[2]);
+            long dueTime = fields[3].isEmpty() ? Long.MAX_VALUE : Long.parseLong(fields[3]);
+            String[] items = fields[4].split(";");
+            checksum += orderNumber + priority.ordinal() + dueTime + items.length;
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,71 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the OrderQueue with the LinkedList the OrderBook used before.
+ * Each operation adds one order to a backlog of the given size and takes one out again,
+ * which is what the OrderBook does in steady state.
+ * Run with -prof gc to see the allocation rate per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrderQueueBenchmark {
+
+    @Param({"1000", "1000000"})
+    public int backlog;
+
+    private static final OrderPriority[] PRIORITIES = OrderPriority.values();
+
+    private OrderQueue orderQueue;
+    private Queue<Integer> linkedList;
+    private int nextOrder;
+
+    @Setup
+    public void setup() {
+        orderQueue = new OrderQueue(backlog + 1);
+        linkedList = new LinkedList<>();
+        for (nextOrder = 0; nextOrder < backlog; nextOrder++) {
+            addToOrderQueue(nextOrder);
+            linkedList.add(nextOrder);
+        }
+    }
+
+    @Benchmark
+    public int orderQueue() {
+        addToOrderQueue(nextOrder++);
+        return orderQueue.poll();
+    }
+
+    @Benchmark
+    public int linkedList() {
+        linkedList.add(nextOrder++);
+        return linkedList.poll();
+    }
+
+    // Mixes priorities and deadlines so the heap really has to sort
+    private void addToOrderQueue(int orderNumber) {
+        OrderPriority priority = PRIORITIES[orderNumber % PRIORITIES.length];
+        long now = orderNumber * 10L;
+        long dueTime = now + (orderNumber * 7919L) % 600_000;
+        orderQueue.offer(orderNumber, priority, dueTime, priority.dispatchKey(now, dueTime));
+    }
+}
@@ -0,0 +1,119 @@
+package org.example;
+
+import akka.actor.testkit.typed.javadsl.ActorTestKit;
+import akka.actor.typed.DispatcherSelector;
+import akka.actor.typed.javadsl.Behaviors;
+import com.typesafe.config.ConfigFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Order to completion through the whole plant running in an actor system, with
+ * the build and restock delays set to zero. The completions are picked up by a
+ * monitor on the OrderBook.
+ *
+ * throughput keeps a batch of orders in flight, latency sends one order at a time
+ * and reports the percentiles of its completion time.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+
+    private static final int BATCH = 1000;
+
+    @Param({"2", "8"})
+    public int productionLines;
+
+    @Param({"1", "4"})
+    public int storagePartitions;
+
+    private ActorTestKit testKit;
+    private akka.actor.typed.ActorRef<OrderBook.Command> orderBook;
+    private volatile CountDownLatch completions = new CountDownLatch(0);
+    private int nextOrder;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        var settings = BenchmarkSettings.settings(ConfigFactory.parseString(
+                "factory { production-lines = " + productionLines
+                        + ", workers = " + 2 * productionLines
+                        + ", storage-partitions = " + storagePartitions + " }"));
+        testKit = ActorTestKit.create("PipelineBenchmark", BenchmarkSettings.CONFIG);
+
+        CompletableFuture<akka.actor.typed.ActorRef<OrderBook.Command>> started = new CompletableFuture<>();
+        testKit.spawn(Behaviors.<Void>setup(context -> {
+            var clock = new RealTimeClock(context.getSystem());
+            var seeds = new SplittableRandom(settings.randomSeed);
+            var metrics = new FactoryMetrics(settings, clock);
+            var storage = StoragePartitions.spawn(context, settings, clock, metrics, null, seeds);
+
+            var workerPool = context.spawn(WorkerPool.create(settings, storage, metrics, seeds.split()),
+                    "workerPool", DispatcherSelector.fromConfig(settings.workerDispatcher));
+            var lines = new akka.actor.typed.ActorRef[settings.productionLines];
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = context.spawn(ProductionLine.create(workerPool, null, settings, clock, metrics, seeds.split()),
+                        "productionLine-" + (i + 1), DispatcherSelector.fromConfig(settings.productionLineDispatcher));
+            }
+
+            // Sees a copy of every message to the OrderBook, only the completions count
+            var completed = context.spawn(Behaviors.receive(OrderBook.Command.class)
+                    .onMessage(OrderBook.OrderCompleted.class, msg -> {
+                        completions.countDown();
+                        return Behaviors.same();
+                    })
+                    .onAnyMessage(msg -> Behaviors.same())
+                    .build(), "completed");
+            started.complete(context.spawn(
+                    Behaviors.monitor(OrderBook.Command.class, completed,
+                            OrderBook.create(lines, storage, settings, clock, metrics, null)),
+                    "orderBook", DispatcherSelector.fromConfig(settings.orderBookDispatcher)));
+            return Behaviors.empty();
+        }), "plant");
+        orderBook = started.get(10, TimeUnit.SECONDS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        testKit.shutdownTestKit();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(BATCH)
+    public void throughput() throws InterruptedException {
+        completions = new CountDownLatch(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            orderBook.tell(new OrderBook.AddOrder(nextOrder++));
+        }
+        completions.await();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void latency() throws InterruptedException {
+        completions = new CountDownLatch(1);
+        orderBook.tell(new OrderBook.AddOrder(nextOrder++));
+        completions.await();
+    }
+}
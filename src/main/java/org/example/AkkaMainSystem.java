@@ -1,53 +1,344 @@
 package org.example;
 
+import akka.Done;
+import akka.actor.CoordinatedShutdown;
 import akka.actor.typed.Behavior;
+import akka.actor.typed.DispatcherSelector;
+import akka.actor.typed.PostStop;
 import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.AskPattern;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+import akka.actor.typed.receptionist.Receptionist;
+import akka.cluster.sharding.typed.javadsl.ShardedDaemonProcess;
+import akka.cluster.typed.ClusterSingleton;
+import akka.cluster.typed.SingletonActor;
 
-public class AkkaMainSystem extends AbstractBehavior<AkkaMainSystem.Create> {
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
 
-    private final ActorContext<Create> context;
+/**
+ * Root of the plant.
+ *
+ * The constructor only reads the settings and opens the health and metrics endpoint, the plant is
+ * spawned on {@link Create}. Every actor recovers its journal in its own setup, so the OrderBook and
+ * the storage partitions recover in parallel; the node reports ready once the OrderBook answers.
+ *
+ * Shutdown runs through Akka's coordinated shutdown, on ENTER as well as on SIGTERM: the node reports
+ * not ready, the generator and the ingestions stop, and the OrderBook is drained. Pending orders and
+ * orders the lines did not complete within factory.shutdown.drain-timeout stay in the journal.
+ * In a cluster the node is ready once the OrderBook singleton answers, wherever it runs, and the
+ * node that hosts it drains it before it is handed over. Draining grants the generators and
+ * ingestions next to it no more credits, so they need not be stopped separately.
+ */
+public class AkkaMainSystem extends AbstractBehavior<AkkaMainSystem.Command> {
 
-    private AkkaMainSystem(ActorContext<Create> context) {
+    public interface Command {}
+
+    //Message to spawn the plant, later ones are ignored
+    public static final class Create implements Command {
+    }
+
+    //Message from the coordinated shutdown: stop everything that brings in new orders
+    private static final class StopIntake implements Command {
+        final akka.actor.typed.ActorRef<Done> replyTo;
+
+        StopIntake(akka.actor.typed.ActorRef<Done> replyTo) {
+            this.replyTo = replyTo;
+        }
+    }
+
+    //Message from the OrderBook probe: the journal is recovered, or the probe timed out
+    private static final class OrderBookStarted implements Command {
+        final OrderBook.Status status;
+
+        OrderBookStarted(OrderBook.Status status) {
+            this.status = status;
+        }
+    }
+
+    //Message to beat for the liveness probe
+    private static final class Heartbeat implements Command {}
+
+    private static final Heartbeat HEARTBEAT = new Heartbeat();
+
+    // How long the OrderBook may take to answer while it recovers before it is asked again
+    private static final Duration RECOVERY_PROBE_TIMEOUT = Duration.ofSeconds(5);
+
+    private final ActorContext<Command> context;
+    private final FactorySettings settings;
+    private final FactoryClock clock;
+    private final VirtualClock virtualClock;
+    private final SplittableRandom seeds;
+    private final FactoryMetrics metrics;
+    private final FactoryHealth health;
+    private final MetricsEndpoint metricsEndpoint;
+    private volatile long simulationStartNanos;
+
+    private boolean started;
+    private akka.actor.typed.ActorRef<OrderBook.Command> orderBook;
+    // Generator and ingestions, stopped first on shutdown
+    private final List<akka.actor.typed.ActorRef<?>> intake = new ArrayList<>();
+
+    private AkkaMainSystem(ActorContext<Command> context, TimerScheduler<Command> timers) {
         super(context);
         this.context = context;
 
-        // Initialize all actors
-        var localStorage = context.spawn(LocalStorage.create(), "localStorage");
+        // Topology and timings come from the "factory" section of application.conf
+        settings = FactorySettings.fromConfig(context.getSystem().settings().config().getConfig("factory"));
+
+        // Every random decision in the plant derives from this one seed
+        seeds = new SplittableRandom(settings.randomSeed);
+        context.getLog().info("Random seed {}", settings.randomSeed);
+
+        if (settings.simulation) {
+            virtualClock = VirtualClock.install(settings.simulationStart.toEpochMilli(),
+                    settings.simulationDuration, this::onSimulationFinished);
+            clock = virtualClock;
+        } else {
+            virtualClock = null;
+            clock = new RealTimeClock(context.getSystem());
+        }
+
+        // Order lifecycle metrics, shared by all actors
+        metrics = new FactoryMetrics(settings, clock);
+        if (settings.metricsJmx) {
+            metrics.registerMBean();
+        }
+        // Probes are answered from the start, the node is live but not ready yet
+        health = new FactoryHealth(settings.healthHeartbeatInterval);
+        metricsEndpoint = settings.metricsHttpPort > 0
+                ? MetricsEndpoint.start(settings.metricsHttpPort, metrics, health) : null;
+        timers.startTimerWithFixedDelay(HEARTBEAT, settings.healthHeartbeatInterval);
+    }
+
+    public static Behavior<Command> create() {
+        return Behaviors.setup(context ->
+                Behaviors.withTimers(timers -> new AkkaMainSystem(context, timers)));
+    }
+
+    @Override
+    public Receive<Command> createReceive() {
+        return newReceiveBuilder()
+                .onMessage(Create.class, this::onCreate)
+                .onMessage(OrderBookStarted.class, this::onOrderBookStarted)
+                .onMessage(StopIntake.class, this::onStopIntake)
+                .onMessage(Heartbeat.class, msg -> {
+                    health.heartbeat();
+                    return this;
+                })
+                .onSignal(PostStop.class, signal -> onPostStop())
+                .build();
+    }
+
+    private Behavior<Command> onCreate(Create msg) {
+        if (started) {
+            context.getLog().warn("Plant already started, Create ignored");
+            return this;
+        }
+        started = true;
+        var shutdown = CoordinatedShutdown.get(context.getSystem());
+        // Out of the load balancer before anything stops
+        shutdown.addTask(CoordinatedShutdown.PhaseBeforeServiceUnbind(), "factory-not-ready", () -> {
+            health.ready(false);
+            return CompletableFuture.completedFuture(Done.getInstance());
+        });
+
+        if (settings.clusterEnabled) {
+            // Leaving the cluster hands the lines, partitions and the OrderBook over to the other nodes
+            startClusterNode();
+            probeOrderBook();
+            return this;
+        }
+
+        startPlant();
+        var system = context.getSystem();
+        shutdown.addTask(CoordinatedShutdown.PhaseServiceUnbind(), "factory-stop-intake", () ->
+                AskPattern.ask(context.getSelf(), StopIntake::new, Duration.ofSeconds(5), system.scheduler()));
+        if (!settings.simulation) {
+            // A finished simulation has nothing left to complete
+            addDrainTask(system, orderBook, settings);
+        }
+        probeOrderBook();
+
+        if (virtualClock != null) {
+            simulationStartNanos = System.nanoTime();
+            virtualClock.start();
+        }
+        return this;
+    }
+
+    //Drains the OrderBook once the node stopped serving requests, see OrderBook.Drain
+    private static void addDrainTask(akka.actor.typed.ActorSystem<?> system,
+                                     akka.actor.typed.ActorRef<OrderBook.Command> orderBook, FactorySettings settings) {
+        CoordinatedShutdown.get(system).addTask(CoordinatedShutdown.PhaseServiceRequestsDone(),
+                "factory-drain-order-book", () ->
+                        AskPattern.ask(orderBook, OrderBook.Drain::new,
+                                        settings.shutdownDrainTimeout.plusSeconds(1), system.scheduler())
+                                .thenApply(status -> Done.getInstance()));
+    }
+
+    //Asks the OrderBook for its status, it answers once its journal is recovered
+    private void probeOrderBook() {
+        context.ask(OrderBook.Status.class, orderBook, RECOVERY_PROBE_TIMEOUT, OrderBook.GetStatus::new,
+                (status, failure) -> new OrderBookStarted(status));
+    }
 
-        // Create 4 worker actors with references to the storage
-        var workers = new akka.actor.typed.ActorRef[4];
-        for (int i = 0; i < 4; i++) {
-            workers[i] = context.spawn(Worker.create("Worker-" + (i + 1), localStorage), "worker-" + (i + 1));
+    private Behavior<Command> onOrderBookStarted(OrderBookStarted msg) {
+        if (msg.status == null) {
+            context.getLog().info("OrderBook still recovering");
+            probeOrderBook();
+            return this;
         }
+        health.ready(true);
+        context.getLog().info("Plant ready {} ms after JVM start, {} orders pending, {} requeued from production",
+                ManagementFactory.getRuntimeMXBean().getUptime(), msg.status.pending, msg.status.inProduction);
+        return this;
+    }
+
+    private Behavior<Command> onStopIntake(StopIntake msg) {
+        context.getLog().info("Shutting down, no new orders are taken");
+        // Before the generators stop, the orders they deferred still count
+        if (settings.loadReportFile != null) {
+            LoadReport.append(settings.loadReportFile, settings, metrics);
+        }
+        for (var producer : intake) {
+            context.stop(producer);
+        }
+        intake.clear();
+        msg.replyTo.tell(Done.getInstance());
+        return this;
+    }
+
+    //Spawns the whole plant in this actor system
+    private void startPlant() {
+        var journalDirectory = settings.journalDirectory;
+
+        // Initialize all actors, the storage is split into partitions
+        var analytics = settings.analyticsEnabled
+                ? context.spawn(DemandAnalytics.create(settings, clock, metrics), "demandAnalytics",
+                        DispatcherSelector.fromConfig(settings.analyticsDispatcher)) : null;
+        var storage = StoragePartitions.spawn(context, settings, clock, metrics, analytics, seeds);
+
+        // Create the worker pool, its workers fetch from the storage
+        var workerPool = context.spawn(WorkerPool.create(settings, storage, metrics, seeds.split()), "workerPool",
+                DispatcherSelector.fromConfig(settings.workerDispatcher));
 
-        // Create 2 production lines with access to all workers
-        var productionLines = new akka.actor.typed.ActorRef[2];
-        for (int i = 0; i < 2; i++) {
-            productionLines[i] = context.spawn(ProductionLine.create(workers), "productionLine-" + (i + 1));
+        // Create production lines sharing the worker pool
+        var productionLines = new akka.actor.typed.ActorRef[settings.productionLines];
+        for (int i = 0; i < productionLines.length; i++) {
+            productionLines[i] = context.spawn(ProductionLine.create(workerPool, analytics, settings, clock, metrics, seeds.split()), "productionLine-" + (i + 1),
+                    DispatcherSelector.fromConfig(settings.productionLineDispatcher));
         }
 
         // Create the order book that manages production assignments
-        var orderBook = context.spawn(OrderBook.create(productionLines), "orderBook");
+        orderBook = context.spawn(
+                OrderBook.create(productionLines, storage, settings, clock, metrics, journalDirectory.resolve("orderBook")),
+                "orderBook",
+                settings.orderBookProps());
 
         // Start generating orders
-        // OrderGenerator responsible for generating new orders
-        context.spawn(OrderGenerator.create(orderBook), "orderGenerator");
+        intake.addAll(spawnGenerators(context, orderBook, settings, clock, metrics, seeds.nextLong()));
+        intake.addAll(spawnIngestion(context, orderBook, settings, clock, metrics));
     }
 
-    public static Behavior<Create> create() {
-        return Behaviors.setup(AkkaMainSystem::new);
+    //Starts this node's share of a plant that runs on a cluster, every node does the same
+    @SuppressWarnings("unchecked")
+    private void startClusterNode() {
+        var system = context.getSystem();
+        var journalDirectory = settings.journalDirectory;
+        context.getLog().info("Cluster node {} starts", system.address());
+
+        // A line gets the same seed on whichever node hosts it, the workers of each node get their own
+        var lineSeeds = new SplittableRandom(settings.randomSeed).longs(settings.productionLines).toArray();
+        var nodeSeeds = new SplittableRandom(settings.randomSeed ^ system.address().hashCode());
+
+        // Storage partitions are sharded over the nodes, requests to them are batched on this node
+        // The analytics of this node see the partitions and lines it hosts and drive their restocks
+        var analytics = settings.analyticsEnabled
+                ? context.spawn(DemandAnalytics.create(settings, clock, metrics), "demandAnalytics",
+                        DispatcherSelector.fromConfig(settings.analyticsDispatcher)) : null;
+        var storage = StoragePartitions.sharded(context, settings, clock, metrics, analytics);
+
+        // The worker pool of this node serves the lines hosted on this node
+        var workerPool = context.spawn(WorkerPool.create(settings, storage, metrics, nodeSeeds.split()), "workerPool",
+                DispatcherSelector.fromConfig(settings.workerDispatcher));
+
+        // Production lines are spread over the nodes, the OrderBook finds them through the receptionist
+        ShardedDaemonProcess.get(system).init(ProductionLine.Command.class, "productionLine", settings.productionLines,
+                line -> Behaviors.setup(lineContext -> {
+                    lineContext.getSystem().receptionist().tell(
+                            Receptionist.register(ProductionLine.SERVICE_KEY, lineContext.getSelf()));
+                    return ProductionLine.create(workerPool, analytics, settings, clock, metrics,
+                            new SplittableRandom(lineSeeds[line]));
+                }));
+
+        // One OrderBook for the cluster, the generators run next to it and move with it. The node that
+        // hosts it drains it on leaving, the next one recovers it from the shared journal
+        long generatorSeed = nodeSeeds.nextLong();
+        Behavior<OrderBook.Command> singleton = Behaviors.setup(bookContext -> {
+            spawnGenerators(bookContext, bookContext.getSelf(), settings, clock, metrics, generatorSeed);
+            spawnIngestion(bookContext, bookContext.getSelf(), settings, clock, metrics);
+            addDrainTask(system, bookContext.getSelf(), settings);
+            return OrderBook.create(new akka.actor.typed.ActorRef[0], storage, settings, clock, metrics,
+                    journalDirectory.resolve("orderBook"));
+        });
+        // Readiness asks the OrderBook through the proxy, wherever it runs
+        orderBook = ClusterSingleton.get(system).init(SingletonActor.of(singleton, "orderBook")
+                .withProps(settings.orderBookProps()));
     }
 
-    @Override
-    public Receive<Create> createReceive() {
-        return newReceiveBuilder()
-                .onMessage(Create.class, msg -> Behaviors.same())
-                .build();
+    //Spawns the generators of the synthetic load, a single one keeps the journal of earlier versions
+    private static List<akka.actor.typed.ActorRef<OrderGenerator.Command>> spawnGenerators(
+            ActorContext<?> parent, akka.actor.typed.ActorRef<OrderBook.Command> orderBook,
+            FactorySettings settings, FactoryClock clock, FactoryMetrics metrics, long seed) {
+        var dispatcher = DispatcherSelector.fromConfig(settings.orderGeneratorDispatcher);
+        var seeds = new SplittableRandom(seed);
+        List<akka.actor.typed.ActorRef<OrderGenerator.Command>> generators = new ArrayList<>();
+        for (int i = 0; i < settings.orderGenerators; i++) {
+            String name = settings.orderGenerators == 1 ? "orderGenerator" : "orderGenerator-" + (i + 1);
+            generators.add(parent.spawn(OrderGenerator.create(orderBook, i, settings, clock, metrics, seeds.split(),
+                    settings.journalDirectory.resolve(name)), name, dispatcher));
+        }
+        return generators;
+    }
+
+    //Spawns an ingestion for every configured order file and for the TCP port
+    private static List<akka.actor.typed.ActorRef<OrderIngestion.Command>> spawnIngestion(
+            ActorContext<?> parent, akka.actor.typed.ActorRef<OrderBook.Command> orderBook,
+            FactorySettings settings, FactoryClock clock, FactoryMetrics metrics) {
+        var dispatcher = DispatcherSelector.fromConfig(settings.ingestionDispatcher);
+        List<akka.actor.typed.ActorRef<OrderIngestion.Command>> ingestions = new ArrayList<>();
+        for (int i = 0; i < settings.ingestionFiles.size(); i++) {
+            ingestions.add(parent.spawn(OrderIngestion.create(orderBook, OrderSource.file(settings.ingestionFiles.get(i)),
+                    settings, clock, metrics), "orderIngestion-file-" + (i + 1), dispatcher));
+        }
+        if (settings.ingestionTcpPort > 0) {
+            ingestions.add(parent.spawn(OrderIngestion.create(orderBook, OrderSource.tcp(settings.ingestionTcpPort),
+                    settings, clock, metrics), "orderIngestion-tcp", dispatcher));
+        }
+        return ingestions;
+    }
+
+    //Called by the virtual clock once the simulated time is over, runs outside of this actor
+    private void onSimulationFinished() {
+        VirtualClock clock = VirtualClock.installed();
+        context.getSystem().log().info("Simulated {} with {} events in {} ms",
+                clock.elapsed(), clock.deliveredEvents(), (System.nanoTime() - simulationStartNanos) / 1_000_000);
+        context.getSystem().terminate();
     }
 
-    public static final class Create {
+    private Behavior<Command> onPostStop() {
+        if (metricsEndpoint != null) {
+            metricsEndpoint.close();
+        }
+        metrics.unregisterMBean();
+        return this;
     }
 }
@@ -1,21 +1,31 @@
 package org.example;
 
+import akka.actor.CoordinatedShutdown;
 import akka.actor.typed.ActorSystem;
 import java.io.IOException;
 
 public class AkkaStart {
     public static void main(String[] args) {
-        final ActorSystem<AkkaMainSystem.Create> system =
+        final ActorSystem<AkkaMainSystem.Command> system =
             ActorSystem.create(AkkaMainSystem.create(), "carFactorySystem");
 
         system.tell(new AkkaMainSystem.Create());
 
-        try {
-            System.out.println(">>> Press ENTER to exit <<<");
-            System.in.read();
-        } catch (IOException ignored) {
-        } finally {
-            system.terminate();
-        }
+        // ENTER stops the plant, a simulation also stops on its own once the simulated time is over.
+        // Both run the coordinated shutdown, so does SIGTERM through the JVM shutdown hook: the OrderBook
+        // is drained and the orders it still has are kept in the journal.
+        Thread exitOnEnter = new Thread(() -> {
+            try {
+                System.out.println(">>> Press ENTER to exit <<<");
+                System.in.read();
+            } catch (IOException ignored) {
+            } finally {
+                CoordinatedShutdown.get(system).runAll(CoordinatedShutdown.unknownReason());
+            }
+        }, "exit-on-enter");
+        exitOnEnter.setDaemon(true);
+        exitOnEnter.start();
+
+        system.getWhenTerminated().toCompletableFuture().join();
     }
-}
\ No newline at end of file
+}
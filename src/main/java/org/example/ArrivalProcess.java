@@ -0,0 +1,216 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Intended arrival times of the orders of one {@link OrderGenerator}, in nanos since the generator
+ * started on the plant clock.
+ *
+ * The times do not depend on the plant: the generator sends an order once its time has come,
+ * however late, and stamps it with the intended time. A plant that falls behind shows up in the
+ * order latencies instead of slowing down the arrivals that measure it.
+ */
+interface ArrivalProcess {
+
+    // No arrivals are left
+    long NONE = -1;
+
+    //Time of the next arrival, not before the previous one, or NONE
+    long next();
+
+    String description();
+
+    /**
+     * The arrivals of one generator, the generators together produce the configured arrivals
+     * @param generator Index of the generator, from 0
+     * @param random Source of the gaps of the Poisson processes
+     */
+    static ArrivalProcess of(FactorySettings settings, int generator, SplittableRandom random) {
+        int generators = settings.orderGenerators;
+        switch (settings.orderArrivals) {
+            case FIXED:
+                // Generators take turns, together they keep the interval
+                long interval = settings.orderInterval.toNanos();
+                return new Fixed(interval * generators, interval * (generator + 1));
+            case POISSON:
+                // Poisson processes add up, each generator gets its share of the rate
+                return new Schedule(new long[]{0}, new double[]{settings.orderRate / generators}, 0, random);
+            case SCHEDULE:
+                long[] from = new long[settings.orderSchedule.size()];
+                double[] rates = new double[from.length];
+                for (int i = 0; i < from.length; i++) {
+                    from[i] = settings.orderSchedule.get(i).from.toNanos();
+                    rates[i] = settings.orderSchedule.get(i).perSecond / generators;
+                }
+                return new Schedule(from, rates, settings.orderSchedulePeriod.toNanos(), random);
+            case TRACE:
+                return Trace.read(settings.orderTraceFile, generator, generators, settings.timeScale);
+            default:
+                throw new IllegalArgumentException("Unknown arrivals " + settings.orderArrivals);
+        }
+    }
+
+    //One arrival every interval
+    final class Fixed implements ArrivalProcess {
+        private final long interval;
+        private long time;
+
+        Fixed(long interval, long first) {
+            this.interval = interval;
+            this.time = first - interval;
+        }
+
+        @Override
+        public long next() {
+            time += interval;
+            return time;
+        }
+
+        @Override
+        public String description() {
+            return "one order every " + interval / 1_000_000 + " ms";
+        }
+    }
+
+    /**
+     * Poisson arrivals whose rate changes in steps and repeats every period, a constant rate is a
+     * single step. The gap to the next arrival is drawn exactly: an exponential amount of "work" is
+     * used up at the rate of each step it reaches into.
+     */
+    final class Schedule implements ArrivalProcess {
+        private final long[] from;
+        // Arrivals per nano
+        private final double[] rates;
+        private final long period;
+        private final SplittableRandom random;
+        private boolean anyArrivals;
+        private long time;
+
+        Schedule(long[] from, double[] perSecond, long period, SplittableRandom random) {
+            this.from = from;
+            this.rates = new double[perSecond.length];
+            this.period = period;
+            this.random = random;
+            for (int i = 0; i < rates.length; i++) {
+                rates[i] = perSecond[i] / 1e9;
+                anyArrivals |= rates[i] > 0;
+            }
+        }
+
+        @Override
+        public long next() {
+            if (!anyArrivals) {
+                return NONE;
+            }
+            double work = -Math.log(1 - random.nextDouble());
+            while (true) {
+                long offset = period > 0 ? time % period : time;
+                int step = stepAt(offset);
+                long stepEnd = step + 1 < from.length ? from[step + 1] : period > 0 ? period : Long.MAX_VALUE;
+                if (stepEnd == Long.MAX_VALUE && rates[step] == 0) {
+                    // The last step lasts forever and brings nothing
+                    anyArrivals = false;
+                    return NONE;
+                }
+                double duration = stepEnd == Long.MAX_VALUE ? Double.MAX_VALUE : stepEnd - offset;
+                if (rates[step] > 0 && work <= rates[step] * duration) {
+                    time += (long) Math.ceil(work / rates[step]);
+                    return time;
+                }
+                work -= rates[step] * duration;
+                time += (long) duration;
+            }
+        }
+
+        private int stepAt(long offset) {
+            int step = 0;
+            while (step + 1 < from.length && from[step + 1] <= offset) {
+                step++;
+            }
+            return step;
+        }
+
+        @Override
+        public String description() {
+            if (from.length == 1) {
+                return "Poisson arrivals at " + rates[0] * 1e9 + " orders/s";
+            }
+            return "Poisson arrivals in " + from.length + " rate steps"
+                    + (period > 0 ? " repeating every " + period / 1_000_000_000 + " s" : "");
+        }
+    }
+
+    //Arrival times replayed from a file, each generator of n takes every n-th arrival
+    final class Trace implements ArrivalProcess {
+        private final Path file;
+        private final long[] times;
+        private int next;
+
+        private Trace(Path file, long[] times) {
+            this.file = file;
+            this.times = times;
+        }
+
+        /**
+         * Reads the arrivals of one generator, millis per line relative to the first line
+         * @param timeScale The replay is that much faster than the recording
+         */
+        static Trace read(Path file, int generator, int generators, double timeScale) {
+            long[] times = new long[1024];
+            int count = 0;
+            try (BufferedReader reader = Files.newBufferedReader(file)) {
+                double first = Double.NaN;
+                double previous = Double.NEGATIVE_INFINITY;
+                int arrival = 0;
+                int lineNumber = 0;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    double millis;
+                    try {
+                        millis = Double.parseDouble(line);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException(file + ":" + lineNumber + " is not a time in millis: " + line);
+                    }
+                    if (millis < previous) {
+                        throw new IllegalArgumentException(file + ":" + lineNumber + " goes back in time");
+                    }
+                    previous = millis;
+                    if (Double.isNaN(first)) {
+                        first = millis;
+                    }
+                    if (arrival++ % generators != generator) {
+                        continue;
+                    }
+                    if (count == times.length) {
+                        times = Arrays.copyOf(times, count * 2);
+                    }
+                    times[count++] = (long) ((millis - first) * 1_000_000 / timeScale);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read order trace " + file, e);
+            }
+            return new Trace(file, Arrays.copyOf(times, count));
+        }
+
+        @Override
+        public long next() {
+            return next < times.length ? times[next++] : NONE;
+        }
+
+        @Override
+        public String description() {
+            return times.length + " arrivals replayed from " + file;
+        }
+    }
+}
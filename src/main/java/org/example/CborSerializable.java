@@ -0,0 +1,10 @@
+package org.example;
+
+/**
+ * Marker for messages that may be sent between the nodes of a cluster, see cluster.conf.
+ * They are serialized with Jackson CBOR: public final fields are written, the constructor
+ * reads them back by parameter name (compiled with -parameters), single argument constructors
+ * need @JsonCreator. ActorRefs are serialized by Akka.
+ */
+public interface CborSerializable {
+}
@@ -0,0 +1,279 @@
+package org.example;
+
+import akka.actor.typed.Behavior;
+import akka.actor.typed.Terminated;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming analytics on the events of the plant, driving the restock policy of the storage.
+ *
+ * The storage partitions report every unit they hand out ({@link ItemsConsumed}), the lines every
+ * order they finish with the time it spent in each stage ({@link OrderBuilt}). Each event updates
+ * sliding-window aggregates in O(1), see {@link SlidingWindows}: consumption per item, throughput
+ * per line and the mean time in each stage over factory.analytics.window.
+ *
+ * Every factory.analytics.forecast-interval the consumption of each item since the last forecast
+ * goes into an exponentially smoothed rate. The rate sets the restock policy the partitions get
+ * ({@link LocalStorage.RestockPolicy}): a restock starts once the available stock only covers the
+ * expected demand during a restock plus a safety margin, and brings what is expected to be consumed
+ * over factory.analytics.restock-cover. Nothing is ever recomputed from the history.
+ *
+ * Forecasts are only made while events come in, a plant without orders keeps the last policy. Until
+ * the first forecast the partitions restock as configured in factory.local-storage.
+ */
+public class DemandAnalytics extends AbstractBehavior<DemandAnalytics.Command> {
+
+    public interface Command extends CborSerializable {}
+
+    //Message from a storage partition: the policy of these items, by slot, comes from us
+    public static final class RegisterPartition implements Command {
+        public final int partition;
+        public final int[] items;
+        public final akka.actor.typed.ActorRef<LocalStorage.Command> storage;
+
+        public RegisterPartition(int partition, int[] items, akka.actor.typed.ActorRef<LocalStorage.Command> storage) {
+            this.partition = partition;
+            this.items = items;
+            this.storage = storage;
+        }
+    }
+
+    //Message from a storage partition: one unit of each item was taken out of stock
+    public static final class ItemsConsumed implements Command {
+        public final int[] items;
+
+        public ItemsConsumed(int[] items) {
+            this.items = items;
+        }
+    }
+
+    //Message from a production line: an order left the line after this long in each ProductionLine.Stage
+    public static final class OrderBuilt implements Command {
+        public final String productionLine;
+        public final long[] stageNanos;
+
+        public OrderBuilt(String productionLine, long[] stageNanos) {
+            this.productionLine = productionLine;
+            this.stageNanos = stageNanos;
+        }
+    }
+
+    //Internal message to update the forecasts and send the restock policies
+    private static final class Forecast implements Command {}
+
+    private static final Forecast FORECAST = new Forecast();
+
+    /**
+     * Creates the analytics of the plant, or of the partitions and lines of this node in a cluster
+     * @param settings Windows, forecast and restock policy settings
+     * @param clock Clock the events are timed with
+     * @param metrics The latest aggregates and forecasts are published to its PlantState
+     */
+    public static Behavior<Command> create(FactorySettings settings, FactoryClock clock, FactoryMetrics metrics) {
+        return Behaviors.setup(context -> new DemandAnalytics(context, settings, clock, metrics));
+    }
+
+    private static final ProductionLine.Stage[] STAGES = ProductionLine.Stage.values();
+
+    private final FactorySettings settings;
+    private final FactoryClock clock;
+    private final FactoryMetrics metrics;
+    private final Logger log;
+
+    // Series by catalog item
+    private final SlidingWindows consumption;
+    // Series by line, in the order the lines were first heard of
+    private final SlidingWindows throughput;
+    private final Map<String, Integer> lineIndex = new HashMap<>();
+    private final List<String> lines = new ArrayList<>();
+    // Series by stage: nanos spent in it and the orders that passed it
+    private final SlidingWindows stageNanos;
+    private final SlidingWindows stageOrders;
+
+    // Units consumed per item since the last forecast, and the smoothed rate per second
+    private final long[] sinceForecast;
+    private final double[] forecast;
+    private boolean forecasting;
+    private long lastForecast;
+    private boolean forecastScheduled;
+
+    // Partitions that take their policy from us, by partition index
+    private final Map<Integer, RegisterPartition> partitions = new HashMap<>();
+
+    // Policy per item, as last sent
+    private final int[] reorderPoints;
+    private final int[] restockQuantities;
+
+    private DemandAnalytics(ActorContext<Command> context, FactorySettings settings, FactoryClock clock,
+                            FactoryMetrics metrics) {
+        super(context);
+        this.settings = settings;
+        this.clock = clock;
+        this.metrics = metrics;
+        this.log = context.getLog();
+
+        long now = clock.nanoTime();
+        int items = settings.catalog.size();
+        consumption = new SlidingWindows(items, settings.analyticsWindow, settings.analyticsBuckets, now);
+        throughput = new SlidingWindows(0, settings.analyticsWindow, settings.analyticsBuckets, now);
+        stageNanos = new SlidingWindows(STAGES.length, settings.analyticsWindow, settings.analyticsBuckets, now);
+        stageOrders = new SlidingWindows(STAGES.length, settings.analyticsWindow, settings.analyticsBuckets, now);
+        sinceForecast = new long[items];
+        forecast = new double[items];
+        reorderPoints = new int[items];
+        restockQuantities = new int[items];
+        Arrays.fill(reorderPoints, settings.reorderPoint);
+        Arrays.fill(restockQuantities, settings.restockQuantity);
+        lastForecast = now;
+    }
+
+    @Override
+    public Receive<Command> createReceive() {
+        return newReceiveBuilder()
+                .onMessage(RegisterPartition.class, this::onRegisterPartition)
+                .onMessage(ItemsConsumed.class, this::onItemsConsumed)
+                .onMessage(OrderBuilt.class, this::onOrderBuilt)
+                .onMessage(Forecast.class, msg -> onForecast())
+                .onSignal(Terminated.class, signal -> onPartitionTerminated(signal.getRef()))
+                .build();
+    }
+
+    //A partition that moved to another node registers there, the policy it had is sent again
+    private Behavior<Command> onRegisterPartition(RegisterPartition msg) {
+        partitions.put(msg.partition, msg);
+        getContext().watch(msg.storage);
+        if (forecasting) {
+            sendPolicy(msg);
+        }
+        return this;
+    }
+
+    private Behavior<Command> onPartitionTerminated(akka.actor.typed.ActorRef<Void> storage) {
+        partitions.values().removeIf(partition -> partition.storage.equals(storage));
+        return this;
+    }
+
+    private Behavior<Command> onItemsConsumed(ItemsConsumed msg) {
+        long now = clock.nanoTime();
+        for (int item : msg.items) {
+            consumption.add(item, now, 1);
+            sinceForecast[item]++;
+        }
+        scheduleForecast();
+        return this;
+    }
+
+    private Behavior<Command> onOrderBuilt(OrderBuilt msg) {
+        long now = clock.nanoTime();
+        Integer line = lineIndex.get(msg.productionLine);
+        if (line == null) {
+            line = lines.size();
+            lineIndex.put(msg.productionLine, line);
+            lines.add(msg.productionLine);
+            throughput.ensureSeries(lines.size());
+        }
+        throughput.add(line, now, 1);
+        for (int stage = 0; stage < msg.stageNanos.length; stage++) {
+            stageNanos.add(stage, now, msg.stageNanos[stage]);
+            stageOrders.add(stage, now, 1);
+        }
+        scheduleForecast();
+        return this;
+    }
+
+    //The next forecast is only scheduled once something happened, an idle plant costs nothing
+    private void scheduleForecast() {
+        if (!forecastScheduled) {
+            forecastScheduled = true;
+            clock.scheduleOnce(settings.analyticsForecastInterval, getContext().getSelf(), FORECAST);
+        }
+    }
+
+    /**
+     * Folds the consumption since the last forecast into the smoothed rates. The weight of the new
+     * observation grows with the time it covers, so a late forecast after an idle spell weighs the
+     * spell like the forecasts it missed would have.
+     */
+    private Behavior<Command> onForecast() {
+        forecastScheduled = false;
+        long now = clock.nanoTime();
+        double elapsed = (now - lastForecast) / 1e9;
+        if (elapsed <= 0) {
+            return this;
+        }
+        double intervals = elapsed / (settings.analyticsForecastInterval.toNanos() / 1e9);
+        double weight = 1 - Math.pow(1 - settings.analyticsSmoothing, intervals);
+        for (int item = 0; item < forecast.length; item++) {
+            double rate = sinceForecast[item] / elapsed;
+            forecast[item] = forecasting ? forecast[item] + weight * (rate - forecast[item]) : rate;
+            sinceForecast[item] = 0;
+        }
+        forecasting = true;
+        lastForecast = now;
+        updatePolicy();
+        for (RegisterPartition partition : partitions.values()) {
+            sendPolicy(partition);
+        }
+        publish(now);
+        return this;
+    }
+
+    /**
+     * Reorder point: the demand expected during a restock of mean lead time, plus the safety margin.
+     * Quantity: the demand expected over the restock cover, at least one unit.
+     */
+    private void updatePolicy() {
+        double leadTime = (settings.restockTime.min.toNanos() + settings.restockTime.max.toNanos()) / 2e9;
+        double cover = settings.analyticsRestockCover.toNanos() / 1e9;
+        for (int item = 0; item < forecast.length; item++) {
+            reorderPoints[item] = (int) Math.ceil(forecast[item] * leadTime * (1 + settings.analyticsSafetyFactor));
+            restockQuantities[item] = Math.max(1, (int) Math.ceil(forecast[item] * cover));
+        }
+        if (log.isDebugEnabled()) {
+            for (int item = 0; item < forecast.length; item++) {
+                log.debug("{}: {} per s, reorder at {}, restock {}", settings.catalog.name(item), forecast[item],
+                        reorderPoints[item], restockQuantities[item]);
+            }
+        }
+    }
+
+    private void sendPolicy(RegisterPartition partition) {
+        int[] reorderPoints = new int[partition.items.length];
+        int[] quantities = new int[partition.items.length];
+        for (int slot = 0; slot < partition.items.length; slot++) {
+            reorderPoints[slot] = this.reorderPoints[partition.items[slot]];
+            quantities[slot] = restockQuantities[partition.items[slot]];
+        }
+        partition.storage.tell(new LocalStorage.RestockPolicy(reorderPoints, quantities));
+    }
+
+    private void publish(long now) {
+        int items = forecast.length;
+        double[] consumed = new double[items];
+        for (int item = 0; item < items; item++) {
+            consumed[item] = consumption.perSecond(item, now);
+        }
+        double[] lineThroughput = new double[lines.size()];
+        for (int line = 0; line < lineThroughput.length; line++) {
+            lineThroughput[line] = throughput.perSecond(line, now);
+        }
+        double[] stageSeconds = new double[STAGES.length];
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            long orders = stageOrders.sum(stage, now);
+            stageSeconds[stage] = orders == 0 ? 0 : stageNanos.sum(stage, now) / 1e9 / orders;
+        }
+        metrics.state().publish(new PlantState.AnalyticsState(clock.currentTimeMillis(), consumed,
+                forecast.clone(), reorderPoints.clone(), restockQuantities.clone(),
+                lines.toArray(new String[0]), lineThroughput, stageSeconds));
+    }
+}
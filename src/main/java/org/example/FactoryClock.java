@@ -0,0 +1,22 @@
+package org.example;
+
+import java.time.Duration;
+
+/**
+ * Source of time for everything that happens in the plant: order timestamps, body builds,
+ * restocks and order generation. Runs on the wall clock normally and on a virtual clock
+ * in simulation mode, see {@link VirtualClock}.
+ */
+public interface FactoryClock {
+
+    //Current plant time in epoch millis
+    long currentTimeMillis();
+
+    //Monotonic plant time in nanos for measuring durations, only differences are meaningful
+    default long nanoTime() {
+        return System.nanoTime();
+    }
+
+    //Delivers the message to the target once the delay has passed on this clock
+    <T> void scheduleOnce(Duration delay, akka.actor.typed.ActorRef<T> target, T message);
+}
@@ -0,0 +1,42 @@
+package org.example;
+
+import java.time.Duration;
+
+/**
+ * Liveness and readiness of this node, served on /health/live and /health/ready by the
+ * {@link MetricsEndpoint}.
+ *
+ * The node is live while the main actor keeps beating, a starved dispatcher or a terminated
+ * system stops the beat. It is ready once the OrderBook has recovered its journal and until the
+ * coordinated shutdown begins, so a load balancer takes the node out before it drains.
+ */
+final class FactoryHealth {
+
+    // Missed beats after which the node is no longer live
+    private static final int MISSED_HEARTBEATS = 3;
+
+    private final long livenessTimeoutNanos;
+    private volatile long lastHeartbeat;
+    private volatile boolean ready;
+
+    FactoryHealth(Duration heartbeatInterval) {
+        this.livenessTimeoutNanos = heartbeatInterval.toNanos() * MISSED_HEARTBEATS;
+        this.lastHeartbeat = System.nanoTime();
+    }
+
+    void heartbeat() {
+        lastHeartbeat = System.nanoTime();
+    }
+
+    void ready(boolean ready) {
+        this.ready = ready;
+    }
+
+    boolean isLive() {
+        return System.nanoTime() - lastHeartbeat < livenessTimeoutNanos;
+    }
+
+    boolean isReady() {
+        return ready && isLive();
+    }
+}
@@ -0,0 +1,448 @@
+package org.example;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import javax.management.ObjectName;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Order lifecycle metrics shared by all actors of the plant.
+ *
+ * Every order is timestamped when it reaches a {@link Stage}. The time since the previous stage
+ * goes into a latency histogram of that stage, the time since the first stamp into the order
+ * histogram once it is installed. Timestamps live in a ring buffer indexed by order number,
+ * an order that is overwritten by a later one while still in production loses its latencies.
+ * Stages of one order are stamped by different actors one after the other, the messages between
+ * them make the previous stamps visible, so the buffer needs no synchronization.
+ *
+ * Recording does not allocate: histograms are HdrHistogram recorders, counters are adders and
+ * atomics. Reading merges the recorded intervals and may allocate, it happens on JMX or HTTP
+ * requests only.
+ */
+public final class FactoryMetrics implements FactoryMetricsMXBean {
+
+    //Points in the life of an order, in the order they are reached
+    public enum Stage { GENERATED, QUEUED, ASSIGNED, BODY_BUILT, ITEMS_RESERVED, INSTALLED }
+
+    static final ObjectName OBJECT_NAME = Jmx.objectName("org.example:type=FactoryMetrics");
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final long LOWEST_LATENCY = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final long HIGHEST_LATENCY = TimeUnit.DAYS.toNanos(365);
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    //Latency distribution, recorded lock-free and merged into the total when read
+    static final class Latency {
+        final String name;
+        private final Recorder recorder = new Recorder(LOWEST_LATENCY, HIGHEST_LATENCY, SIGNIFICANT_DIGITS);
+        private final Histogram total = new Histogram(LOWEST_LATENCY, HIGHEST_LATENCY, SIGNIFICANT_DIGITS);
+        private Histogram interval;
+
+        Latency(String name) {
+            this.name = name;
+        }
+
+        void record(long nanos) {
+            recorder.recordValue(Math.max(0, Math.min(nanos, HIGHEST_LATENCY)));
+        }
+
+        //All values recorded so far
+        synchronized Histogram histogram() {
+            interval = recorder.getIntervalHistogram(interval);
+            total.add(interval);
+            return total.copy();
+        }
+    }
+
+    private final FactoryClock clock;
+    private final ItemCatalog catalog;
+    private final int productionLines;
+    private final int workers;
+    private final long startNanos;
+
+    // Stage timestamps of the latest orders, slot is order number & mask, 0 means not reached
+    private final int mask;
+    private final int[] slotOrders;
+    private final long[] stamps;
+
+    // Index is the stage reached, there is no latency for GENERATED
+    private final Latency[] stageLatencies = new Latency[STAGES.length];
+    private final Latency orderLatency = new Latency("order");
+
+    private volatile int queueDepth;
+    private volatile int outstandingDemand;
+    private final AtomicInteger deferredOrders = new AtomicInteger();
+    private final LongAdder shedOrders = new LongAdder();
+    private final LongAdder arrivedOrders = new LongAdder();
+    private final AtomicInteger busyLines = new AtomicInteger();
+    private final AtomicIntegerArray busyStageSlots = new AtomicIntegerArray(ProductionLine.Stage.values().length);
+    private final AtomicInteger busyWorkers = new AtomicInteger();
+    private final LongAdder lineBusyNanos = new LongAdder();
+    private final LongAdder workerBusyNanos = new LongAdder();
+    private final LongAdder ordersCompleted = new LongAdder();
+    private final LongAdder rejectedOrders = new LongAdder();
+    private final LongAdder expiredLeases = new LongAdder();
+    private final LongAdder cancelledProductions = new LongAdder();
+    private final LongAdder duplicateCompletions = new LongAdder();
+    private final LongAdder duplicateOrders = new LongAdder();
+    private final LongAdder kitsStaged = new LongAdder();
+    private final LongAdder kitsUsed = new LongAdder();
+    // By catalog item
+    private final AtomicLongArray stockOuts;
+    // Latest state published by the actors, shared with them like the counters above
+    private final PlantState state;
+
+    /**
+     * @param settings Item catalog, number of lines and workers and of orders whose stages are tracked at once
+     * @param clock Clock the stages are timestamped with
+     */
+    public FactoryMetrics(FactorySettings settings, FactoryClock clock) {
+        this.clock = clock;
+        this.catalog = settings.catalog;
+        this.stockOuts = new AtomicLongArray(catalog.size());
+        this.state = new PlantState(catalog);
+        this.productionLines = settings.productionLines;
+        this.workers = settings.workers;
+        this.startNanos = clock.nanoTime();
+
+        int slots = Integer.highestOneBit(Math.max(1, settings.metricsTrackedOrders) * 2 - 1);
+        mask = slots - 1;
+        slotOrders = new int[slots];
+        stamps = new long[slots * STAGES.length];
+        for (int i = 1; i < STAGES.length; i++) {
+            stageLatencies[i] = new Latency(STAGES[i].name().toLowerCase());
+        }
+    }
+
+    //Records that the order reached the stage
+    public void stamp(int orderNumber, Stage stage) {
+        stamp(orderNumber, stage, clock.nanoTime());
+    }
+
+    //Records that the order reached the stage at the given clock nanos, e.g. the time it was meant to arrive
+    public void stamp(int orderNumber, Stage stage, long now) {
+        int slot = orderNumber & mask;
+        int base = slot * STAGES.length;
+        if (slotOrders[slot] != orderNumber) {
+            // Slot still holds an older order, take it over
+            slotOrders[slot] = orderNumber;
+            for (int i = 0; i < STAGES.length; i++) {
+                stamps[base + i] = 0;
+            }
+        }
+
+        int index = stage.ordinal();
+        stamps[base + index] = now;
+        if (index > 0 && stamps[base + index - 1] != 0) {
+            stageLatencies[index].record(now - stamps[base + index - 1]);
+        }
+        if (stage == Stage.INSTALLED) {
+            ordersCompleted.increment();
+            for (int i = 0; i < index; i++) {
+                if (stamps[base + i] != 0) {
+                    orderLatency.record(now - stamps[base + i]);
+                    break;
+                }
+            }
+        }
+    }
+
+    //Number of orders waiting in the OrderBook, only set by the OrderBook
+    public void queueDepth(int orders) {
+        queueDepth = orders;
+    }
+
+    //Credits the OrderBook granted to producers that have not been used yet, only set by the OrderBook
+    public void outstandingDemand(int orders) {
+        outstandingDemand = orders;
+    }
+
+    //Orders a producer holds back for lack of credit, changed by delta
+    public void ordersDeferred(int delta) {
+        deferredOrders.addAndGet(delta);
+    }
+
+    //An order of the synthetic load came due, whether it is sent, deferred or shed
+    public void orderArrived() {
+        arrivedOrders.increment();
+    }
+
+    //An order was dropped because of overload
+    public void orderShed() {
+        shedOrders.increment();
+    }
+
+    /**
+     * A production line went from empty to having an order on it
+     * @return Start time to hand to {@link #lineFinished(long)}
+     */
+    public long lineStarted() {
+        busyLines.incrementAndGet();
+        return clock.nanoTime();
+    }
+
+    public void lineFinished(long startedAt) {
+        busyLines.decrementAndGet();
+        lineBusyNanos.add(clock.nanoTime() - startedAt);
+    }
+
+    //An order took a slot of a production line stage
+    public void stageEntered(ProductionLine.Stage stage) {
+        busyStageSlots.incrementAndGet(stage.ordinal());
+    }
+
+    public void stageLeft(ProductionLine.Stage stage) {
+        busyStageSlots.decrementAndGet(stage.ordinal());
+    }
+
+    /**
+     * A worker went from idle to having an order in hand
+     * @return Start time to hand to {@link #workerIdle(long)}
+     */
+    public long workerBusy() {
+        busyWorkers.incrementAndGet();
+        return clock.nanoTime();
+    }
+
+    public void workerIdle(long busySince) {
+        busyWorkers.decrementAndGet();
+        workerBusyNanos.add(clock.nanoTime() - busySince);
+    }
+
+    //A reservation found the item out of stock
+    public void stockOut(int item) {
+        stockOuts.incrementAndGet(item);
+    }
+
+    //A line had no free slot for an order handed to it
+    public void orderRejected() {
+        rejectedOrders.increment();
+    }
+
+    //Orders went back to the queue because their line did not answer or complete them in time
+    public void leasesExpired(int leases) {
+        expiredLeases.add(leases);
+    }
+
+    //A line called off an order it had on the line, the attempt it was building for had expired
+    public void productionCancelled() {
+        cancelledProductions.increment();
+    }
+
+    //A line completed an order that was completed already
+    public void duplicateCompletion() {
+        duplicateCompletions.increment();
+    }
+
+    //An order was sent that is queued, in production or completed already
+    public void duplicateOrder() {
+        duplicateOrders.increment();
+    }
+
+    //Storage reserved the items of a queued order ahead of time
+    public void kitStaged() {
+        kitsStaged.increment();
+    }
+
+    //A worker reserved the items of its order and found them staged
+    public void kitUsed() {
+        kitsUsed.increment();
+    }
+
+    //Registers the JMX view, replacing the one of an earlier plant in this JVM
+    void registerMBean() {
+        Jmx.register(this, OBJECT_NAME);
+    }
+
+    void unregisterMBean() {
+        Jmx.unregister(OBJECT_NAME);
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    @Override
+    public int getOutstandingDemand() {
+        return outstandingDemand;
+    }
+
+    @Override
+    public int getDeferredOrders() {
+        return deferredOrders.get();
+    }
+
+    @Override
+    public long getShedOrders() {
+        return shedOrders.sum();
+    }
+
+    @Override
+    public int getBusyProductionLines() {
+        return busyLines.get();
+    }
+
+    @Override
+    public Map<String, Integer> getBusyStageSlots() {
+        Map<String, Integer> byStage = new LinkedHashMap<>();
+        for (ProductionLine.Stage stage : ProductionLine.Stage.values()) {
+            byStage.put(stage.name().toLowerCase(), busyStageSlots.get(stage.ordinal()));
+        }
+        return byStage;
+    }
+
+    @Override
+    public double getProductionLineUtilization() {
+        return busyRatio(lineBusyNanos.sum(), productionLines);
+    }
+
+    @Override
+    public int getBusyWorkers() {
+        return busyWorkers.get();
+    }
+
+    @Override
+    public double getWorkerBusyRatio() {
+        return busyRatio(workerBusyNanos.sum(), workers);
+    }
+
+    @Override
+    public long getOrdersCompleted() {
+        return ordersCompleted.sum();
+    }
+
+    @Override
+    public long getStockOuts() {
+        long total = 0;
+        for (int i = 0; i < stockOuts.length(); i++) {
+            total += stockOuts.get(i);
+        }
+        return total;
+    }
+
+    @Override
+    public Map<String, Long> getStockOutsByItem() {
+        Map<String, Long> byItem = new LinkedHashMap<>();
+        for (int i = 0; i < stockOuts.length(); i++) {
+            long count = stockOuts.get(i);
+            if (count > 0) {
+                byItem.put(catalog.name(i), count);
+            }
+        }
+        return byItem;
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP50Millis() {
+        return percentileMillis(50);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP99Millis() {
+        return percentileMillis(99);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyMaxMillis() {
+        return percentileMillis(100);
+    }
+
+    //Stage latencies followed by the order latency
+    Latency[] latencies() {
+        Latency[] all = new Latency[STAGES.length];
+        System.arraycopy(stageLatencies, 1, all, 0, STAGES.length - 1);
+        all[STAGES.length - 1] = orderLatency;
+        return all;
+    }
+
+    long arrivedOrders() {
+        return arrivedOrders.sum();
+    }
+
+    long rejectedOrders() {
+        return rejectedOrders.sum();
+    }
+
+    long expiredLeases() {
+        return expiredLeases.sum();
+    }
+
+    long cancelledProductions() {
+        return cancelledProductions.sum();
+    }
+
+    long duplicateCompletions() {
+        return duplicateCompletions.sum();
+    }
+
+    long duplicateOrders() {
+        return duplicateOrders.sum();
+    }
+
+    long kitsStaged() {
+        return kitsStaged.sum();
+    }
+
+    long kitsUsed() {
+        return kitsUsed.sum();
+    }
+
+    //Clock time since the metrics were created, i.e. since the plant started
+    long elapsedNanos() {
+        return clock.nanoTime() - startNanos;
+    }
+
+    long lineBusyNanos() {
+        return lineBusyNanos.sum();
+    }
+
+    long workerBusyNanos() {
+        return workerBusyNanos.sum();
+    }
+
+    int productionLines() {
+        return productionLines;
+    }
+
+    int workers() {
+        return workers;
+    }
+
+    ItemCatalog catalog() {
+        return catalog;
+    }
+
+    PlantState state() {
+        return state;
+    }
+
+    //Clock of the plant, e.g. for actors that timestamp what they publish to the state without one of their own
+    FactoryClock clock() {
+        return clock;
+    }
+
+    long stockOuts(int item) {
+        return stockOuts.get(item);
+    }
+
+    private double busyRatio(long busyNanos, int count) {
+        long elapsed = elapsedNanos();
+        return elapsed <= 0 || count == 0 ? 0 : Math.min(1.0, (double) busyNanos / elapsed / count);
+    }
+
+    private Map<String, Double> percentileMillis(double percentile) {
+        Map<String, Double> millis = new LinkedHashMap<>();
+        for (Latency latency : latencies()) {
+            millis.put(latency.name, latency.histogram().getValueAtPercentile(percentile) / 1e6);
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,48 @@
+package org.example;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link FactoryMetrics}, registered as org.example:type=FactoryMetrics.
+ * Latencies are per order stage, in milliseconds of plant time, since the start of the plant.
+ */
+public interface FactoryMetricsMXBean {
+
+    int getQueueDepth();
+
+    //Credits granted to producers of orders and not used yet
+    int getOutstandingDemand();
+
+    //Orders held back by producers for lack of credit
+    int getDeferredOrders();
+
+    //Orders dropped because of overload
+    long getShedOrders();
+
+    //Lines with at least one order on them
+    int getBusyProductionLines();
+
+    //Occupied slots per line stage, summed over all lines
+    Map<String, Integer> getBusyStageSlots();
+
+    //Share of the time the production lines had an order on them since the start, 0 to 1
+    double getProductionLineUtilization();
+
+    int getBusyWorkers();
+
+    //Share of the time the workers had an order in hand since the start, 0 to 1
+    double getWorkerBusyRatio();
+
+    long getOrdersCompleted();
+
+    long getStockOuts();
+
+    //Items that ran out at least once
+    Map<String, Long> getStockOutsByItem();
+
+    Map<String, Double> getLatencyP50Millis();
+
+    Map<String, Double> getLatencyP99Millis();
+
+    Map<String, Double> getLatencyMaxMillis();
+}
@@ -0,0 +1,335 @@
+package org.example;
+
+import akka.actor.typed.DispatcherSelector;
+import akka.actor.typed.MailboxSelector;
+import akka.actor.typed.Props;
+import com.typesafe.config.Config;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Topology and timings of the factory, read from the "factory" section of application.conf.
+ * Plant durations are already divided by the configured time scale, except in simulation mode
+ * where they run on a virtual clock anyway.
+ */
+public final class FactorySettings {
+
+    //Range a duration is drawn from uniformly
+    public static final class DurationRange {
+        public final Duration min;
+        public final Duration max;
+
+        public DurationRange(Duration min, Duration max) {
+            if (max.compareTo(min) < 0) {
+                throw new IllegalArgumentException("Duration range max " + max + " is below min " + min);
+            }
+            this.min = min;
+            this.max = max;
+        }
+
+        public Duration sample(SplittableRandom random) {
+            long minNanos = min.toNanos();
+            return Duration.ofNanos(minNanos + random.nextLong(max.toNanos() - minNanos + 1));
+        }
+    }
+
+    //Arrival rate from an offset into the schedule period on
+    public static final class RateStep {
+        public final Duration from;
+        // Orders per second, at the time scale
+        public final double perSecond;
+
+        public RateStep(Duration from, double perSecond) {
+            if (perSecond < 0) {
+                throw new IllegalArgumentException("Arrival rate must not be negative, was " + perSecond);
+            }
+            this.from = from;
+            this.perSecond = perSecond;
+        }
+    }
+
+    public final double timeScale;
+
+    // Seed of the random generator all actors split theirs from
+    public final long randomSeed;
+
+    public final boolean simulation;
+    public final Instant simulationStart;
+    public final Duration simulationDuration;
+
+    // Run as one node of an Akka Cluster, see cluster.conf
+    public final boolean clusterEnabled;
+
+    public final int workers;
+    public final WorkerPool.Strategy workerPoolStrategy;
+    public final int tasksPerWorker;
+    public final int productionLines;
+    public final int storagePartitions;
+
+    public final ItemCatalog catalog;
+    public final int itemsPerOrder;
+
+    public final OrderGenerator.Arrivals orderArrivals;
+    public final Duration orderInterval;
+    // Orders per second at the time scale, for POISSON
+    public final double orderRate;
+    public final List<RateStep> orderSchedule;
+    public final Duration orderSchedulePeriod;
+    public final Path orderTraceFile;
+    public final int orderGenerators;
+    public final OrderGenerator.Overload orderGeneratorOverload;
+    public final int orderGeneratorMaxDeferred;
+    public final int orderBookHighWatermark;
+    public final int orderBookLowWatermark;
+    public final Duration leaseAckTimeout;
+    public final Duration leaseProductionTimeout;
+    public final Duration leaseCheckInterval;
+
+    // Order files and TCP port the orders are ingested from, see OrderIngestion
+    public final List<Path> ingestionFiles;
+    public final int ingestionTcpPort;
+    public final int ingestionBatchSize;
+    public final Duration ingestionPollInterval;
+
+    public final DurationRange bodyBuildTime;
+    public final DurationRange installTime;
+    // Slots per ProductionLine.Stage, by ordinal
+    public final int[] productionLineStageCapacity;
+
+    public final int initialStock;
+    public final int reorderPoint;
+    public final int restockQuantity;
+    public final DurationRange restockTime;
+    public final int reservationBatchSize;
+    public final Duration reservationBatchWindow;
+    public final int kittingLookAhead;
+
+    public final boolean analyticsEnabled;
+    public final Duration analyticsWindow;
+    public final int analyticsBuckets;
+    public final Duration analyticsForecastInterval;
+    public final double analyticsSmoothing;
+    public final Duration analyticsRestockCover;
+    public final double analyticsSafetyFactor;
+
+    public final boolean journalEnabled;
+    public final Path journalDirectory;
+    // The directory is on storage all nodes of the cluster see, required in a cluster
+    public final boolean journalShared;
+    public final Duration journalFlushInterval;
+    public final long journalSnapshotInterval;
+
+    public final int metricsTrackedOrders;
+    public final boolean metricsJmx;
+    public final int metricsHttpPort;
+    public final Duration healthHeartbeatInterval;
+    public final Duration shutdownDrainTimeout;
+    public final Duration statePublishInterval;
+    // Null if no load report is written
+    public final Path loadReportFile;
+
+    public final String orderBookDispatcher;
+    public final String orderGeneratorDispatcher;
+    public final String productionLineDispatcher;
+    public final String workerDispatcher;
+    public final String localStorageDispatcher;
+    public final String ingestionDispatcher;
+    public final String analyticsDispatcher;
+    // Forces the journals to disk, see Journal.flushAsync()
+    public final String journalDispatcher;
+    // Mailbox of the OrderBook, see orderBookProps()
+    public final String orderBookMailbox;
+
+    private FactorySettings(Config config) {
+        simulation = config.getBoolean("simulation.enabled");
+        simulationStart = Instant.parse(config.getString("simulation.start"));
+        simulationDuration = config.getDuration("simulation.duration");
+        clusterEnabled = config.getBoolean("cluster.enabled");
+        if (clusterEnabled && simulation) {
+            throw new IllegalArgumentException("factory.simulation needs a single node, disable factory.cluster");
+        }
+
+        timeScale = simulation ? 1.0 : config.getDouble("time-scale");
+        if (timeScale <= 0) {
+            throw new IllegalArgumentException("factory.time-scale must be positive, was " + timeScale);
+        }
+        randomSeed = config.hasPath("random-seed") ? config.getLong("random-seed") : System.nanoTime();
+
+        workers = config.getInt("workers");
+        workerPoolStrategy = config.getEnum(WorkerPool.Strategy.class, "worker-pool.strategy");
+        tasksPerWorker = config.getInt("worker-pool.tasks-per-worker");
+        productionLines = config.getInt("production-lines");
+        storagePartitions = config.getInt("storage-partitions");
+
+        String catalogFile = config.getString("catalog.file");
+        catalog = ItemCatalog.load(catalogFile.isEmpty() ? null : Path.of(catalogFile));
+        itemsPerOrder = config.getInt("catalog.items-per-order");
+        if (itemsPerOrder < 1 || itemsPerOrder > catalog.size()) {
+            throw new IllegalArgumentException("factory.catalog.items-per-order must be between 1 and the "
+                    + catalog.size() + " items of the catalog, was " + itemsPerOrder);
+        }
+
+        orderArrivals = config.getEnum(OrderGenerator.Arrivals.class, "order-generator.arrivals");
+        orderInterval = scaled(config.getDuration("order-generator.interval"));
+        orderRate = config.getDouble("order-generator.rate") * timeScale;
+        orderSchedulePeriod = scaled(config.getDuration("order-generator.schedule.period"));
+        orderSchedule = new ArrayList<>();
+        for (Config step : config.getConfigList("order-generator.schedule.steps")) {
+            orderSchedule.add(new RateStep(scaled(step.getDuration("from")), step.getDouble("rate") * timeScale));
+        }
+        if (orderArrivals == OrderGenerator.Arrivals.SCHEDULE) {
+            checkSchedule();
+        }
+        String traceFile = config.getString("order-generator.trace-file");
+        orderTraceFile = traceFile.isEmpty() ? null : Path.of(traceFile);
+        if (orderArrivals == OrderGenerator.Arrivals.TRACE && orderTraceFile == null) {
+            throw new IllegalArgumentException("factory.order-generator.trace-file is needed for TRACE arrivals");
+        }
+        orderGenerators = config.getInt("order-generator.generators");
+        if (orderGenerators < 1) {
+            throw new IllegalArgumentException("factory.order-generator.generators must be at least 1");
+        }
+        orderGeneratorOverload = config.getEnum(OrderGenerator.Overload.class, "order-generator.overload");
+        orderGeneratorMaxDeferred = config.getInt("order-generator.max-deferred");
+        orderBookHighWatermark = config.getInt("order-book.high-watermark");
+        orderBookLowWatermark = config.getInt("order-book.low-watermark");
+        if (orderBookLowWatermark < 0 || orderBookLowWatermark >= orderBookHighWatermark) {
+            throw new IllegalArgumentException("factory.order-book.low-watermark must be between 0 and the high watermark "
+                    + orderBookHighWatermark + ", was " + orderBookLowWatermark);
+        }
+        leaseAckTimeout = config.getDuration("order-book.lease.ack-timeout");
+        leaseProductionTimeout = scaled(config.getDuration("order-book.lease.production-timeout"));
+        leaseCheckInterval = config.getDuration("order-book.lease.check-interval");
+        if (leaseCheckInterval.isZero() || leaseCheckInterval.isNegative()) {
+            throw new IllegalArgumentException("factory.order-book.lease.check-interval must be positive");
+        }
+        ingestionFiles = new ArrayList<>();
+        for (String file : config.getStringList("ingestion.files")) {
+            ingestionFiles.add(Path.of(file));
+        }
+        ingestionTcpPort = config.getInt("ingestion.tcp-port");
+        ingestionBatchSize = config.getInt("ingestion.batch-size");
+        if (ingestionBatchSize < 1) {
+            throw new IllegalArgumentException("factory.ingestion.batch-size must be at least 1");
+        }
+        ingestionPollInterval = config.getDuration("ingestion.poll-interval");
+        bodyBuildTime = range(config.getConfig("production-line.body-build-time"));
+        installTime = range(config.getConfig("production-line.install-time"));
+        productionLineStageCapacity = new int[ProductionLine.Stage.values().length];
+        for (ProductionLine.Stage stage : ProductionLine.Stage.values()) {
+            String path = "production-line.stages." + stage.name().toLowerCase().replace('_', '-');
+            productionLineStageCapacity[stage.ordinal()] = config.getInt(path);
+            if (productionLineStageCapacity[stage.ordinal()] < 1) {
+                throw new IllegalArgumentException("factory." + path + " must be at least 1");
+            }
+        }
+
+        initialStock = config.getInt("local-storage.initial-stock");
+        reorderPoint = config.getInt("local-storage.reorder-point");
+        restockQuantity = config.getInt("local-storage.restock-quantity");
+        restockTime = range(config.getConfig("local-storage.restock-time"));
+        reservationBatchSize = config.getInt("local-storage.batching.max-items");
+        reservationBatchWindow = config.getDuration("local-storage.batching.window");
+        if (reservationBatchSize < 1) {
+            throw new IllegalArgumentException("factory.local-storage.batching.max-items must be at least 1");
+        }
+        kittingLookAhead = config.getInt("local-storage.kitting.look-ahead");
+        if (kittingLookAhead < 0) {
+            throw new IllegalArgumentException("factory.local-storage.kitting.look-ahead must not be negative");
+        }
+
+        analyticsEnabled = config.getBoolean("analytics.enabled");
+        analyticsWindow = scaled(config.getDuration("analytics.window"));
+        analyticsBuckets = config.getInt("analytics.buckets");
+        analyticsForecastInterval = scaled(config.getDuration("analytics.forecast-interval"));
+        analyticsSmoothing = config.getDouble("analytics.smoothing");
+        analyticsRestockCover = scaled(config.getDuration("analytics.restock-cover"));
+        analyticsSafetyFactor = config.getDouble("analytics.safety-factor");
+        if (analyticsBuckets < 1 || analyticsWindow.toNanos() < analyticsBuckets) {
+            throw new IllegalArgumentException("factory.analytics.window must be split into at least one bucket");
+        }
+        if (analyticsForecastInterval.isZero() || analyticsForecastInterval.isNegative()) {
+            throw new IllegalArgumentException("factory.analytics.forecast-interval must be positive");
+        }
+        if (analyticsSmoothing <= 0 || analyticsSmoothing > 1) {
+            throw new IllegalArgumentException("factory.analytics.smoothing must be above 0 and at most 1, was "
+                    + analyticsSmoothing);
+        }
+        if (analyticsSafetyFactor < 0) {
+            throw new IllegalArgumentException("factory.analytics.safety-factor must not be negative");
+        }
+
+        journalEnabled = config.getBoolean("journal.enabled");
+        journalDirectory = Path.of(config.getString("journal.directory"));
+        journalShared = config.getBoolean("journal.shared");
+        if (clusterEnabled && journalEnabled && !journalShared) {
+            // The OrderBook and the storage partitions move between nodes and recover from their journal
+            throw new IllegalArgumentException("factory.cluster needs factory.journal.directory on storage all nodes "
+                    + "share, set factory.journal.shared once it is or disable factory.journal");
+        }
+        journalFlushInterval = config.getDuration("journal.flush-interval");
+        journalSnapshotInterval = config.getLong("journal.snapshot-interval");
+
+        metricsTrackedOrders = config.getInt("metrics.tracked-orders");
+        metricsJmx = config.getBoolean("metrics.jmx");
+        metricsHttpPort = config.getInt("metrics.http-port");
+        healthHeartbeatInterval = config.getDuration("health.heartbeat-interval");
+        shutdownDrainTimeout = config.getDuration("shutdown.drain-timeout");
+        statePublishInterval = config.getDuration("state.publish-interval");
+        String reportFile = config.getString("load.report-file");
+        loadReportFile = reportFile.isEmpty() ? null : Path.of(reportFile);
+
+        orderBookDispatcher = config.getString("dispatchers.order-book");
+        orderGeneratorDispatcher = config.getString("dispatchers.order-generator");
+        productionLineDispatcher = config.getString("dispatchers.production-line");
+        workerDispatcher = config.getString("dispatchers.worker");
+        localStorageDispatcher = config.getString("dispatchers.local-storage");
+        ingestionDispatcher = config.getString("dispatchers.ingestion");
+        analyticsDispatcher = config.getString("dispatchers.analytics");
+        journalDispatcher = config.getString("dispatchers.journal");
+        orderBookMailbox = config.getString("order-book-mailbox");
+    }
+
+    /**
+     * Reads the settings
+     * @param config The "factory" section of the configuration
+     */
+    public static FactorySettings fromConfig(Config config) {
+        return new FactorySettings(config);
+    }
+
+    //Props of the OrderBook: its dispatcher and the mailbox that bounds the orders waiting in it
+    public Props orderBookProps() {
+        return DispatcherSelector.fromConfig(orderBookDispatcher)
+                .withNext(MailboxSelector.fromConfig(orderBookMailbox));
+    }
+
+    //Converts a plant duration to the time it takes at the configured time scale
+    public Duration scaled(Duration duration) {
+        return Duration.ofNanos((long) (duration.toNanos() / timeScale));
+    }
+
+    //Steps must start at 0, ascend and lie within the period
+    private void checkSchedule() {
+        if (orderSchedule.isEmpty() || !orderSchedule.get(0).from.isZero()) {
+            throw new IllegalArgumentException("factory.order-generator.schedule.steps must start from 0");
+        }
+        for (int i = 1; i < orderSchedule.size(); i++) {
+            Duration from = orderSchedule.get(i).from;
+            if (from.compareTo(orderSchedule.get(i - 1).from) <= 0
+                    || (!orderSchedulePeriod.isZero() && from.compareTo(orderSchedulePeriod) >= 0)) {
+                throw new IllegalArgumentException("factory.order-generator.schedule.steps must ascend within the period, "
+                        + "step " + (i + 1) + " does not");
+            }
+        }
+    }
+
+    private DurationRange range(Config config) {
+        return new DurationRange(scaled(config.getDuration("min")), scaled(config.getDuration("max")));
+    }
+}
@@ -0,0 +1,107 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The special items an order can ask for, loaded once at startup.
+ *
+ * Items are referred to by their numeric id everywhere in the plant, names are only looked up
+ * for logs and metrics. Ids are dense from 0, so the stock of an item can live at its id in a
+ * plain array. The catalog is read from a CSV file with one "id,name" line per item, lines
+ * starting with '#' are comments.
+ */
+public final class ItemCatalog {
+
+    // Catalog shipped with the plant, used when factory.catalog.file is empty
+    static final String DEFAULT_RESOURCE = "catalog.csv";
+
+    private final String[] names;
+
+    private ItemCatalog(String[] names) {
+        this.names = names;
+    }
+
+    /**
+     * Loads the catalog
+     * @param file CSV file of the catalog, the bundled catalog.csv if null
+     */
+    public static ItemCatalog load(Path file) {
+        if (file != null) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                return parse(reader, file.toString());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read item catalog " + file, e);
+            }
+        }
+        InputStream resource = ItemCatalog.class.getClassLoader().getResourceAsStream(DEFAULT_RESOURCE);
+        if (resource == null) {
+            throw new IllegalStateException("Item catalog " + DEFAULT_RESOURCE + " not found on the classpath");
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(resource, StandardCharsets.UTF_8))) {
+            return parse(reader, DEFAULT_RESOURCE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read item catalog " + DEFAULT_RESOURCE, e);
+        }
+    }
+
+    //Catalog of the given items, the index is the id
+    static ItemCatalog of(String... names) {
+        if (names.length == 0) {
+            throw new IllegalArgumentException("Item catalog is empty");
+        }
+        return new ItemCatalog(names.clone());
+    }
+
+    private static ItemCatalog parse(BufferedReader reader, String source) throws IOException {
+        List<String> names = new ArrayList<>();
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int comma = line.indexOf(',');
+            int id;
+            try {
+                id = comma < 0 ? -1 : Integer.parseInt(line.substring(0, comma).trim());
+            } catch (NumberFormatException e) {
+                id = -1;
+            }
+            if (id < 0) {
+                throw new IllegalArgumentException(source + ":" + lineNumber + ": expected \"id,name\", was " + line);
+            }
+            while (names.size() <= id) {
+                names.add(null);
+            }
+            if (names.get(id) != null) {
+                throw new IllegalArgumentException(source + ":" + lineNumber + ": duplicate item id " + id);
+            }
+            names.set(id, line.substring(comma + 1).trim());
+        }
+        int missing = names.indexOf(null);
+        if (missing >= 0) {
+            throw new IllegalArgumentException(source + ": item ids must be dense from 0, " + missing + " is missing");
+        }
+        return of(names.toArray(new String[0]));
+    }
+
+    //Number of items, ids go from 0 to size - 1
+    public int size() {
+        return names.length;
+    }
+
+    public String name(int item) {
+        return names[item];
+    }
+}
@@ -0,0 +1,372 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only event journal on local disk, owned by a single actor.
+ *
+ * Events are fixed size records written through a FileChannel into numbered segment files.
+ * Appends only go to an in-memory buffer, {@link #flush()} writes and forces everything appended
+ * since the last flush in one go (group commit). {@link #flushAsync()} only writes on the calling
+ * actor and leaves the force to the executor given to {@link #open(Path, Appender, Executor)}, so
+ * the actor does not wait for the disk on every group commit. A snapshot stores the events that rebuild the
+ * current state, after which all older segments are deleted, so recovery only has to replay the
+ * latest snapshot and the segments written after it.
+ *
+ * Record layout: type, a, b (int), c, d (long), CRC32C of the preceding bytes (int).
+ * A torn or corrupt record in a segment ends the replay: the segment is cut off there and all later
+ * segments are deleted, since their events may depend on the lost ones. A snapshot is written to a
+ * temporary file and only renamed once forced, so a corrupt snapshot fails the recovery instead.
+ *
+ * A {@link #disabled()} journal accepts all calls and writes nothing, e.g. for simulations.
+ */
+final class Journal implements AutoCloseable {
+
+    //Receives events, both when replaying and when writing a snapshot
+    interface Appender {
+        void append(int type, int a, int b, long c, long d);
+    }
+
+    static final int RECORD_SIZE = 32;
+    private static final int PAYLOAD_SIZE = 28;
+    private static final int BUFFER_SIZE = RECORD_SIZE * 4096;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+
+    private final Path directory;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CRC32C crc = new CRC32C();
+    private FileChannel segment;
+    private long segmentNumber;
+    private long replayedEvents;
+    private long eventsSinceSnapshot;
+    private boolean dirty;
+    // Written since the last force, and the force running in the background
+    private boolean unforced;
+    private final Executor forceExecutor;
+    private CompletableFuture<Void> forcing = CompletableFuture.completedFuture(null);
+
+    private Journal(Path directory, Executor forceExecutor) {
+        this.directory = directory;
+        this.forceExecutor = forceExecutor;
+    }
+
+    /**
+     * Opens the journal in the given directory and replays its content
+     * @param directory Directory holding the segments and snapshots, created if missing
+     * @param replay Receives every recovered event in order
+     */
+    static Journal open(Path directory, Appender replay) {
+        return open(directory, replay, null);
+    }
+
+    /**
+     * Opens the journal in the given directory and replays its content
+     * @param directory Directory holding the segments and snapshots, created if missing
+     * @param replay Receives every recovered event in order
+     * @param forceExecutor Runs the forces of {@link #flushAsync()}, null to force on the caller
+     */
+    static Journal open(Path directory, Appender replay, Executor forceExecutor) {
+        Journal journal = new Journal(directory, forceExecutor);
+        try {
+            Files.createDirectories(directory);
+            journal.recover(replay);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open journal " + directory, e);
+        }
+        return journal;
+    }
+
+    //A journal that keeps nothing
+    static Journal disabled() {
+        return new Journal(null, null);
+    }
+
+    boolean isEnabled() {
+        return directory != null;
+    }
+
+    //Number of events recovered when the journal was opened
+    long replayedEvents() {
+        return replayedEvents;
+    }
+
+    //Number of events appended since the last snapshot, including the replayed ones
+    long eventsSinceSnapshot() {
+        return eventsSinceSnapshot;
+    }
+
+    void append(int type, int a, int b, long c, long d) {
+        if (directory == null) {
+            return;
+        }
+        if (buffer.remaining() < RECORD_SIZE) {
+            writeBuffer();
+        }
+        putRecord(buffer, type, a, b, c, d);
+        eventsSinceSnapshot++;
+        dirty = true;
+    }
+
+    //Writes all buffered events and forces them to disk
+    void flush() {
+        write();
+        awaitForce();
+        if (unforced) {
+            unforced = false;
+            force(segment);
+        }
+    }
+
+    /**
+     * Writes all buffered events and forces them to disk in the background. While a force is
+     * running the events are only written, the next call forces them. A failed force is thrown
+     * by the next call.
+     */
+    void flushAsync() {
+        if (forceExecutor == null) {
+            flush();
+            return;
+        }
+        write();
+        if (!unforced || !forcing.isDone()) {
+            return;
+        }
+        awaitForce();
+        unforced = false;
+        FileChannel channel = segment;
+        forcing = CompletableFuture.runAsync(() -> force(channel), forceExecutor);
+    }
+
+    private void write() {
+        if (dirty) {
+            writeBuffer();
+            dirty = false;
+        }
+    }
+
+    private void force(FileChannel channel) {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not force journal " + directory, e);
+        }
+    }
+
+    private void awaitForce() {
+        try {
+            forcing.join();
+        } catch (CompletionException e) {
+            forcing = CompletableFuture.completedFuture(null);
+            throw e.getCause() instanceof UncheckedIOException ? (UncheckedIOException) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Writes a snapshot and deletes everything it replaces
+     * @param state Appends the events that rebuild the current state
+     */
+    void snapshot(Consumer<Appender> state) {
+        if (directory == null) {
+            return;
+        }
+        flush();
+        try {
+            segment.close();
+            long snapshotNumber = segmentNumber + 1;
+            writeSnapshot(snapshotNumber, state);
+            openSegment(snapshotNumber);
+            deleteBefore(snapshotNumber);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not snapshot journal " + directory, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (directory == null) {
+            return;
+        }
+        flush();
+        try {
+            segment.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not close journal " + directory, e);
+        }
+    }
+
+    private void recover(Appender replay) throws IOException {
+        List<Long> snapshots = list(SNAPSHOT_PREFIX);
+        List<Long> segments = list(SEGMENT_PREFIX);
+
+        long firstSegment = 0;
+        if (!snapshots.isEmpty()) {
+            firstSegment = snapshots.get(snapshots.size() - 1);
+            replayedEvents = replayFile(file(SNAPSHOT_PREFIX, firstSegment), replay, false);
+        }
+
+        long lastSegment = firstSegment - 1;
+        boolean cutOff = false;
+        for (long number : segments) {
+            if (number < firstSegment) {
+                continue;
+            }
+            Path file = file(SEGMENT_PREFIX, number);
+            if (cutOff) {
+                Files.delete(file);
+                continue;
+            }
+            long size = Files.size(file);
+            long events = replayFile(file, replay, true);
+            eventsSinceSnapshot += events;
+            lastSegment = number;
+            cutOff = events * RECORD_SIZE < size;
+        }
+        replayedEvents += eventsSinceSnapshot;
+
+        // Never append to a recovered segment, its tail may just have been cut off
+        openSegment(Math.max(lastSegment + 1, firstSegment));
+    }
+
+    private long replayFile(Path file, Appender replay, boolean truncateTail) throws IOException {
+        long events = 0;
+        long validBytes = 0;
+        ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            boolean corrupt = false;
+            while (!corrupt && channel.read(readBuffer) > 0) {
+                readBuffer.flip();
+                while (readBuffer.remaining() >= RECORD_SIZE) {
+                    int start = readBuffer.position();
+                    int type = readBuffer.getInt();
+                    int a = readBuffer.getInt();
+                    int b = readBuffer.getInt();
+                    long c = readBuffer.getLong();
+                    long d = readBuffer.getLong();
+                    int checksum = readBuffer.getInt();
+                    if (checksum != checksum(readBuffer, start)) {
+                        corrupt = true;
+                        break;
+                    }
+                    replay.append(type, a, b, c, d);
+                    validBytes += RECORD_SIZE;
+                    events++;
+                }
+                readBuffer.compact();
+            }
+            if (validBytes < channel.size()) {
+                if (!truncateTail) {
+                    throw new IOException("Corrupt record at byte " + validBytes + " of " + file);
+                }
+                channel.truncate(validBytes);
+            }
+        }
+        return events;
+    }
+
+    private void writeSnapshot(long number, Consumer<Appender> state) throws IOException {
+        Path temp = directory.resolve(SNAPSHOT_PREFIX + "tmp");
+        ByteBuffer snapshotBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            state.accept((type, a, b, c, d) -> {
+                if (snapshotBuffer.remaining() < RECORD_SIZE) {
+                    try {
+                        writeFully(channel, snapshotBuffer);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Could not write snapshot " + temp, e);
+                    }
+                }
+                putRecord(snapshotBuffer, type, a, b, c, d);
+            });
+            writeFully(channel, snapshotBuffer);
+            channel.force(true);
+        }
+        Files.move(temp, file(SNAPSHOT_PREFIX, number), StandardCopyOption.ATOMIC_MOVE);
+        eventsSinceSnapshot = 0;
+    }
+
+    private void putRecord(ByteBuffer target, int type, int a, int b, long c, long d) {
+        int start = target.position();
+        target.putInt(type).putInt(a).putInt(b).putLong(c).putLong(d);
+        target.putInt(checksum(target, start));
+    }
+
+    // CRC32C over the payload that starts at the given position and ends at the current one
+    private int checksum(ByteBuffer source, int start) {
+        int position = source.position();
+        int limit = source.limit();
+        source.limit(start + PAYLOAD_SIZE).position(start);
+        crc.reset();
+        crc.update(source);
+        source.limit(limit).position(position);
+        return (int) crc.getValue();
+    }
+
+    private void writeBuffer() {
+        unforced = true;
+        try {
+            writeFully(segment, buffer);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write journal " + directory, e);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer source) throws IOException {
+        source.flip();
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+        source.clear();
+    }
+
+    private void openSegment(long number) throws IOException {
+        segmentNumber = number;
+        segment = FileChannel.open(file(SEGMENT_PREFIX, number), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void deleteBefore(long number) throws IOException {
+        for (long segmentNumber : list(SEGMENT_PREFIX)) {
+            if (segmentNumber < number) {
+                Files.delete(file(SEGMENT_PREFIX, segmentNumber));
+            }
+        }
+        for (long snapshotNumber : list(SNAPSHOT_PREFIX)) {
+            if (snapshotNumber < number) {
+                Files.delete(file(SNAPSHOT_PREFIX, snapshotNumber));
+            }
+        }
+    }
+
+    private Path file(String prefix, long number) {
+        return directory.resolve(String.format("%s%016d", prefix, number));
+    }
+
+    // Numbers of all files with the given prefix, ascending
+    private List<Long> list(String prefix) throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(prefix) && !name.endsWith("tmp"))
+                    .forEach(name -> numbers.add(Long.parseLong(name.substring(prefix.length()))));
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+}
@@ -0,0 +1,57 @@
+package org.example;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * One CSV row per run of the plant: the offered load, the throughput it achieved and the order
+ * latencies, written to factory.load.report-file when the plant stops taking orders. Rows of runs
+ * at increasing rates make up the throughput-latency curve of a topology, see {@link LoadSweep}.
+ *
+ * Times are on the plant clock. Latencies count from the intended arrival of an order, orders that
+ * were still deferred or pending at the end are not in them but in their own columns.
+ */
+final class LoadReport {
+
+    static final String HEADER = "arrivals,generators,production_lines,workers,elapsed_s,offered_per_s,"
+            + "throughput_per_s,arrived,completed,shed,deferred,pending,"
+            + "latency_p50_s,latency_p90_s,latency_p99_s,latency_p999_s,latency_max_s";
+
+    // Columns read back by LoadSweep
+    static final int OFFERED_PER_S = 5;
+    static final int THROUGHPUT_PER_S = 6;
+    static final int LATENCY_P99_S = 15;
+
+    private LoadReport() {
+    }
+
+    //Appends the row of this run, the header first if the file is new
+    static void append(Path file, FactorySettings settings, FactoryMetrics metrics) {
+        double elapsed = metrics.elapsedNanos() / 1e9;
+        Histogram latency = metrics.latencies()[metrics.latencies().length - 1].histogram();
+        String row = String.format(Locale.ROOT, "%s,%d,%d,%d,%.3f,%.6f,%.6f,%d,%d,%d,%d,%d,%.6f,%.6f,%.6f,%.6f,%.6f%n",
+                settings.orderArrivals, settings.orderGenerators, settings.productionLines, settings.workers,
+                elapsed, metrics.arrivedOrders() / elapsed, metrics.getOrdersCompleted() / elapsed,
+                metrics.arrivedOrders(), metrics.getOrdersCompleted(), metrics.getShedOrders(),
+                metrics.getDeferredOrders(), metrics.getQueueDepth(),
+                latency.getValueAtPercentile(50) / 1e9, latency.getValueAtPercentile(90) / 1e9,
+                latency.getValueAtPercentile(99) / 1e9, latency.getValueAtPercentile(99.9) / 1e9,
+                latency.getMaxValue() / 1e9);
+        try {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            String text = Files.exists(file) ? row : HEADER + System.lineSeparator() + row;
+            Files.write(file, text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write the load report " + file, e);
+        }
+    }
+}
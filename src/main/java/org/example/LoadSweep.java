@@ -0,0 +1,69 @@
+package org.example;
+
+import akka.actor.typed.ActorSystem;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Finds the saturation point of a topology: runs the simulation once per arrival rate with Poisson
+ * arrivals and appends a {@link LoadReport} row per run, which together make up the
+ * throughput-latency curve.
+ *
+ *   LoadSweep report.csv rate...
+ *
+ * Rates are orders per second of plant time. Topology and simulated duration come from
+ * simulation.conf and may be overridden with -Dfactory... system properties. The plant is saturated
+ * from the first rate whose throughput falls more than 5% short of the offered load.
+ */
+public class LoadSweep {
+
+    private static final double SATURATED = 0.95;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: LoadSweep <report.csv> <rate>...");
+            System.exit(1);
+        }
+        Path report = Path.of(args[0]).toAbsolutePath();
+        int previousRows = Files.exists(report) ? Files.readAllLines(report).size() : 0;
+
+        for (int i = 1; i < args.length; i++) {
+            double rate = Double.parseDouble(args[i]);
+            Config config = ConfigFactory.parseString(
+                    "factory.order-generator.arrivals = POISSON\n"
+                            + "factory.order-generator.rate = " + rate + "\n"
+                            + "factory.load.report-file = \"" + report.toString().replace("\\", "\\\\") + "\"\n"
+                            + "factory.metrics.http-port = 0\n"
+                            + "factory.metrics.jmx = off\n")
+                    .withFallback(ConfigFactory.load("simulation"));
+            System.out.printf("Offering %s orders/s%n", rate);
+            ActorSystem<AkkaMainSystem.Command> system =
+                    ActorSystem.create(AkkaMainSystem.create(), "carFactorySystem", config);
+            system.tell(new AkkaMainSystem.Create());
+            system.getWhenTerminated().toCompletableFuture().join();
+        }
+
+        // The rows of this sweep, after the header of a new file
+        List<String> lines = Files.readAllLines(report);
+        List<String> rows = lines.subList(Math.max(1, previousRows), lines.size());
+        System.out.printf("%n%12s %12s %12s%n", "offered/s", "completed/s", "p99 s");
+        String saturation = null;
+        for (String row : rows) {
+            String[] columns = row.split(",");
+            double offered = Double.parseDouble(columns[LoadReport.OFFERED_PER_S]);
+            double throughput = Double.parseDouble(columns[LoadReport.THROUGHPUT_PER_S]);
+            System.out.printf("%12.4f %12.4f %12.3f%n", offered, throughput,
+                    Double.parseDouble(columns[LoadReport.LATENCY_P99_S]));
+            if (saturation == null && throughput < offered * SATURATED) {
+                saturation = String.format("Saturated at %.4f orders/s offered, %.4f completed", offered, throughput);
+            }
+        }
+        System.out.println(saturation != null ? saturation : "Not saturated up to the highest rate");
+        System.out.println("Curve written to " + report);
+    }
+}
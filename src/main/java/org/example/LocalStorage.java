@@ -1,128 +1,670 @@
 package org.example;
 
 import akka.actor.typed.Behavior;
+import akka.actor.typed.DispatcherSelector;
+import akka.actor.typed.PostStop;
 import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import org.slf4j.Logger;
 
-import java.time.Duration;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.SplittableRandom;
 
+/**
+ * One partition of the parts storage. Each partition owns the stock of a subset of the catalog items,
+ * see {@link StoragePartitions}. Items are handed out in two phases: a reservation takes a unit
+ * out of the available stock, the commit consumes it and a release puts it back.
+ *
+ * Reservations and commits arrive in batches collected by the {@link ReservationBatcher} in front
+ * of the partition, and the partition answers each reservation batch with one result. The items
+ * one order reserves in this partition are granted together or not at all, so an order never holds
+ * stock another one could use while it waits for a restock of a different item.
+ *
+ * Granted units stay reserved for their worker until it commits them. A fetch that is called off or
+ * whose worker failed is withdrawn with {@link CancelReserve}: what was granted goes back to the
+ * stock and a reservation still waiting for a restock is dropped, so it is never granted to a worker
+ * that no longer waits for it.
+ *
+ * Stock is kept in primitive arrays indexed by the slot of the item within the partition,
+ * handling a batch does not allocate per item unless a reservation has to wait.
+ *
+ * When and how much of an item is restocked follows the {@link RestockPolicy} the
+ * {@link DemandAnalytics} forecasts from the consumption the partition reports to it.
+ */
 public class LocalStorage extends AbstractBehavior<LocalStorage.Command> {
 
-    public interface Command {}
+    public interface Command extends CborSerializable {}
 
-     //Message requesting special items for a car order
-    public static final class RequestSpecialItems implements Command {
+    /**
+     * Message reserving one unit of a catalog item for each entry, attempts[i] of orderNumbers[i] wants
+     * items[i] for workers[i]. Consecutive entries of the same attempt are reserved all or nothing.
+     * Answered with one {@link ReservationBatcher.ReservationResult} for the whole batch, reservations
+     * that had to wait for a restock are reported straight to their worker once they are granted.
+     */
+    public static final class ReserveBatch implements Command {
+        public final int[] orderNumbers;
+        public final int[] attempts;
+        public final int[] items;
+        public final akka.actor.typed.ActorRef<Worker.Command>[] workers;
+        public final akka.actor.typed.ActorRef<ReservationBatcher.Command> replyTo;
+
+        public ReserveBatch(int[] orderNumbers, int[] attempts, int[] items,
+                            akka.actor.typed.ActorRef<Worker.Command>[] workers,
+                            akka.actor.typed.ActorRef<ReservationBatcher.Command> replyTo) {
+            this.orderNumbers = orderNumbers;
+            this.attempts = attempts;
+            this.items = items;
+            this.workers = workers;
+            this.replyTo = replyTo;
+        }
+    }
+
+    //Message consuming one reserved unit for each entry, attempts[i] of orderNumbers[i] consumes items[i]
+    public static final class CommitBatch implements Command {
+        public final int[] orderNumbers;
+        public final int[] attempts;
+        public final int[] items;
+
+        public CommitBatch(int[] orderNumbers, int[] attempts, int[] items) {
+            this.orderNumbers = orderNumbers;
+            this.attempts = attempts;
+            this.items = items;
+        }
+    }
+
+    /**
+     * Message withdrawing the reservation the worker made for an attempt of an order: granted units go
+     * back to the stock, a reservation waiting for a restock is dropped. Sent when the fetch was called
+     * off or its worker failed
+     */
+    public static final class CancelReserve implements Command {
         public final int orderNumber;
+        public final int attempt;
         public final akka.actor.typed.ActorRef<Worker.Command> worker;
-        public final akka.actor.typed.ActorRef<ProductionLine.Command> productionLine;
 
-        public RequestSpecialItems(int orderNumber,
-                                   akka.actor.typed.ActorRef<Worker.Command> worker,
-                                   akka.actor.typed.ActorRef<ProductionLine.Command> productionLine) {
+        public CancelReserve(int orderNumber, int attempt, akka.actor.typed.ActorRef<Worker.Command> worker) {
             this.orderNumber = orderNumber;
+            this.attempt = attempt;
             this.worker = worker;
-            this.productionLine = productionLine;
         }
     }
 
-    //Message indicating restocking has been completed
+    //Message indicating restocking of an item has been completed
     public static final class RestockCompleted implements Command {
-        public final String[] itemNames;
+        public final int item;
+        // Units ordered with the restock
+        public final int quantity;
 
-        public RestockCompleted(String[] itemNames) {
-            this.itemNames = itemNames;
+        public RestockCompleted(int item, int quantity) {
+            this.item = item;
+            this.quantity = quantity;
+        }
+    }
+
+    //Message from the DemandAnalytics: reorder point and restock quantity of each item, by slot
+    public static final class RestockPolicy implements Command {
+        public final int[] reorderPoints;
+        public final int[] restockQuantities;
+
+        public RestockPolicy(int[] reorderPoints, int[] restockQuantities) {
+            this.reorderPoints = reorderPoints;
+            this.restockQuantities = restockQuantities;
+        }
+    }
+
+    /**
+     * Message staging a kit for a queued order: one unit of each item is reserved ahead of time if
+     * all of them are available, or as soon as they are restocked. The kit is handed over when the
+     * worker of the order reserves the same items.
+     */
+    public static final class StageKit implements Command {
+        public final int orderNumber;
+        public final int[] items;
+
+        public StageKit(int orderNumber, int[] items) {
+            this.orderNumber = orderNumber;
+            this.items = items;
+        }
+    }
+
+    //Message returning the units of a kit whose order left the look-ahead window before it was dispatched
+    public static final class ReleaseKit implements Command {
+        public final int orderNumber;
+
+        @JsonCreator
+        public ReleaseKit(int orderNumber) {
+            this.orderNumber = orderNumber;
+        }
+    }
+
+    //Message to write the journal to disk (group commit)
+    private static final class FlushJournal implements Command {}
+
+    //Message to publish the stock of the partition to the PlantState read model
+    private static final class PublishState implements Command {}
+
+    //The items of an order waiting for a restock, queued at the item that holds them up
+    private static final class Backorder {
+        final int orderNumber;
+        final int attempt;
+        final int[] items;
+        final akka.actor.typed.ActorRef<Worker.Command> worker;
+
+        Backorder(int orderNumber, int attempt, int[] items, akka.actor.typed.ActorRef<Worker.Command> worker) {
+            this.orderNumber = orderNumber;
+            this.attempt = attempt;
+            this.items = items;
+            this.worker = worker;
+        }
+    }
+
+    //Units granted to a worker that it has not committed yet
+    private static final class Hold {
+        final int[] items;
+        final akka.actor.typed.ActorRef<Worker.Command> worker;
+
+        Hold(int[] items, akka.actor.typed.ActorRef<Worker.Command> worker) {
+            this.items = items;
+            this.worker = worker;
         }
     }
 
-    // Available special features in the system
-    private static final String[] SPECIAL_ITEMS = {
-            "Ledersitze", "Klimaautomatik", "Elektrische Fensterheber", "Automatikgetriebe"
-    };
+    // Journal event types, a is the catalog item
+    private static final int INVENTORY_SET = 1;
+    private static final int INVENTORY_DELTA = 2;
 
-    // Factory method to create storage actor
-    public static Behavior<Command> create() {
-        return Behaviors.setup(context -> new LocalStorage(context));
+    /**
+     * Factory method to create a storage partition
+     * @param partitions Partitioning of the items, the partition only owns the items mapped to it
+     * @param partition Index of this partition
+     * @param settings Item catalog, stock levels and restock timings
+     * @param clock Clock the restocks run on
+     * @param metrics Receives the stock-outs
+     * @param analytics Receives the consumption and sends the restock policy, null to restock as configured
+     * @param random Source of the restock times
+     * @param journalDirectory Directory of the journal, the inventory is recovered from it
+     */
+    public static Behavior<Command> create(StoragePartitions partitions, int partition,
+                                           FactorySettings settings, FactoryClock clock, FactoryMetrics metrics,
+                                           akka.actor.typed.ActorRef<DemandAnalytics.Command> analytics,
+                                           SplittableRandom random, Path journalDirectory) {
+        return Behaviors.setup(context -> Behaviors.withTimers(timers ->
+                new LocalStorage(context, timers, partitions, partition, settings, clock, metrics, analytics,
+                        random, journalDirectory)));
     }
 
-    private final Map<String, Integer> inventory = new HashMap<>();
     private final ActorContext<Command> context;
+    private final StoragePartitions partitions;
+    private final int partition;
+    private final FactorySettings settings;
+    private final FactoryClock clock;
+    private final FactoryMetrics metrics;
+    private final akka.actor.typed.ActorRef<DemandAnalytics.Command> analytics;
+    private final SplittableRandom random;
+    private final Journal journal;
+    private final Logger log;
 
-    //Constructor that initializes inventory
-    private LocalStorage(ActorContext<Command> context) {
+    // Per slot (see StoragePartitions.slotOf): stock on hand, reserved units that are still part of it
+    // until they are committed, whether a restock is on its way and the reservations waiting for stock
+    private final int[] stock;
+    private final int[] reserved;
+    private final boolean[] restocking;
+    private final Deque<Backorder>[] backorders;
+    // Per slot restock policy, as configured until the DemandAnalytics sends its own
+    private int[] reorderPoints;
+    private int[] restockQuantities;
+
+    // Kits by order number, their units count as reserved. Kits are not journaled, a restarted
+    // partition has none and the workers reserve the items as if there never were any
+    private final Map<Integer, int[]> kits = new LinkedHashMap<>();
+    // Kits that wait for stock, in the order they were asked for; real reservations go first
+    private final Map<Integer, int[]> wantedKits = new LinkedHashMap<>();
+    // Granted reservations by WorkerPool.taskKey until they are committed or cancelled. Not journaled
+    // either, a restarted partition has no reserved units
+    private final Map<Long, Hold> holds = new HashMap<>();
+
+    //Constructor that recovers or initializes inventory
+    @SuppressWarnings("unchecked")
+    private LocalStorage(ActorContext<Command> context, TimerScheduler<Command> timers,
+                         StoragePartitions partitions, int partition,
+                         FactorySettings settings, FactoryClock clock, FactoryMetrics metrics,
+                         akka.actor.typed.ActorRef<DemandAnalytics.Command> analytics,
+                         SplittableRandom random, Path journalDirectory) {
         super(context);
         this.context = context;
+        this.partitions = partitions;
+        this.partition = partition;
+        this.settings = settings;
+        this.clock = clock;
+        this.metrics = metrics;
+        this.analytics = analytics;
+        this.log = context.getLog();
+        this.random = random;
+
+        int slots = partitions.itemsOf(partition, settings.catalog.size());
+        stock = new int[slots];
+        reserved = new int[slots];
+        restocking = new boolean[slots];
+        // Queues are only created for items that run out
+        backorders = new Deque[slots];
+        reorderPoints = new int[slots];
+        restockQuantities = new int[slots];
+        Arrays.fill(reorderPoints, settings.reorderPoint);
+        Arrays.fill(restockQuantities, settings.restockQuantity);
 
-        // Initialize with 4 units of each special item
-        for (String item : SPECIAL_ITEMS) {
-            inventory.put(item, 4);
+        // Group commits are forced on the journal dispatcher, the actor only writes
+        journal = settings.journalEnabled
+                ? Journal.open(journalDirectory, this::replay, context.getSystem().dispatchers()
+                        .lookup(DispatcherSelector.fromConfig(settings.journalDispatcher)))
+                : Journal.disabled();
+        if (journal.replayedEvents() == 0) {
+            // Initialize with the initial stock of each item of this partition
+            for (int slot = 0; slot < slots; slot++) {
+                stock[slot] = settings.initialStock;
+                journal.append(INVENTORY_SET, partitions.itemAt(partition, slot), settings.initialStock, 0, 0);
+            }
+            journal.flush();
+        } else {
+            long units = 0;
+            for (int quantity : stock) {
+                units += quantity;
+            }
+            context.getLog().info("Inventory of {} items recovered, {} units in stock", slots, units);
+            for (int slot = 0; slot < slots; slot++) {
+                restockIfLow(partitions.itemAt(partition, slot));
+            }
+        }
+        if (journal.isEnabled()) {
+            timers.startTimerWithFixedDelay(new FlushJournal(), settings.journalFlushInterval);
+        }
+        if (!settings.statePublishInterval.isZero()) {
+            timers.startTimerWithFixedDelay(new PublishState(), settings.statePublishInterval);
+        }
+        if (analytics != null) {
+            int[] items = new int[slots];
+            for (int slot = 0; slot < slots; slot++) {
+                items[slot] = partitions.itemAt(partition, slot);
+            }
+            analytics.tell(new DemandAnalytics.RegisterPartition(partition, items, context.getSelf()));
         }
     }
 
     @Override
     public Receive<Command> createReceive() {
         return newReceiveBuilder()
-                .onMessage(RequestSpecialItems.class, this::onRequestSpecialItems)
+                .onMessage(ReserveBatch.class, this::onReserveBatch)
+                .onMessage(CommitBatch.class, this::onCommitBatch)
+                .onMessage(CancelReserve.class, this::onCancelReserve)
+                .onMessage(StageKit.class, this::onStageKit)
+                .onMessage(ReleaseKit.class, this::onReleaseKit)
                 .onMessage(RestockCompleted.class, this::onRestockCompleted)
+                .onMessage(RestockPolicy.class, this::onRestockPolicy)
+                .onMessage(FlushJournal.class, this::onFlushJournal)
+                .onMessage(PublishState.class, this::onPublishState)
+                .onSignal(PostStop.class, signal -> onPostStop())
                 .build();
     }
 
-    //Handles requests for special items from workers
-    private Behavior<Command> onRequestSpecialItems(RequestSpecialItems msg) {
+    //Handles a batch of reservations, backorders the orders of which any item is not available
+    private Behavior<Command> onReserveBatch(ReserveBatch msg) {
+        int entries = msg.items.length;
+        boolean[] granted = new boolean[entries];
+        for (int from = 0, to; from < entries; from = to) {
+            int orderNumber = msg.orderNumbers[from];
+            to = from + 1;
+            while (to < entries && msg.orderNumbers[to] == orderNumber && msg.attempts[to] == msg.attempts[from]) {
+                to++;
+            }
 
-        // Randomly select two distinct special items
-        String item1 = SPECIAL_ITEMS[ThreadLocalRandom.current().nextInt(SPECIAL_ITEMS.length)];
-        String item2;
-        do {
-            item2 = SPECIAL_ITEMS[ThreadLocalRandom.current().nextInt(SPECIAL_ITEMS.length)];
-        } while (item2.equals(item1));
+            wantedKits.remove(orderNumber);
+            int[] kit = kits.remove(orderNumber);
+            if (kit != null) {
+                if (isKitFor(kit, msg.items, from, to)) {
+                    // Reserved when the kit was staged
+                    Arrays.fill(granted, from, to, true);
+                    hold(orderNumber, msg.attempts[from], kit, msg.workers[from]);
+                    metrics.kitUsed();
+                    continue;
+                }
+                unstage(kit);
+            }
 
-        boolean allAvailable = true;
-        String[] requestedItems = {item1, item2};
+            int blocking = blocking(msg.items, from, to, -1);
+            while (blocking >= 0 && reclaimKit(msg.items[blocking])) {
+                blocking = blocking(msg.items, from, to, -1);
+            }
+            if (blocking < 0) {
+                for (int i = from; i < to; i++) {
+                    grant(msg.items[i], orderNumber);
+                    granted[i] = true;
+                }
+                hold(orderNumber, msg.attempts[from], Arrays.copyOfRange(msg.items, from, to), msg.workers[from]);
+            } else {
+                metrics.stockOut(msg.items[blocking]);
+                backorder(new Backorder(orderNumber, msg.attempts[from], Arrays.copyOfRange(msg.items, from, to),
+                        msg.workers[from]), msg.items[blocking]);
+            }
+        }
+        msg.replyTo.tell(new ReservationBatcher.ReservationResult(msg.orderNumbers, msg.attempts, msg.items,
+                msg.workers, granted));
+        return this;
+    }
 
-        // Check availability
-        for (String item : requestedItems) {
-            if (inventory.getOrDefault(item, 0) <= 0) {
-                allAvailable = false;
-                break;
+    //Consumes reserved units, those reserved before a restart of the partition only leave the stock
+    private Behavior<Command> onCommitBatch(CommitBatch msg) {
+        for (int i = 0; i < msg.items.length; i++) {
+            int item = msg.items[i];
+            if (i == 0 || msg.orderNumbers[i] != msg.orderNumbers[i - 1] || msg.attempts[i] != msg.attempts[i - 1]) {
+                Hold hold = holds.remove(WorkerPool.taskKey(msg.orderNumbers[i], msg.attempts[i]));
+                if (hold != null) {
+                    for (int heldItem : hold.items) {
+                        reserved[partitions.slotOf(heldItem)]--;
+                    }
+                }
             }
+            adjustInventory(item, -1);
         }
+        if (analytics != null) {
+            analytics.tell(new DemandAnalytics.ItemsConsumed(msg.items));
+        }
+        return this;
+    }
 
-        if (allAvailable) {
-            // Deduct from inventory and fulfill request
-            for (String item : requestedItems) {
-                inventory.put(item, inventory.get(item) - 1);
+    //Puts the units granted to the worker back and drops its reservations that wait for a restock
+    private Behavior<Command> onCancelReserve(CancelReserve msg) {
+        long key = WorkerPool.taskKey(msg.orderNumber, msg.attempt);
+        Hold hold = holds.get(key);
+        if (hold != null && hold.worker.equals(msg.worker)) {
+            holds.remove(key);
+            if (log.isDebugEnabled()) {
+                log.debug("{} reserved items of order {} released", hold.items.length, msg.orderNumber);
+            }
+            unstage(hold.items);
+        }
+        for (int slot = 0; slot < backorders.length; slot++) {
+            if (backorders[slot] != null && backorders[slot].removeIf(backorder ->
+                    backorder.orderNumber == msg.orderNumber && backorder.attempt == msg.attempt
+                            && backorder.worker.equals(msg.worker))) {
+                // Reservations queued behind it may be granted now
+                grantWaiting(partitions.itemAt(partition, slot));
             }
-            context.getLog().info("Special items: {} and {} provided for order number {}", item1, item2,
-                    msg.orderNumber);
+        }
+        stageWantedKits();
+        return this;
+    }
 
-            // Notify worker immediately
-            msg.worker.tell(new Worker.SpecialRequestsReceived(msg.orderNumber, msg.productionLine));
-        } else {
-            context.getLog().info("Special items not available, restocking for order {}", msg.orderNumber);
+    //Handles completion of restocking operation
+    private Behavior<Command> onRestockCompleted(RestockCompleted msg) {
+        int slot = partitions.slotOf(msg.item);
+        restocking[slot] = false;
+        adjustInventory(msg.item, msg.quantity);
+        if (log.isInfoEnabled()) {
+            log.info("{} restocked, {} reservations waiting", settings.catalog.name(msg.item),
+                    backorders[slot] == null ? 0 : backorders[slot].size());
+        }
+        grantWaiting(msg.item);
+        stageWantedKits();
+        restockIfLow(msg.item);
+        return this;
+    }
+
+    //Restocks that are on their way keep their quantity, items now below their reorder point are restocked
+    private Behavior<Command> onRestockPolicy(RestockPolicy msg) {
+        if (msg.reorderPoints.length != stock.length) {
+            // Sent for a catalog of a different size
+            return this;
+        }
+        reorderPoints = msg.reorderPoints;
+        restockQuantities = msg.restockQuantities;
+        for (int slot = 0; slot < stock.length; slot++) {
+            restockIfLow(partitions.itemAt(partition, slot));
+        }
+        return this;
+    }
 
-            // Initiate restocking (takes 10-15 seconds)
-            int restockTime = ThreadLocalRandom.current().nextInt(10, 16);
-            context.scheduleOnce(
-                    Duration.ofSeconds(restockTime),
-                    context.getSelf(),
-                    new RestockCompleted(SPECIAL_ITEMS)
-            );
+    private Behavior<Command> onStageKit(StageKit msg) {
+        if (kits.containsKey(msg.orderNumber) || wantedKits.containsKey(msg.orderNumber)) {
+            return this;
+        }
+        if (!stage(msg.orderNumber, msg.items)) {
+            wantedKits.put(msg.orderNumber, msg.items);
+            // Short items are restocked now rather than when the order needs them
+            for (int item : msg.items) {
+                restockIfLow(item);
+            }
         }
+        return this;
+    }
 
+    private Behavior<Command> onReleaseKit(ReleaseKit msg) {
+        wantedKits.remove(msg.orderNumber);
+        int[] kit = kits.remove(msg.orderNumber);
+        if (kit != null) {
+            unstage(kit);
+        }
         return this;
     }
 
-    //Handles completion of restocking operation
-    private Behavior<Command> onRestockCompleted(RestockCompleted msg) {
-        for (String item : msg.itemNames) {
-            inventory.put(item, inventory.getOrDefault(item, 0) + 3);
+    //Reserves the kit if all of its items are available and no reservation waits for them
+    private boolean stage(int orderNumber, int[] items) {
+        if (blocking(items, 0, items.length, -1) >= 0) {
+            return false;
+        }
+        for (int item : items) {
+            reserved[partitions.slotOf(item)]++;
+            restockIfLow(item);
+        }
+        kits.put(orderNumber, items);
+        metrics.kitStaged();
+        return true;
+    }
+
+    private void unstage(int[] kit) {
+        for (int item : kit) {
+            reserved[partitions.slotOf(item)]--;
+            grantWaiting(item);
+        }
+    }
+
+    //An order in production needs the item, the kit staged last that holds it waits for stock again
+    private boolean reclaimKit(int item) {
+        Integer orderNumber = null;
+        for (var kit : kits.entrySet()) {
+            if (contains(kit.getValue(), 0, kit.getValue().length, item)) {
+                orderNumber = kit.getKey();
+            }
+        }
+        if (orderNumber == null) {
+            return false;
+        }
+        int[] kit = kits.remove(orderNumber);
+        unstage(kit);
+        wantedKits.put(orderNumber, kit);
+        return true;
+    }
+
+    private void stageWantedKits() {
+        var wanted = wantedKits.entrySet().iterator();
+        while (wanted.hasNext()) {
+            var kit = wanted.next();
+            if (stage(kit.getKey(), kit.getValue())) {
+                wanted.remove();
+            }
+        }
+    }
+
+    //The worker reserves items[from, to) for the order, does the kit hold exactly these
+    private static boolean isKitFor(int[] kit, int[] items, int from, int to) {
+        if (kit.length != to - from) {
+            return false;
+        }
+        for (int item : kit) {
+            if (!contains(items, from, to, item)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(int[] items, int from, int to, int item) {
+        for (int i = from; i < to; i++) {
+            if (items[i] == item) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void grant(int item, int orderNumber) {
+        reserved[partitions.slotOf(item)]++;
+        if (log.isDebugEnabled()) {
+            log.debug("Special item {} reserved for order number {}", settings.catalog.name(item), orderNumber);
+        }
+        restockIfLow(item);
+    }
+
+    //The granted units stay with the worker until it commits or cancels them
+    private void hold(int orderNumber, int attempt, int[] items, akka.actor.typed.ActorRef<Worker.Command> worker) {
+        holds.put(WorkerPool.taskKey(orderNumber, attempt), new Hold(items, worker));
+    }
+
+    /**
+     * The entry of items[from, to) that keeps the items from being granted together, -1 if all of
+     * them can be granted now. An item is held up by reservations already waiting for it, except
+     * for head, whose waiting reservations are being granted.
+     */
+    private int blocking(int[] items, int from, int to, int head) {
+        for (int i = from; i < to; i++) {
+            int slot = partitions.slotOf(items[i]);
+            if (available(slot) <= 0 || (items[i] != head && isWaitedFor(slot))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //Queues the reservation at the item it waits for
+    private void backorder(Backorder backorder, int item) {
+        int slot = partitions.slotOf(item);
+        if (backorders[slot] == null) {
+            backorders[slot] = new ArrayDeque<>();
         }
-        context.getLog().info("Inventory restocked");
+        backorders[slot].add(backorder);
+        if (log.isDebugEnabled()) {
+            log.debug("{} not available, order {} waits for restock", settings.catalog.name(item),
+                    backorder.orderNumber);
+        }
+        restockIfLow(item);
+    }
+
+    /**
+     * Hands available stock to waiting reservations in arrival order. A reservation that is still
+     * held up by another of its items moves on to the queue of that item.
+     * Restocks are rare enough to answer each reservation alone.
+     */
+    private void grantWaiting(int item) {
+        int slot = partitions.slotOf(item);
+        Deque<Backorder> waiting = backorders[slot];
+        while (waiting != null && !waiting.isEmpty() && available(slot) > 0) {
+            Backorder backorder = waiting.poll();
+            int blocking = blocking(backorder.items, 0, backorder.items.length, item);
+            if (blocking >= 0) {
+                backorder(backorder, backorder.items[blocking]);
+                continue;
+            }
+            for (int reservedItem : backorder.items) {
+                grant(reservedItem, backorder.orderNumber);
+            }
+            hold(backorder.orderNumber, backorder.attempt, backorder.items, backorder.worker);
+            backorder.worker.tell(new Worker.ItemsReserved(backorder.orderNumber, backorder.attempt, backorder.items));
+        }
+    }
+
+    //Starts a restock of the item unless one is on its way or the stock is above the reorder point
+    private void restockIfLow(int item) {
+        int slot = partitions.slotOf(item);
+        if (restocking[slot] || (available(slot) > reorderPoints[slot] && !isWaitedFor(slot))) {
+            return;
+        }
+        restocking[slot] = true;
+
+        clock.scheduleOnce(
+                settings.restockTime.sample(random),
+                context.getSelf(),
+                new RestockCompleted(item, restockQuantities[slot])
+        );
+    }
+
+    private int available(int slot) {
+        return stock[slot] - reserved[slot];
+    }
+
+    private boolean isWaitedFor(int slot) {
+        return backorders[slot] != null && !backorders[slot].isEmpty();
+    }
+
+    //Group commit of everything journaled since the last tick
+    private Behavior<Command> onFlushJournal(FlushJournal msg) {
+        journal.flushAsync();
+        if (journal.eventsSinceSnapshot() >= settings.journalSnapshotInterval) {
+            journal.snapshot(snapshot -> {
+                for (int slot = 0; slot < stock.length; slot++) {
+                    snapshot.append(INVENTORY_SET, partitions.itemAt(partition, slot), stock[slot], 0, 0);
+                }
+            });
+        }
+        return this;
+    }
+
+    private Behavior<Command> onPublishState(PublishState msg) {
+        int[] items = new int[stock.length];
+        int[] waiting = new int[stock.length];
+        for (int slot = 0; slot < stock.length; slot++) {
+            items[slot] = partitions.itemAt(partition, slot);
+            waiting[slot] = backorders[slot] == null ? 0 : backorders[slot].size();
+        }
+        metrics.state().publish(new PlantState.StorageState(partition, clock.currentTimeMillis(), items,
+                stock.clone(), reserved.clone(), restocking.clone(), waiting));
+        return this;
+    }
+
+    private Behavior<Command> onPostStop() {
+        journal.close();
         return this;
     }
-}
\ No newline at end of file
+
+    //Changes the stock of an item and journals the change
+    private void adjustInventory(int item, int delta) {
+        stock[partitions.slotOf(item)] += delta;
+        journal.append(INVENTORY_DELTA, item, delta, 0, 0);
+    }
+
+    //Applies a journaled event to the inventory while recovering, reservations are not journaled
+    private void replay(int type, int item, int quantity, long unused1, long unused2) {
+        if (item >= settings.catalog.size() || partitions.partitionOf(item) != partition) {
+            // Item dropped from the catalog or moved to another partition
+            return;
+        }
+        int slot = partitions.slotOf(item);
+        switch (type) {
+            case INVENTORY_SET:
+                stock[slot] = quantity;
+                break;
+            case INVENTORY_DELTA:
+                stock[slot] += quantity;
+                break;
+            default:
+                throw new IllegalStateException("Unknown journal event " + type);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves the {@link FactoryMetrics} in the Prometheus text format on http://localhost:port/metrics.
+ * Latencies are summaries in seconds with the usual quantiles. The same server answers the
+ * liveness and readiness probes of {@link FactoryHealth}, 200 if the node is live or ready, 503 if not,
+ * and the queries of the {@link PlantState} read model. A state query is rendered again only once
+ * an actor published since the last rendering, polling it in a loop costs a map lookup.
+ */
+final class MetricsEndpoint implements AutoCloseable {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    // State queries by path
+    private static final Map<String, PlantState.Section[]> STATE_QUERIES = Map.of(
+            "/state", PlantState.Section.values(),
+            "/state/order-book", new PlantState.Section[]{PlantState.Section.ORDER_BOOK},
+            "/state/production-lines", new PlantState.Section[]{PlantState.Section.PRODUCTION_LINES},
+            "/state/workers", new PlantState.Section[]{PlantState.Section.WORKERS},
+            "/state/storage", new PlantState.Section[]{PlantState.Section.STORAGE},
+            "/state/analytics", new PlantState.Section[]{PlantState.Section.ANALYTICS});
+
+    //A state query rendered at a version of the read model
+    private static final class RenderedState {
+        final long version;
+        final byte[] body;
+
+        RenderedState(long version, byte[] body) {
+            this.version = version;
+            this.body = body;
+        }
+    }
+
+    private final HttpServer server;
+    private final FactoryMetrics metrics;
+    private final FactoryHealth health;
+    private final Map<String, RenderedState> renderedStates = new ConcurrentHashMap<>();
+
+    private MetricsEndpoint(HttpServer server, FactoryMetrics metrics, FactoryHealth health) {
+        this.server = server;
+        this.metrics = metrics;
+        this.health = health;
+    }
+
+    /**
+     * Starts serving on the loopback interface
+     * @param port Port to listen on
+     */
+    static MetricsEndpoint start(int port, FactoryMetrics metrics, FactoryHealth health) {
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            MetricsEndpoint endpoint = new MetricsEndpoint(server, metrics, health);
+            server.createContext("/metrics", endpoint::handle);
+            server.createContext("/health/live", exchange -> probe(exchange, health.isLive()));
+            server.createContext("/health/ready", exchange -> probe(exchange, health.isReady()));
+            server.createContext("/state", endpoint::handleState);
+            server.start();
+            return endpoint;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not start the metrics endpoint on port " + port, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        respond(exchange, 200, "text/plain; version=0.0.4; charset=utf-8", render().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void probe(HttpExchange exchange, boolean up) throws IOException {
+        respond(exchange, up ? 200 : 503, "text/plain; charset=utf-8",
+                (up ? "UP\n" : "DOWN\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void handleState(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        PlantState.Section[] sections = STATE_QUERIES.get(path);
+        if (sections == null) {
+            respond(exchange, 404, "text/plain; charset=utf-8",
+                    ("Unknown state query " + path + "\n").getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        // Read the version first, a publication during the rendering only makes the next request render again
+        PlantState state = metrics.state();
+        long version = state.version();
+        RenderedState rendered = renderedStates.get(path);
+        if (rendered == null || rendered.version != version) {
+            rendered = new RenderedState(version, state.toJson(sections).getBytes(StandardCharsets.UTF_8));
+            renderedStates.put(path, rendered);
+        }
+        respond(exchange, 200, "application/json", rendered.body);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    String render() {
+        StringBuilder text = new StringBuilder(4096);
+        gauge(text, "factory_order_queue_depth", "Orders waiting in the order book", metrics.getQueueDepth());
+        gauge(text, "factory_order_demand_outstanding", "Credits granted to producers of orders and not used yet",
+                metrics.getOutstandingDemand());
+        gauge(text, "factory_orders_deferred", "Orders held back by producers for lack of credit",
+                metrics.getDeferredOrders());
+        counter(text, "factory_order_arrivals_total", "Orders of the synthetic load that came due", metrics.arrivedOrders());
+        counter(text, "factory_orders_shed_total", "Orders dropped because of overload", metrics.getShedOrders());
+        gauge(text, "factory_production_lines", "Production lines of the plant", metrics.productionLines());
+        gauge(text, "factory_production_lines_busy", "Production lines with an order on them", metrics.getBusyProductionLines());
+        counter(text, "factory_production_line_busy_seconds_total", "Time lines had an order on them, summed over all lines",
+                metrics.lineBusyNanos() / 1e9);
+        header(text, "factory_production_line_stage_busy", "gauge", "Occupied stage slots, summed over all lines");
+        metrics.getBusyStageSlots().forEach((stage, slots) ->
+                text.append("factory_production_line_stage_busy{stage=\"").append(stage).append("\"} ")
+                        .append(slots).append('\n'));
+        gauge(text, "factory_workers", "Workers of the plant", metrics.workers());
+        gauge(text, "factory_workers_busy", "Workers with an order in hand", metrics.getBusyWorkers());
+        counter(text, "factory_worker_busy_seconds_total", "Time workers had an order in hand, summed over all workers",
+                metrics.workerBusyNanos() / 1e9);
+        counter(text, "factory_orders_completed_total", "Orders installed", metrics.getOrdersCompleted());
+        counter(text, "factory_orders_rejected_total", "Orders a full line sent back to the order book",
+                metrics.rejectedOrders());
+        counter(text, "factory_order_leases_expired_total", "Orders requeued because their line did not answer "
+                + "or complete them in time", metrics.expiredLeases());
+        counter(text, "factory_productions_cancelled_total", "Orders a line called off because their attempt expired",
+                metrics.cancelledProductions());
+        counter(text, "factory_order_completions_duplicate_total", "Completions of orders that were completed already",
+                metrics.duplicateCompletions());
+        counter(text, "factory_orders_duplicate_total", "Orders dropped because they were queued, in production "
+                + "or completed already", metrics.duplicateOrders());
+        counter(text, "factory_kits_staged_total", "Kits of special items reserved for queued orders", metrics.kitsStaged());
+        counter(text, "factory_kits_used_total", "Kits a worker found staged for its order", metrics.kitsUsed());
+
+        header(text, "factory_stock_outs_total", "counter", "Reservations that found the item out of stock");
+        // Only items that ran out, a large catalog would flood the scrape otherwise
+        ItemCatalog catalog = metrics.catalog();
+        for (int i = 0; i < catalog.size(); i++) {
+            long stockOuts = metrics.stockOuts(i);
+            if (stockOuts > 0) {
+                text.append("factory_stock_outs_total{item=\"").append(catalog.name(i)).append("\"} ")
+                        .append(stockOuts).append('\n');
+            }
+        }
+
+        header(text, "factory_order_latency_seconds", "summary",
+                "Time to reach a stage since the previous one, order is the whole lifecycle");
+        for (FactoryMetrics.Latency latency : metrics.latencies()) {
+            Histogram histogram = latency.histogram();
+            for (double quantile : QUANTILES) {
+                text.append("factory_order_latency_seconds{stage=\"").append(latency.name)
+                        .append("\",quantile=\"").append(quantile).append("\"} ")
+                        .append(histogram.getValueAtPercentile(quantile * 100) / 1e9).append('\n');
+            }
+            text.append("factory_order_latency_seconds_sum{stage=\"").append(latency.name).append("\"} ")
+                    .append(histogram.getMean() * histogram.getTotalCount() / 1e9).append('\n');
+            text.append("factory_order_latency_seconds_count{stage=\"").append(latency.name).append("\"} ")
+                    .append(histogram.getTotalCount()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, double value) {
+        header(text, name, "gauge", help);
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder text, String name, String help, double value) {
+        header(text, name, "counter", help);
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void header(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
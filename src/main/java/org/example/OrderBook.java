@@ -1,103 +1,936 @@
 package org.example;
 
 import akka.actor.typed.Behavior;
+import akka.actor.typed.DispatcherSelector;
+import akka.actor.typed.PostStop;
+import akka.actor.typed.Terminated;
 import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
 import akka.actor.typed.javadsl.TimerScheduler;
+import akka.actor.typed.receptionist.Receptionist;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import org.slf4j.Logger;
 
-import java.time.Duration;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+/**
+ * Queues the orders and hands them to production lines with free capacity.
+ *
+ * Producers of orders are flow controlled with credits: a producer registers with
+ * {@link RegisterProducer} and may send one AddOrder per credit it was granted with {@link Demand}.
+ * Once pending orders plus granted credits have dropped to the low watermark, the book tops them up
+ * to the high watermark, split over the producers. Orders sent without credit are only accepted
+ * below the high watermark and shed above it, so the queue stays bounded whatever producers do.
+ *
+ * Orders from the ingestion come in batches ({@link AddOrders}) with a model and the special items
+ * they ask for. These details are journaled with the order and go to the line with it.
+ *
+ * Every order handed to a line is leased to it ({@link Assignment}). The line accepts or rejects
+ * the order right away; an order that is rejected, or whose lease expires because no answer or no
+ * completion came in time, goes back to the front of the queue and is handed out again under the
+ * next attempt number. Completions are deduplicated: the first one of any attempt completes the
+ * order, the attempt still in production is called off and later completions are ignored.
+ *
+ * On shutdown the book is drained ({@link Drain}): it stops dispatching and granting credits, still
+ * journals the orders that arrive, and waits for the lines to complete what they have in production.
+ * Whatever is pending or unfinished at the deadline is started again from the journal.
+ */
 public class OrderBook extends AbstractBehavior<OrderBook.Command> {
 
-    public interface Command {}
+    public interface Command extends CborSerializable {}
 
     // Message: Add new order
     public static final class AddOrder implements Command {
         public final int orderNumber;
+        public final OrderPriority priority;
+        public final long dueTime;
+        public final int model;
+        // Special items the order asks for, null if the worker picks them
+        public final int[] items;
 
+        //Standard order without a deadline
         public AddOrder(int orderNumber) {
+            this(orderNumber, OrderPriority.STANDARD, Long.MAX_VALUE);
+        }
+
+        /**
+         * @param priority Priority class of the order
+         * @param dueTime Time the order is due (epoch millis), Long.MAX_VALUE for no deadline
+         */
+        public AddOrder(int orderNumber, OrderPriority priority, long dueTime) {
+            this(orderNumber, priority, dueTime, 0, null);
+        }
+
+        //Standard order of the model that asks for the given special items
+        public AddOrder(int orderNumber, int model, int[] items) {
+            this(orderNumber, OrderPriority.STANDARD, Long.MAX_VALUE, model, items);
+        }
+
+        @JsonCreator
+        public AddOrder(int orderNumber, OrderPriority priority, long dueTime, int model, int[] items) {
             this.orderNumber = orderNumber;
+            this.priority = priority;
+            this.dueTime = dueTime;
+            this.model = model;
+            this.items = items;
         }
     }
 
-    //Message: Try to assign orders
-    public static final class AssignOrder implements Command {}
+    /**
+     * Message: A batch of orders, one credit per order. Order i is orderNumbers[i] of model models[i]
+     * with priority ordinal priorities[i], due at dueTimes[i], and asks for the special items
+     * items[itemStarts[i]] up to items[itemStarts[i + 1]], none if the worker should pick them
+     */
+    public static final class AddOrders implements Command {
+        public final int[] orderNumbers;
+        public final int[] models;
+        public final int[] priorities;
+        public final long[] dueTimes;
+        public final int[] itemStarts;
+        public final int[] items;
+
+        public AddOrders(int[] orderNumbers, int[] models, int[] priorities, long[] dueTimes,
+                         int[] itemStarts, int[] items) {
+            this.orderNumbers = orderNumbers;
+            this.models = models;
+            this.priorities = priorities;
+            this.dueTimes = dueTimes;
+            this.itemStarts = itemStarts;
+            this.items = items;
+        }
+    }
 
-    //Message: Production line is available
+    //Message: Production line has free capacity (number of orders it can additionally accept)
     public static final class ProductionLineAvailable implements Command {
         public final akka.actor.typed.ActorRef<ProductionLine.Command> productionLine;
+        public final int freeCapacity;
 
-        public ProductionLineAvailable(akka.actor.typed.ActorRef<ProductionLine.Command> productionLine) {
+        public ProductionLineAvailable(akka.actor.typed.ActorRef<ProductionLine.Command> productionLine,
+                                       int freeCapacity) {
             this.productionLine = productionLine;
+            this.freeCapacity = freeCapacity;
+        }
+    }
+
+    //Message: Production line finished an order
+    public static final class OrderCompleted implements Command {
+        public final int orderNumber;
+        // Attempt the line built the order under, 0 if not known
+        public final int attempt;
+
+        public OrderCompleted(int orderNumber) {
+            this(orderNumber, 0);
+        }
+
+        @JsonCreator
+        public OrderCompleted(int orderNumber, int attempt) {
+            this.orderNumber = orderNumber;
+            this.attempt = attempt;
+        }
+    }
+
+    //Message: Production line took the order of the attempt, its lease now runs until the production timeout
+    public static final class ProductionAccepted implements Command {
+        public final int orderNumber;
+        public final int attempt;
+
+        public ProductionAccepted(int orderNumber, int attempt) {
+            this.orderNumber = orderNumber;
+            this.attempt = attempt;
+        }
+    }
+
+    //Message: Production line had no free slot for the order of the attempt
+    public static final class ProductionRejected implements Command {
+        public final int orderNumber;
+        public final int attempt;
+        public final akka.actor.typed.ActorRef<ProductionLine.Command> productionLine;
+
+        public ProductionRejected(int orderNumber, int attempt,
+                                  akka.actor.typed.ActorRef<ProductionLine.Command> productionLine) {
+            this.orderNumber = orderNumber;
+            this.attempt = attempt;
+            this.productionLine = productionLine;
+        }
+    }
+
+    //Message: A producer of orders asks for credits, it is granted them with Demand messages from now on
+    public static final class RegisterProducer implements Command {
+        public final akka.actor.typed.ActorRef<Demand> producer;
+
+        @JsonCreator
+        public RegisterProducer(akka.actor.typed.ActorRef<Demand> producer) {
+            this.producer = producer;
+        }
+    }
+
+    //Message to a producer: it may send this many more orders
+    public static final class Demand implements CborSerializable {
+        public final int orders;
+
+        @JsonCreator
+        public Demand(int orders) {
+            this.orders = orders;
+        }
+    }
+
+    //Message: Reports the number of pending and in-progress orders, answered once the journal is recovered
+    public static final class GetStatus implements Command {
+        public final akka.actor.typed.ActorRef<Status> replyTo;
+
+        @JsonCreator
+        public GetStatus(akka.actor.typed.ActorRef<Status> replyTo) {
+            this.replyTo = replyTo;
+        }
+    }
+
+    //Message: Stop dispatching and answer once the orders in production are completed or the drain timeout is over
+    public static final class Drain implements Command {
+        public final akka.actor.typed.ActorRef<Status> replyTo;
+
+        @JsonCreator
+        public Drain(akka.actor.typed.ActorRef<Status> replyTo) {
+            this.replyTo = replyTo;
+        }
+    }
+
+    //Reply: Orders waiting in the book and orders in production
+    public static final class Status implements CborSerializable {
+        public final int pending;
+        public final int inProduction;
+
+        public Status(int pending, int inProduction) {
+            this.pending = pending;
+            this.inProduction = inProduction;
+        }
+    }
+
+    //Message: The drain timeout is over
+    private static final class DrainTimeout implements Command {}
+
+    private static final DrainTimeout DRAIN_TIMEOUT = new DrainTimeout();
+
+    //Message: Requeue the orders whose lease expired
+    private static final class CheckLeases implements Command {}
+
+    private static final CheckLeases CHECK_LEASES = new CheckLeases();
+
+    //Message: Write the journal to disk (group commit)
+    private static final class FlushJournal implements Command {}
+
+    //Message: Publish the state to the PlantState read model
+    private static final class PublishState implements Command {}
+
+    //Message: The production lines registered in the cluster changed
+    private static final class LinesChanged implements Command {
+        final Set<akka.actor.typed.ActorRef<ProductionLine.Command>> productionLines;
+
+        LinesChanged(Set<akka.actor.typed.ActorRef<ProductionLine.Command>> productionLines) {
+            this.productionLines = productionLines;
         }
     }
 
-    //Creates the OrderBook behavior
-    public static Behavior<Command> create(akka.actor.typed.ActorRef<ProductionLine.Command>[] productionLines) {
+    // Journal event types
+    private static final int ORDER_ACCEPTED = 1;
+    private static final int ORDER_ASSIGNED = 2;
+    private static final int ORDER_COMPLETED = 3;
+    // Details of an ingested order, the model and then one event per special item
+    private static final int ORDER_MODEL = 4;
+    private static final int ORDER_ITEM = 5;
+    // Completed orders a up to b inclusive, only written to snapshots
+    private static final int ORDERS_COMPLETED = 6;
+
+    /**
+     * Creates the OrderBook behavior
+     * @param productionLines Lines to dispatch to, in a cluster the lines are found through the receptionist
+     *                        under {@link ProductionLine#SERVICE_KEY} instead
+     * @param storage Partitions the kits of the next orders are staged in, null to stage none
+     * @param settings Journal and look-ahead settings
+     * @param clock Clock the orders are timestamped with
+     * @param metrics Receives the queue depth and the times orders are queued and assigned
+     * @param journalDirectory Directory of the journal, pending and in-progress orders are recovered from it
+     */
+    public static Behavior<Command> create(akka.actor.typed.ActorRef<ProductionLine.Command>[] productionLines,
+                                           StoragePartitions storage, FactorySettings settings, FactoryClock clock,
+                                           FactoryMetrics metrics, Path journalDirectory) {
         return Behaviors.setup(context ->
                 Behaviors.withTimers(timers ->
-                        new OrderBook(context, timers, productionLines)));
+                        new OrderBook(context, timers, productionLines, storage, settings, clock, metrics,
+                                journalDirectory)));
+    }
+
+    /**
+     * An order handed to a production line that has not been completed yet: the lease of one
+     * attempt. Until the line accepts, the lease runs for factory.order-book.lease.ack-timeout,
+     * then for factory.order-book.lease.production-timeout.
+     */
+    private static final class Assignment {
+        final OrderPriority priority;
+        final long dueTime;
+        final long key;
+        // Null for assignments recovered from the journal
+        final akka.actor.typed.ActorRef<ProductionLine.Command> productionLine;
+        final int attempt;
+        boolean accepted;
+        // Clock nanos
+        long expiresAt;
+
+        Assignment(OrderPriority priority, long dueTime, long key,
+                   akka.actor.typed.ActorRef<ProductionLine.Command> productionLine, int attempt, long expiresAt) {
+            this.priority = priority;
+            this.dueTime = dueTime;
+            this.key = key;
+            this.productionLine = productionLine;
+            this.attempt = attempt;
+            this.expiresAt = expiresAt;
+        }
     }
 
+    //Model and special items of an ingested order
+    private static final class OrderDetails {
+        final int model;
+        int[] items;
+
+        OrderDetails(int model, int[] items) {
+            this.model = model;
+            this.items = items;
+        }
+    }
+
+    // Pending orders, earliest dispatch key first
+    private final OrderQueue orders = new OrderQueue(1024);
+
+    // Lines with free capacity, each line at most once; dispatch rotates through them
+    private final Deque<akka.actor.typed.ActorRef<ProductionLine.Command>> idleLines = new ArrayDeque<>();
+    private final Map<akka.actor.typed.ActorRef<ProductionLine.Command>, Integer> freeCapacity = new HashMap<>();
+    // Lines found through the receptionist
+    private final Set<akka.actor.typed.ActorRef<ProductionLine.Command>> registeredLines = new HashSet<>();
+
+    // Producers and the credits granted to all of them that have not been used for an order yet
+    private final List<akka.actor.typed.ActorRef<Demand>> producers = new ArrayList<>();
+    private int outstandingDemand;
+
+    // Orders in production, by order number
+    private final Map<Integer, Assignment> assignments = new HashMap<>();
+    // Last attempt of the orders that were handed out and are back in the queue
+    private final Map<Integer, Integer> attempts = new HashMap<>();
+    private boolean leaseCheckScheduled;
+    // Details of the pending and in-progress orders that came with them
+    private final Map<Integer, OrderDetails> details = new HashMap<>();
+    // Completed order numbers, as runs. An order sent again, e.g. by an ingestion that reads its
+    // file from the start after a restart, is dropped instead of being built twice
+    private final OrderNumberSet completed = new OrderNumberSet();
+
+    // Look-ahead kitting: the next pending orders in dispatch order, and the orders whose items were
+    // sent to storage to be staged, until they complete or fall out of the look-ahead again
+    private final StoragePartitions storage;
+    private final int[] lookAhead;
+    private final Set<Integer> kitted = new HashSet<>();
+    private final FactorySettings settings;
+    private final FactoryClock clock;
+    private final FactoryMetrics metrics;
+    private final Journal journal;
     private final TimerScheduler<Command> timers;
-    private final akka.actor.typed.ActorRef<ProductionLine.Command>[] productionLines;
-    private final Queue<Integer> orders = new LinkedList<>();
+    // Set once draining, stays set until the book stops
+    private akka.actor.typed.ActorRef<Status> drainedReplyTo;
+    private boolean drained;
+    // Per order logging is at debug level and guarded, nothing is boxed or formatted unless it is enabled
+    private final Logger log;
 
     private OrderBook(ActorContext<Command> context,
                       TimerScheduler<Command> timers,
-                      akka.actor.typed.ActorRef<ProductionLine.Command>[] productionLines) {
+                      akka.actor.typed.ActorRef<ProductionLine.Command>[] productionLines,
+                      StoragePartitions storage, FactorySettings settings, FactoryClock clock,
+                      FactoryMetrics metrics, Path journalDirectory) {
         super(context);
+        this.storage = storage;
+        this.lookAhead = new int[storage == null ? 0 : settings.kittingLookAhead];
+        this.settings = settings;
+        this.clock = clock;
+        this.metrics = metrics;
         this.timers = timers;
-        this.productionLines = productionLines;
+        this.log = context.getLog();
+
+        // Group commits are forced on the journal dispatcher, the actor only writes
+        journal = settings.journalEnabled
+                ? Journal.open(journalDirectory, this::replay, context.getSystem().dispatchers()
+                        .lookup(DispatcherSelector.fromConfig(settings.journalDispatcher)))
+                : Journal.disabled();
+        recoverAssignments();
+        metrics.queueDepth(orders.size());
+        getContext().getLog().info("OrderBook starts: {} pending orders recovered from {} events",
+                orders.size(), journal.replayedEvents());
+        if (journal.isEnabled()) {
+            timers.startTimerWithFixedDelay(new FlushJournal(), settings.journalFlushInterval);
+        }
+        if (!settings.statePublishInterval.isZero()) {
+            timers.startTimerWithFixedDelay(new PublishState(), settings.statePublishInterval);
+        }
 
-        getContext().getLog().info("OrderBook starts: ");
-        timers.startTimerWithFixedDelay(new AssignOrder(), Duration.ofSeconds(10));
+        // Lines push their capacity to us from now on, no polling needed
+        for (var productionLine : productionLines) {
+            productionLine.tell(new ProductionLine.RegisterOrderBook(getContext().getSelf()));
+        }
+        if (settings.clusterEnabled) {
+            var listings = context.messageAdapter(Receptionist.Listing.class,
+                    listing -> new LinesChanged(listing.getServiceInstances(ProductionLine.SERVICE_KEY)));
+            context.getSystem().receptionist().tell(Receptionist.subscribe(ProductionLine.SERVICE_KEY, listings));
+        }
     }
 
     @Override
     public Receive<Command> createReceive() {
         return newReceiveBuilder()
                 .onMessage(AddOrder.class, this::onAddOrder)
-                .onMessage(AssignOrder.class, this::onAssignOrder)
+                .onMessage(AddOrders.class, this::onAddOrders)
+                .onMessage(RegisterProducer.class, this::onRegisterProducer)
                 .onMessage(ProductionLineAvailable.class, this::onProductionLineAvailable)
+                .onMessage(ProductionAccepted.class, this::onProductionAccepted)
+                .onMessage(ProductionRejected.class, this::onProductionRejected)
+                .onMessage(OrderCompleted.class, this::onOrderCompleted)
+                .onMessage(CheckLeases.class, msg -> onCheckLeases())
+                .onMessage(FlushJournal.class, this::onFlushJournal)
+                .onMessage(PublishState.class, this::onPublishState)
+                .onMessage(LinesChanged.class, this::onLinesChanged)
+                .onMessage(GetStatus.class, this::onGetStatus)
+                .onMessage(Drain.class, this::onDrain)
+                .onMessage(DrainTimeout.class, msg -> onDrained())
+                .onSignal(Terminated.class, signal -> onProducerTerminated(signal.getRef()))
+                .onSignal(PostStop.class, signal -> onPostStop())
                 .build();
     }
 
 
     //Processes new orders
     private Behavior<Command> onAddOrder(AddOrder msg) {
-        getContext().getLog().info("New order received: {}", msg.orderNumber);
-        orders.add(msg.orderNumber);
-        onAssignOrder(new AssignOrder());
+        if (accept(msg.orderNumber, msg.priority, msg.dueTime)) {
+            if (msg.items != null) {
+                addDetails(msg.orderNumber, msg.model, msg.items);
+            }
+            dispatchOrders();
+        }
         return this;
     }
 
-    //Tries to assign orders
-    private Behavior<Command> onAssignOrder(AssignOrder msg) {
-        if (!orders.isEmpty()) {
-            getContext().getLog().info("Trying to assign {} pending orders...", orders.size());
+    //Processes a batch of ingested orders, dispatching once for the whole batch
+    private Behavior<Command> onAddOrders(AddOrders msg) {
+        for (int i = 0; i < msg.orderNumbers.length; i++) {
+            int orderNumber = msg.orderNumbers[i];
+            if (!accept(orderNumber, OrderPriority.ofOrdinal(msg.priorities[i]), msg.dueTimes[i])) {
+                continue;
+            }
+            int[] items = msg.itemStarts[i] == msg.itemStarts[i + 1] ? null
+                    : Arrays.copyOfRange(msg.items, msg.itemStarts[i], msg.itemStarts[i + 1]);
+            addDetails(orderNumber, msg.models[i], items);
+        }
+        dispatchOrders();
+        return this;
+    }
 
-            // Asks all production lines for availability
-            for (var productionLine : productionLines) {
-                productionLine.tell(new ProductionLine.IsAvailable(getContext().getSelf().narrow()));
+    //Keeps and journals the model and special items an order came with
+    private void addDetails(int orderNumber, int model, int[] items) {
+        details.put(orderNumber, new OrderDetails(model, items));
+        journal.append(ORDER_MODEL, orderNumber, model, 0, 0);
+        if (items != null) {
+            for (int item : items) {
+                journal.append(ORDER_ITEM, orderNumber, item, 0, 0);
             }
-        } else {
-            getContext().getLog().debug("No orders to assign");
         }
+    }
+
+    //Queues an order if the producer had credit for it or the queue has room, and the order is new
+    private boolean accept(int orderNumber, OrderPriority priority, long dueTime) {
+        if (outstandingDemand > 0) {
+            outstandingDemand--;
+        } else if (orders.size() >= settings.orderBookHighWatermark) {
+            // Sent without credit while the queue is full
+            metrics.orderShed();
+            if (log.isDebugEnabled()) {
+                log.debug("Order {} shed, {} orders pending", orderNumber, orders.size());
+            }
+            return false;
+        }
+        if (isKnown(orderNumber)) {
+            // The credit is used up all the same, the next demand makes up for it
+            metrics.duplicateOrder();
+            if (log.isDebugEnabled()) {
+                log.debug("Order {} dropped, it is queued, in production or completed already", orderNumber);
+            }
+            return false;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("New order received: {} ({})", orderNumber, priority);
+        }
+        long key = priority.dispatchKey(clock.currentTimeMillis(), dueTime);
+        journal.append(ORDER_ACCEPTED, orderNumber, priority.ordinal(), dueTime, key);
+        orders.offer(orderNumber, priority, dueTime, key);
+        metrics.stamp(orderNumber, FactoryMetrics.Stage.QUEUED);
+        return true;
+    }
+
+    private boolean isKnown(int orderNumber) {
+        return orders.contains(orderNumber) || assignments.containsKey(orderNumber)
+                || completed.contains(orderNumber);
+    }
+
+    //Processes capacity reported by production lines
+    private Behavior<Command> onProductionLineAvailable(ProductionLineAvailable msg) {
+        int capacity = freeCapacity.getOrDefault(msg.productionLine, 0);
+        if (capacity == 0 && msg.freeCapacity > 0) {
+            idleLines.add(msg.productionLine);
+        }
+        freeCapacity.put(msg.productionLine, capacity + msg.freeCapacity);
+        dispatchOrders();
         return this;
     }
 
-    //Processes available production lines
-        private Behavior<Command> onProductionLineAvailable(ProductionLineAvailable msg) {
-        if (!orders.isEmpty()) {
-            Integer order = orders.poll();
-            getContext().getLog().info("Assigning order {} to production line", order);
-            msg.productionLine.tell(new ProductionLine.StartProduction(order));
+    private Behavior<Command> onRegisterProducer(RegisterProducer msg) {
+        if (!producers.contains(msg.producer)) {
+            producers.add(msg.producer);
+            getContext().watch(msg.producer);
         }
+        grantDemand();
         return this;
     }
-}
\ No newline at end of file
+
+    //Unused credits can't be told apart by producer, they are written off once no producer is left
+    private Behavior<Command> onProducerTerminated(akka.actor.typed.ActorRef<Void> producer) {
+        producers.remove(producer);
+        if (producers.isEmpty()) {
+            outstandingDemand = 0;
+            metrics.outstandingDemand(0);
+        }
+        return this;
+    }
+
+    //Tops the credits up to the high watermark once pending and granted orders have dropped to the low watermark
+    private void grantDemand() {
+        if (drainedReplyTo != null) {
+            return;
+        }
+        int committed = orders.size() + outstandingDemand;
+        if (!producers.isEmpty() && committed <= settings.orderBookLowWatermark) {
+            int credits = settings.orderBookHighWatermark - committed;
+            int share = credits / producers.size();
+            int remainder = credits % producers.size();
+            for (int i = 0; i < producers.size(); i++) {
+                int orders = share + (i < remainder ? 1 : 0);
+                if (orders > 0) {
+                    producers.get(i).tell(new Demand(orders));
+                }
+            }
+            outstandingDemand += credits;
+        }
+        metrics.outstandingDemand(outstandingDemand);
+    }
+
+    //Hands pending orders to idle production lines until one of both runs out
+    private void dispatchOrders() {
+        // A draining book keeps its orders for the next start
+        while (drainedReplyTo == null && !orders.isEmpty() && !idleLines.isEmpty()) {
+            var productionLine = idleLines.poll();
+            int capacity = freeCapacity.get(productionLine) - 1;
+            freeCapacity.put(productionLine, capacity);
+            if (capacity > 0) {
+                idleLines.add(productionLine);
+            }
+
+            int order = orders.peekOrderNumber();
+            Integer previous = attempts.remove(order);
+            int attempt = previous == null ? 1 : previous + 1;
+            journal.append(ORDER_ASSIGNED, order, attempt, 0, 0);
+            assignments.put(order, new Assignment(orders.peekPriority(), orders.peekDueTime(), orders.peekKey(),
+                    productionLine, attempt, clock.nanoTime() + settings.leaseAckTimeout.toNanos()));
+            orders.remove();
+            metrics.stamp(order, FactoryMetrics.Stage.ASSIGNED);
+            if (log.isDebugEnabled()) {
+                log.debug("Assigning order {} to production line", order);
+            }
+            OrderDetails orderDetails = details.get(order);
+            productionLine.tell(orderDetails == null ? new ProductionLine.StartProduction(order, attempt, 0, null)
+                    : new ProductionLine.StartProduction(order, attempt, orderDetails.model, orderDetails.items));
+        }
+        metrics.queueDepth(orders.size());
+        stageKits();
+        grantDemand();
+        scheduleLeaseCheck();
+    }
+
+    //One check covers all leases, it is only scheduled while orders are in production
+    private void scheduleLeaseCheck() {
+        if (!leaseCheckScheduled && !assignments.isEmpty()) {
+            leaseCheckScheduled = true;
+            clock.scheduleOnce(settings.leaseCheckInterval, getContext().getSelf(), CHECK_LEASES);
+        }
+    }
+
+    //The line took the order, the lease now has to last the production
+    private Behavior<Command> onProductionAccepted(ProductionAccepted msg) {
+        Assignment assignment = assignments.get(msg.orderNumber);
+        if (assignment != null && assignment.attempt == msg.attempt && !assignment.accepted) {
+            assignment.accepted = true;
+            assignment.expiresAt = clock.nanoTime() + settings.leaseProductionTimeout.toNanos();
+        }
+        return this;
+    }
+
+    //The line was full: its count is wrong, it reports every slot it frees from here on
+    private Behavior<Command> onProductionRejected(ProductionRejected msg) {
+        Assignment assignment = assignments.get(msg.orderNumber);
+        if (assignment == null || assignment.attempt != msg.attempt) {
+            return this;
+        }
+        metrics.orderRejected();
+        if (log.isDebugEnabled()) {
+            log.debug("Order {} rejected by {}, requeued", msg.orderNumber, msg.productionLine.path());
+        }
+        assignments.remove(msg.orderNumber);
+        requeue(msg.orderNumber, assignment);
+        if (freeCapacity.containsKey(msg.productionLine)) {
+            freeCapacity.put(msg.productionLine, 0);
+            idleLines.remove(msg.productionLine);
+        }
+        if (isDrainedNow()) {
+            return onDrained();
+        }
+        dispatchOrders();
+        return this;
+    }
+
+    //Orders whose line did not answer or did not complete them in time are handed out again
+    private Behavior<Command> onCheckLeases() {
+        leaseCheckScheduled = false;
+        long now = clock.nanoTime();
+        int expired = 0;
+        var entries = assignments.entrySet().iterator();
+        while (entries.hasNext()) {
+            var entry = entries.next();
+            Assignment assignment = entry.getValue();
+            if (assignment.expiresAt - now > 0) {
+                continue;
+            }
+            entries.remove();
+            requeue(entry.getKey(), assignment);
+            if (assignment.productionLine != null) {
+                assignment.productionLine.tell(new ProductionLine.CancelProduction(entry.getKey(), assignment.attempt));
+            }
+            expired++;
+        }
+        if (expired > 0) {
+            metrics.leasesExpired(expired);
+            getContext().getLog().warn("{} leases expired, the orders are requeued", expired);
+            if (isDrainedNow()) {
+                return onDrained();
+            }
+        }
+        dispatchOrders();
+        return this;
+    }
+
+    /**
+     * Look-ahead kitting: the special items of the next factory.kitting.look-ahead orders are staged
+     * in storage while the orders wait, so the reservation of their worker finds them ready and any
+     * restock they need starts before they are dispatched. Orders pushed back out of the look-ahead
+     * give their kits back. Only orders that came with their items can be kitted.
+     */
+    private void stageKits() {
+        if (lookAhead.length == 0) {
+            return;
+        }
+        int count = orders.peekFirst(lookAhead);
+        for (int i = 0; i < count; i++) {
+            int orderNumber = lookAhead[i];
+            OrderDetails orderDetails = details.get(orderNumber);
+            if (orderDetails != null && orderDetails.items != null && kitted.add(orderNumber)) {
+                sendKit(orderNumber, orderDetails.items, true);
+            }
+        }
+        // Kitted orders are either in production, in the look-ahead or were pushed out of it
+        if (kitted.size() > count) {
+            Iterator<Integer> kits = kitted.iterator();
+            while (kits.hasNext()) {
+                int orderNumber = kits.next();
+                if (!assignments.containsKey(orderNumber) && !contains(lookAhead, count, orderNumber)) {
+                    kits.remove();
+                    sendKit(orderNumber, details.get(orderNumber).items, false);
+                }
+            }
+        }
+    }
+
+    //Stages or releases the kit in each partition that holds items of the order
+    private void sendKit(int orderNumber, int[] orderItems, boolean stage) {
+        int[] items = storage.sortByPartition(orderItems.clone());
+        for (int from = 0, to; from < items.length; from = to) {
+            to = storage.partitionEnd(items, from);
+            storage.partitionFor(items[from]).tell(stage
+                    ? new ReservationBatcher.StageKit(orderNumber, Arrays.copyOfRange(items, from, to))
+                    : new ReservationBatcher.ReleaseKit(orderNumber));
+        }
+    }
+
+    private static boolean contains(int[] orders, int count, int orderNumber) {
+        for (int i = 0; i < count; i++) {
+            if (orders[i] == orderNumber) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //Processes finished orders, the first completion of any attempt counts
+    private Behavior<Command> onOrderCompleted(OrderCompleted msg) {
+        Assignment assignment = assignments.remove(msg.orderNumber);
+        if (assignment == null) {
+            // An attempt whose lease expired finished after all, unless the order is done already
+            if (!attempts.containsKey(msg.orderNumber) || !orders.remove(msg.orderNumber)) {
+                metrics.duplicateCompletion();
+                return this;
+            }
+            attempts.remove(msg.orderNumber);
+            metrics.queueDepth(orders.size());
+            if (kitted.remove(msg.orderNumber)) {
+                sendKit(msg.orderNumber, details.get(msg.orderNumber).items, false);
+            }
+        } else if (msg.attempt != 0 && msg.attempt != assignment.attempt && assignment.productionLine != null) {
+            // An earlier attempt beat the current one, which is called off
+            assignment.productionLine.tell(new ProductionLine.CancelProduction(msg.orderNumber, assignment.attempt));
+        }
+        details.remove(msg.orderNumber);
+        kitted.remove(msg.orderNumber);
+        completed.add(msg.orderNumber);
+        journal.append(ORDER_COMPLETED, msg.orderNumber, 0, 0, 0);
+        if (isDrainedNow()) {
+            return onDrained();
+        }
+        return this;
+    }
+
+    //Draining and the last order in production is completed or back in the queue
+    private boolean isDrainedNow() {
+        return drainedReplyTo != null && !drained && assignments.isEmpty();
+    }
+
+    private Behavior<Command> onGetStatus(GetStatus msg) {
+        msg.replyTo.tell(new Status(orders.size(), assignments.size()));
+        return this;
+    }
+
+    private Behavior<Command> onDrain(Drain msg) {
+        if (drainedReplyTo != null) {
+            return this;
+        }
+        drainedReplyTo = msg.replyTo;
+        getContext().getLog().info("Draining: {} orders pending, waiting for {} in production",
+                orders.size(), assignments.size());
+        if (assignments.isEmpty()) {
+            return onDrained();
+        }
+        timers.startSingleTimer(DRAIN_TIMEOUT, settings.shutdownDrainTimeout);
+        return this;
+    }
+
+    //Everything is journaled, pending and unfinished orders are started again after the restart
+    private Behavior<Command> onDrained() {
+        if (drained) {
+            return this;
+        }
+        drained = true;
+        timers.cancel(DRAIN_TIMEOUT);
+        journal.flush();
+        getContext().getLog().info("Drained: {} orders pending, {} still in production", orders.size(),
+                assignments.size());
+        if (!journal.isEnabled() && orders.size() + assignments.size() > 0) {
+            getContext().getLog().warn("The journal is disabled, {} orders are lost",
+                    orders.size() + assignments.size());
+        }
+        drainedReplyTo.tell(new Status(orders.size(), assignments.size()));
+        return this;
+    }
+
+    //Registers with new lines, requeues the orders of lines that are gone, e.g. with their node
+    private Behavior<Command> onLinesChanged(LinesChanged msg) {
+        for (var productionLine : msg.productionLines) {
+            if (registeredLines.add(productionLine)) {
+                productionLine.tell(new ProductionLine.RegisterOrderBook(getContext().getSelf()));
+            }
+        }
+        Iterator<akka.actor.typed.ActorRef<ProductionLine.Command>> lines = registeredLines.iterator();
+        while (lines.hasNext()) {
+            var productionLine = lines.next();
+            if (!msg.productionLines.contains(productionLine)) {
+                lines.remove();
+                removeLine(productionLine);
+            }
+        }
+        dispatchOrders();
+        return this;
+    }
+
+    private void removeLine(akka.actor.typed.ActorRef<ProductionLine.Command> productionLine) {
+        freeCapacity.remove(productionLine);
+        idleLines.remove(productionLine);
+        int requeued = 0;
+        var entries = assignments.entrySet().iterator();
+        while (entries.hasNext()) {
+            var entry = entries.next();
+            if (productionLine.equals(entry.getValue().productionLine)) {
+                requeue(entry.getKey(), entry.getValue());
+                entries.remove();
+                requeued++;
+            }
+        }
+        getContext().getLog().info("Production line {} is gone, requeued its {} orders", productionLine.path(), requeued);
+    }
+
+    //Puts an order that was in production back into the queue, in front of all pending orders
+    private void requeue(int orderNumber, Assignment assignment) {
+        long key = orders.isEmpty() ? assignment.key : Math.min(assignment.key, orders.peekKey() - 1);
+        journal.append(ORDER_ACCEPTED, orderNumber, assignment.priority.ordinal(), assignment.dueTime, key);
+        orders.offer(orderNumber, assignment.priority, assignment.dueTime, key);
+        attempts.put(orderNumber, assignment.attempt);
+    }
+
+    //Group commit of everything journaled since the last tick
+    private Behavior<Command> onFlushJournal(FlushJournal msg) {
+        journal.flushAsync();
+        if (journal.eventsSinceSnapshot() >= settings.journalSnapshotInterval) {
+            journal.snapshot(this::writeSnapshot);
+        }
+        return this;
+    }
+
+    private Behavior<Command> onPublishState(PublishState msg) {
+        metrics.state().publish(new PlantState.OrderBookState(clock.currentTimeMillis(), orders.size(),
+                assignments.size(), freeCapacity.size(), idleLines.size(), producers.size(), outstandingDemand,
+                drainedReplyTo != null));
+        return this;
+    }
+
+    private Behavior<Command> onPostStop() {
+        journal.close();
+        return this;
+    }
+
+    //Applies a journaled event to the state while recovering
+    private void replay(int type, int orderNumber, int priority, long dueTime, long key) {
+        switch (type) {
+            case ORDER_ACCEPTED:
+                // Accepted again after a restart, a rejection or an expired lease while in production
+                Assignment requeued = assignments.remove(orderNumber);
+                if (requeued != null) {
+                    attempts.put(orderNumber, requeued.attempt);
+                }
+                if (!orders.contains(orderNumber)) {
+                    orders.offer(orderNumber, OrderPriority.ofOrdinal(priority), dueTime, key);
+                }
+                break;
+            case ORDER_ASSIGNED:
+                // The attempt is in the priority field, 0 in journals from before leases
+                Assignment assignment;
+                if (!orders.isEmpty() && orders.peekOrderNumber() == orderNumber) {
+                    assignment = new Assignment(orders.peekPriority(), orders.peekDueTime(), orders.peekKey(), null,
+                            priority, 0);
+                    orders.remove();
+                } else {
+                    // Ties in the dispatch key may come out in a different order after a snapshot
+                    assignment = removeQueued(orderNumber, priority);
+                }
+                if (assignment != null) {
+                    attempts.remove(orderNumber);
+                    assignments.put(orderNumber, assignment);
+                }
+                break;
+            case ORDER_COMPLETED:
+                // Also completed while requeued, by an attempt whose lease had expired
+                orders.remove(orderNumber);
+                assignments.remove(orderNumber);
+                attempts.remove(orderNumber);
+                details.remove(orderNumber);
+                completed.add(orderNumber);
+                break;
+            case ORDERS_COMPLETED:
+                completed.add(orderNumber, priority);
+                break;
+            case ORDER_MODEL:
+                details.put(orderNumber, new OrderDetails(priority, null));
+                break;
+            case ORDER_ITEM:
+                // Only while recovering, one copy per item is fine
+                OrderDetails orderDetails = details.get(orderNumber);
+                if (orderDetails != null) {
+                    int[] items = orderDetails.items;
+                    items = items == null ? new int[1] : Arrays.copyOf(items, items.length + 1);
+                    items[items.length - 1] = priority;
+                    orderDetails.items = items;
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown journal event " + type);
+        }
+    }
+
+    private Assignment removeQueued(int orderNumber, int attempt) {
+        Assignment[] found = new Assignment[1];
+        orders.remove(orderNumber, (queued, priority, dueTime, key) ->
+                found[0] = new Assignment(priority, dueTime, key, null, attempt, 0));
+        return found[0];
+    }
+
+    // Orders that were in production when the system went down are started again
+    private void recoverAssignments() {
+        for (var entry : assignments.entrySet()) {
+            requeue(entry.getKey(), entry.getValue());
+        }
+        if (!assignments.isEmpty()) {
+            getContext().getLog().info("Requeued {} orders that were in production", assignments.size());
+            assignments.clear();
+            journal.flush();
+        }
+    }
+
+    //Writes the events that rebuild the completed, pending and in-progress orders
+    private void writeSnapshot(Journal.Appender snapshot) {
+        // Runs of completed orders, order numbers are mostly handed out in sequence
+        for (int run = 0; run < completed.runs(); run++) {
+            snapshot.append(ORDERS_COMPLETED, completed.first(run), completed.last(run), 0, 0);
+        }
+        // In-progress orders first, so that replaying each assignment finds its order at the head
+        for (var entry : assignments.entrySet()) {
+            Assignment assignment = entry.getValue();
+            snapshot.append(ORDER_ACCEPTED, entry.getKey(), assignment.priority.ordinal(),
+                    assignment.dueTime, assignment.key);
+            snapshot.append(ORDER_ASSIGNED, entry.getKey(), assignment.attempt, 0, 0);
+            appendDetails(snapshot, entry.getKey());
+        }
+        // Pending orders in dispatch order, replaying them queues equal keys in the same order again
+        orders.forEachInOrder((orderNumber, priority, dueTime, key) -> {
+            snapshot.append(ORDER_ACCEPTED, orderNumber, priority.ordinal(), dueTime, key);
+            appendDetails(snapshot, orderNumber);
+        });
+    }
+
+    private void appendDetails(Journal.Appender snapshot, int orderNumber) {
+        OrderDetails orderDetails = details.get(orderNumber);
+        if (orderDetails != null) {
+            snapshot.append(ORDER_MODEL, orderNumber, orderDetails.model, 0, 0);
+            if (orderDetails.items != null) {
+                for (int item : orderDetails.items) {
+                    snapshot.append(ORDER_ITEM, orderNumber, item, 0, 0);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.example;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+
+/**
+ * Stand-in for an upstream order system: writes random orders in the format of {@link OrderParser}
+ * to a file for factory.ingestion.files, or sends them to factory.ingestion.tcp-port.
+ *
+ *   OrderFeed file|port orders [first order number] [items per order]
+ */
+public class OrderFeed {
+
+    private static final int MODELS = 8;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: OrderFeed <file|port> <orders> [first order number] [items per order]");
+            System.exit(1);
+        }
+        int orders = Integer.parseInt(args[1]);
+        int first = args.length > 2 ? Integer.parseInt(args[2]) : 1_000_000_000;
+        int itemsPerOrder = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+        ItemCatalog catalog = ItemCatalog.load(null);
+
+        long start = System.nanoTime();
+        if (args[0].chars().allMatch(Character::isDigit)) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(args[0]))) {
+                write(socket.getOutputStream(), orders, first, Math.min(itemsPerOrder, catalog.size()), catalog);
+            }
+        } else {
+            try (OutputStream out = Files.newOutputStream(Path.of(args[0]))) {
+                write(out, orders, first, Math.min(itemsPerOrder, catalog.size()), catalog);
+            }
+        }
+        System.out.printf("%d orders written to %s in %d ms%n", orders, args[0], (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private static void write(OutputStream target, int orders, int first, int itemsPerOrder,
+                              ItemCatalog catalog) throws IOException {
+        OrderPriority[] priorities = OrderPriority.values();
+        SplittableRandom random = new SplittableRandom();
+        OutputStream out = new BufferedOutputStream(target, 1 << 16);
+        StringBuilder line = new StringBuilder(64);
+        int[] items = new int[itemsPerOrder];
+        for (int i = 0; i < orders; i++) {
+            line.setLength(0);
+            OrderPriority priority = priorities[random.nextInt(priorities.length)];
+            line.append(first + i).append(',').append(random.nextInt(MODELS)).append(',').append(priority.name()).append(',');
+            if (priority == OrderPriority.RUSH) {
+                line.append(System.currentTimeMillis() + 3_600_000);
+            }
+            line.append(',');
+            // Distinct items
+            for (int j = 0; j < itemsPerOrder; j++) {
+                int item;
+                do {
+                    item = random.nextInt(catalog.size());
+                } while (contains(items, j, item));
+                items[j] = item;
+                line.append(j == 0 ? "" : ";").append(item);
+            }
+            line.append('\n');
+            out.write(line.toString().getBytes(StandardCharsets.US_ASCII));
+        }
+        out.flush();
+    }
+
+    private static boolean contains(int[] items, int count, int item) {
+        for (int i = 0; i < count; i++) {
+            if (items[i] == item) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
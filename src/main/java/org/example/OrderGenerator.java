@@ -1,61 +1,276 @@
 package org.example;
 
 import akka.actor.typed.Behavior;
+import akka.actor.typed.PostStop;
 import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
-import akka.actor.typed.javadsl.TimerScheduler;
+import org.slf4j.Logger;
 
+import java.nio.file.Path;
 import java.time.Duration;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.SplittableRandom;
 
 /**
- * Actor responsible for generating new car orders at fixed intervals.
+ * Actor generating the synthetic load: car orders arriving at the times of an {@link ArrivalProcess}.
  * Simulates customer orders coming into the system.
+ *
+ * Arrivals are open-loop. Every order that came due since the last tick is generated on the next one,
+ * however late the generator is, and is stamped with the time it was meant to arrive, so the order
+ * latency includes any time the plant made it wait.
+ *
+ * The generator only sends an order for which the OrderBook granted a credit. An order that comes
+ * due without credit is deferred or shed, see {@link Overload}: customers keep ordering while the
+ * plant is overloaded, but nothing piles up in the OrderBook.
+ *
+ * Several generators may share the load, generator i of n hands out the order numbers i + 1 + k * n.
  */
 
-public class OrderGenerator extends AbstractBehavior<OrderGenerator.GenerateOrder> {
+public class OrderGenerator extends AbstractBehavior<OrderGenerator.Command> {
 
-    //Internal message to trigger order generation
-    public static final class GenerateOrder {}
+    public interface Command {}
+
+    //Internal message to generate the orders that came due
+    public static final class GenerateOrder implements Command {}
+
+    //Message carrying credits granted by the OrderBook
+    private static final class DemandGranted implements Command {
+        final int orders;
+
+        DemandGranted(OrderBook.Demand demand) {
+            this.orders = demand.orders;
+        }
+    }
+
+    //How the arrival times are drawn, see ArrivalProcess
+    public enum Arrivals { FIXED, POISSON, SCHEDULE, TRACE }
+
+    //What happens to an order that comes due while the generator has no credit
+    public enum Overload {
+        // Counted and sent as soon as credits arrive, up to factory.order-generator.max-deferred
+        DEFER,
+        // Dropped
+        SHED
+    }
+
+    // Journal event type, holds the highest order number handed out or reserved
+    private static final int ORDER_NUMBERS_RESERVED = 1;
+
+    // Order numbers reserved with one journal flush; after a crash the unused ones are skipped
+    private static final int NUMBER_BLOCK = 1000;
 
     /**
-     * Factory method to create the order generator
+     * Factory method to create an order generator
      * @param orderBook Reference to the order book where new orders will be sent
+     * @param generator Index of this generator, from 0 to factory.order-generator.generators - 1
+     * @param settings Arrivals, overload policy and journal settings
+     * @param clock Clock the orders are generated on
+     * @param metrics Receives the arrivals and the time each order was meant to arrive
+     * @param random Source of the arrival times and the special items
+     * @param journalDirectory Directory of the journal, the order counter is recovered from it
      */
-    public static Behavior<GenerateOrder> create(akka.actor.typed.ActorRef<OrderBook.AddOrder> orderBook) {
-        return Behaviors.setup(context -> Behaviors.withTimers(timers ->
-                new OrderGenerator(context, timers, orderBook)));
+    public static Behavior<Command> create(akka.actor.typed.ActorRef<OrderBook.Command> orderBook, int generator,
+                                           FactorySettings settings, FactoryClock clock, FactoryMetrics metrics,
+                                           SplittableRandom random, Path journalDirectory) {
+        return Behaviors.setup(context ->
+                new OrderGenerator(context, orderBook, generator, settings, clock, metrics, random, journalDirectory));
     }
 
-    private final akka.actor.typed.ActorRef<OrderBook.AddOrder> orderBook;
-    private int orderCounter = 1;
+    private final akka.actor.typed.ActorRef<OrderBook.Command> orderBook;
+    private final int generator;
+    private final FactorySettings settings;
+    private final FactoryClock clock;
+    private final FactoryMetrics metrics;
+    private final ArrivalProcess arrivals;
+    // Source of the special items of the orders
+    private final SplittableRandom itemRandom;
+    private final Journal journal;
+    private final Logger log;
+    private final long startNanos;
+    // Intended time of the next arrival since the start, NONE once the arrivals are over
+    private long nextArrival;
+    private int orderCounter;
+    private int reservedUpTo;
 
-    private OrderGenerator(ActorContext<GenerateOrder> context,
-                           TimerScheduler<GenerateOrder> timers,
-                           akka.actor.typed.ActorRef<OrderBook.AddOrder> orderBook) {
+    // Orders the OrderBook accepts from us
+    private int credits;
+    // Intended arrival times of the orders that came due without credit, oldest first
+    private long[] deferred = new long[64];
+    private int deferredHead;
+    private int deferredCount;
+
+    private OrderGenerator(ActorContext<Command> context,
+                           akka.actor.typed.ActorRef<OrderBook.Command> orderBook, int generator,
+                           FactorySettings settings, FactoryClock clock, FactoryMetrics metrics,
+                           SplittableRandom random, Path journalDirectory) {
         super(context);
         this.orderBook = orderBook;
+        this.generator = generator;
+        this.settings = settings;
+        this.clock = clock;
+        this.metrics = metrics;
+        this.log = context.getLog();
+        this.orderCounter = generator + 1;
+        this.journal = settings.journalEnabled
+                ? Journal.open(journalDirectory, (type, orderNumber, b, c, d) -> recover(orderNumber))
+                : Journal.disabled();
+        this.reservedUpTo = orderCounter - settings.orderGenerators;
+        this.itemRandom = random.split();
+        this.arrivals = ArrivalProcess.of(settings, generator, random);
+        log.info("Generating {}", arrivals.description());
+
+        orderBook.tell(new OrderBook.RegisterProducer(
+                context.messageAdapter(OrderBook.Demand.class, DemandGranted::new)));
 
-        // Schedule order generation every 15 seconds
-        timers.startTimerWithFixedDelay(new GenerateOrder(), Duration.ofSeconds(15));
+        startNanos = clock.nanoTime();
+        nextArrival = arrivals.next();
+        scheduleNextArrival(startNanos);
+    }
+
+    //Continues with the first number of this generator above the journaled one
+    private void recover(int reserved) {
+        int generators = settings.orderGenerators;
+        orderCounter = reserved + 1 + Math.floorMod(generator - reserved, generators);
     }
 
     @Override
-    public Receive<GenerateOrder> createReceive() {
+    public Receive<Command> createReceive() {
         return newReceiveBuilder()
                 .onMessage(GenerateOrder.class, this::onGenerateOrder)
+                .onMessage(DemandGranted.class, this::onDemandGranted)
+                .onSignal(PostStop.class, signal -> onPostStop())
                 .build();
     }
 
     /**
-     * Handles order generation by creating a new order number and sending it to the order book
+     * Handles the orders that came due, each is sent if there is credit for it
      */
-    private Behavior<GenerateOrder> onGenerateOrder(GenerateOrder msg) {
-        int orderNumber = orderCounter++;
-        getContext().getLog().info("Generating new order: {}", orderNumber);
-        orderBook.tell(new OrderBook.AddOrder(orderNumber));
+    private Behavior<Command> onGenerateOrder(GenerateOrder msg) {
+        long now = clock.nanoTime();
+        while (nextArrival != ArrivalProcess.NONE && startNanos + nextArrival <= now) {
+            arrive(startNanos + nextArrival);
+            nextArrival = arrivals.next();
+        }
+        if (nextArrival == ArrivalProcess.NONE) {
+            log.info("No more arrivals, {} orders still deferred", deferredCount);
+        } else {
+            scheduleNextArrival(now);
+        }
+        return this;
+    }
+
+    //The delay is rounded up to whole millis, the next tick must not come before the arrival
+    private void scheduleNextArrival(long now) {
+        if (nextArrival == ArrivalProcess.NONE) {
+            return;
+        }
+        long delay = startNanos + nextArrival - now;
+        clock.scheduleOnce(Duration.ofMillis((delay + 999_999) / 1_000_000), getContext().getSelf(),
+                new GenerateOrder());
+    }
+
+    private void arrive(long intendedNanos) {
+        metrics.orderArrived();
+        if (credits > 0) {
+            send(intendedNanos);
+        } else if (settings.orderGeneratorOverload == Overload.DEFER
+                && deferredCount < settings.orderGeneratorMaxDeferred) {
+            defer(intendedNanos);
+            metrics.ordersDeferred(1);
+        } else {
+            metrics.orderShed();
+        }
+    }
+
+    //Sends the deferred orders first
+    private Behavior<Command> onDemandGranted(DemandGranted msg) {
+        credits += msg.orders;
+        int sent = Math.min(deferredCount, credits);
+        if (sent > 0) {
+            for (int i = 0; i < sent; i++) {
+                send(pollDeferred());
+            }
+            metrics.ordersDeferred(-sent);
+            log.info("{} deferred orders sent, {} still deferred", sent, deferredCount);
+        }
+        return this;
+    }
+
+    //Sends an order under the next order number, stamped with the time it was meant to arrive
+    private void send(long intendedNanos) {
+        credits--;
+        int orderNumber = nextOrderNumber();
+        if (log.isDebugEnabled()) {
+            log.debug("Generating new order: {}", orderNumber);
+        }
+        metrics.stamp(orderNumber, FactoryMetrics.Stage.GENERATED, intendedNanos);
+        orderBook.tell(new OrderBook.AddOrder(orderNumber, 0, pickItems()));
+    }
+
+    //Distinct random items of the catalog; the order carries them so storage can kit them while it waits
+    private int[] pickItems() {
+        int[] items = new int[settings.itemsPerOrder];
+        for (int i = 0; i < items.length; i++) {
+            int item;
+            do {
+                item = itemRandom.nextInt(settings.catalog.size());
+            } while (contains(items, i, item));
+            items[i] = item;
+        }
+        return items;
+    }
+
+    private static boolean contains(int[] items, int count, int item) {
+        for (int i = 0; i < count; i++) {
+            if (items[i] == item) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //Order numbers are journaled a block ahead, so a number is never handed out twice across restarts
+    private int nextOrderNumber() {
+        int orderNumber = orderCounter;
+        orderCounter += settings.orderGenerators;
+        if (orderNumber > reservedUpTo) {
+            int reserved = orderNumber + (NUMBER_BLOCK - 1) * settings.orderGenerators;
+            reservedUpTo = reserved;
+            journal.append(ORDER_NUMBERS_RESERVED, reserved, 0, 0, 0);
+            if (journal.eventsSinceSnapshot() >= settings.journalSnapshotInterval) {
+                journal.snapshot(snapshot -> snapshot.append(ORDER_NUMBERS_RESERVED, reserved, 0, 0, 0));
+            } else {
+                journal.flush();
+            }
+        }
+        return orderNumber;
+    }
+
+    private void defer(long intendedNanos) {
+        if (deferredCount == deferred.length) {
+            long[] grown = new long[deferred.length * 2];
+            for (int i = 0; i < deferredCount; i++) {
+                grown[i] = deferred[(deferredHead + i) % deferred.length];
+            }
+            deferred = grown;
+            deferredHead = 0;
+        }
+        deferred[(deferredHead + deferredCount) % deferred.length] = intendedNanos;
+        deferredCount++;
+    }
+
+    private long pollDeferred() {
+        long intendedNanos = deferred[deferredHead];
+        deferredHead = (deferredHead + 1) % deferred.length;
+        deferredCount--;
+        return intendedNanos;
+    }
+
+    private Behavior<Command> onPostStop() {
+        // Deferred orders die with the generator
+        metrics.ordersDeferred(-deferredCount);
+        journal.close();
         return this;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,160 @@
+package org.example;
+
+import akka.actor.typed.Behavior;
+import akka.actor.typed.PostStop;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds the orders of one {@link OrderSource} to the OrderBook in {@link OrderBook.AddOrders} batches.
+ *
+ * The ingestion is a producer like the generator: it reads only as many orders as the OrderBook
+ * granted it credits. The rest stays in the file or in the socket buffers, so a TCP sender is slowed
+ * down instead of filling the memory. Reading runs on the ingestion dispatcher, the blocking IO one
+ * by default, since touching a mapped page may wait for the disk. An ingestion from a file stops once
+ * the file is read.
+ */
+public class OrderIngestion extends AbstractBehavior<OrderIngestion.Command> {
+
+    public interface Command {}
+
+    //Message carrying credits granted by the OrderBook
+    private static final class DemandGranted implements Command {
+        final int orders;
+
+        DemandGranted(OrderBook.Demand demand) {
+            this.orders = demand.orders;
+        }
+    }
+
+    //Message to read on, sent to itself between batches and by the poll timer
+    private static final class ReadOrders implements Command {}
+
+    private static final ReadOrders READ_ORDERS = new ReadOrders();
+
+    // Batches read per message, credits and a stop of the system are not held up by a large file
+    private static final int BATCHES_PER_READ = 16;
+
+    /**
+     * Factory method to create an ingestion
+     * @param orderBook Receives the orders
+     * @param source Where the orders come from, closed when the ingestion stops
+     * @param settings Catalog the items are checked against, batch size and poll interval
+     * @param clock Clock the ingestion is timed on
+     * @param metrics Receives the time each order is ingested
+     */
+    static Behavior<Command> create(akka.actor.typed.ActorRef<OrderBook.Command> orderBook, OrderSource source,
+                                    FactorySettings settings, FactoryClock clock, FactoryMetrics metrics) {
+        return Behaviors.setup(context ->
+                Behaviors.withTimers(timers ->
+                        new OrderIngestion(context, timers, orderBook, source, settings, clock, metrics)));
+    }
+
+    private final TimerScheduler<Command> timers;
+    private final akka.actor.typed.ActorRef<OrderBook.Command> orderBook;
+    private final OrderSource source;
+    private final FactorySettings settings;
+    private final FactoryClock clock;
+    private final FactoryMetrics metrics;
+    private final OrderParser parser;
+    private final Logger log;
+    private final long startedAt;
+
+    private int credits;
+    private long ingested;
+
+    private OrderIngestion(ActorContext<Command> context, TimerScheduler<Command> timers,
+                           akka.actor.typed.ActorRef<OrderBook.Command> orderBook, OrderSource source,
+                           FactorySettings settings, FactoryClock clock, FactoryMetrics metrics) {
+        super(context);
+        this.timers = timers;
+        this.orderBook = orderBook;
+        this.source = source;
+        this.settings = settings;
+        this.clock = clock;
+        this.metrics = metrics;
+        this.parser = new OrderParser(settings.ingestionBatchSize, settings.catalog);
+        this.log = context.getLog();
+        this.startedAt = clock.nanoTime();
+
+        log.info("Ingesting orders from {}", source.description());
+        orderBook.tell(new OrderBook.RegisterProducer(
+                context.messageAdapter(OrderBook.Demand.class, DemandGranted::new)));
+    }
+
+    @Override
+    public Receive<Command> createReceive() {
+        return newReceiveBuilder()
+                .onMessage(DemandGranted.class, this::onDemandGranted)
+                .onMessage(ReadOrders.class, this::onReadOrders)
+                .onSignal(PostStop.class, signal -> onPostStop())
+                .build();
+    }
+
+    //Reading is paused without credits, the first credits resume it
+    private Behavior<Command> onDemandGranted(DemandGranted msg) {
+        if (credits == 0 && msg.orders > 0) {
+            getContext().getSelf().tell(READ_ORDERS);
+        }
+        credits += msg.orders;
+        return this;
+    }
+
+    //Reads and sends batches while there is credit and input
+    private Behavior<Command> onReadOrders(ReadOrders msg) {
+        for (int batch = 0; batch < BATCHES_PER_READ && credits > 0; batch++) {
+            parser.limit(credits);
+            boolean more;
+            try {
+                more = source.read(parser);
+            } catch (IOException e) {
+                log.error("Reading orders from {} failed after {} orders", source.description(), ingested, e);
+                return Behaviors.stopped();
+            }
+            boolean full = parser.isFull();
+            if (parser.size() > 0) {
+                sendOrders();
+            }
+            if (!more) {
+                log.info("Ingested {} orders from {} in {} ms, {} lines rejected", ingested, source.description(),
+                        TimeUnit.NANOSECONDS.toMillis(clock.nanoTime() - startedAt), parser.rejectedLines());
+                return Behaviors.stopped();
+            }
+            if (!full) {
+                // Nothing more to read right now
+                timers.startSingleTimer(READ_ORDERS, settings.ingestionPollInterval);
+                return this;
+            }
+        }
+        if (credits > 0) {
+            getContext().getSelf().tell(READ_ORDERS);
+        }
+        return this;
+    }
+
+    private void sendOrders() {
+        OrderBook.AddOrders orders = parser.drain();
+        for (int orderNumber : orders.orderNumbers) {
+            metrics.stamp(orderNumber, FactoryMetrics.Stage.GENERATED);
+        }
+        credits -= orders.orderNumbers.length;
+        ingested += orders.orderNumbers.length;
+        orderBook.tell(orders);
+    }
+
+    private Behavior<Command> onPostStop() {
+        try {
+            source.close();
+        } catch (IOException e) {
+            log.warn("Closing {} failed", source.description(), e);
+        }
+        return this;
+    }
+}
@@ -0,0 +1,100 @@
+package org.example;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.DeadLetter;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import akka.dispatch.UnboundedMessageQueueSemantics;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mailbox of the OrderBook, configured with mailbox-type = "org.example.OrderIntakeMailbox".
+ *
+ * Only the orders of the producers are bounded: beyond mailbox-capacity orders waiting in the mailbox
+ * a further AddOrder or AddOrders goes to dead letters. Producers are flow controlled with credits,
+ * so only one that ignores its credits gets there. The messages of the production lines and the
+ * storage are always queued, a dropped capacity report, acceptance or completion would lose a slot
+ * of a line or the state of an order for good.
+ */
+public class OrderIntakeMailbox implements MailboxType, ProducesMessageQueue<OrderIntakeMailbox.IntakeQueue> {
+
+    private final int capacity;
+
+    public OrderIntakeMailbox(ActorSystem.Settings settings, Config config) {
+        capacity = config.getInt("mailbox-capacity");
+    }
+
+    @Override
+    public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+        return new IntakeQueue(capacity, system.isDefined() ? system.get().deadLetters() : null);
+    }
+
+    static final class IntakeQueue implements MessageQueue, UnboundedMessageQueueSemantics {
+        private final int capacity;
+        private final ActorRef deadLetters;
+        private final Queue<Envelope> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger messages = new AtomicInteger();
+        // Orders in the queue, only they count against the capacity
+        private final AtomicInteger orders = new AtomicInteger();
+
+        IntakeQueue(int capacity, ActorRef deadLetters) {
+            this.capacity = capacity;
+            this.deadLetters = deadLetters;
+        }
+
+        @Override
+        public void enqueue(ActorRef receiver, Envelope handle) {
+            if (isOrder(handle.message()) && orders.incrementAndGet() > capacity) {
+                orders.decrementAndGet();
+                if (deadLetters != null) {
+                    deadLetters.tell(new DeadLetter(handle.message(), handle.sender(), receiver), handle.sender());
+                }
+                return;
+            }
+            messages.incrementAndGet();
+            queue.add(handle);
+        }
+
+        @Override
+        public Envelope dequeue() {
+            Envelope handle = queue.poll();
+            if (handle != null) {
+                messages.decrementAndGet();
+                if (isOrder(handle.message())) {
+                    orders.decrementAndGet();
+                }
+            }
+            return handle;
+        }
+
+        @Override
+        public int numberOfMessages() {
+            return messages.get();
+        }
+
+        @Override
+        public boolean hasMessages() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+            Envelope handle;
+            while ((handle = dequeue()) != null) {
+                deadLetters.enqueue(owner, handle);
+            }
+        }
+
+        private static boolean isOrder(Object message) {
+            return message instanceof OrderBook.AddOrder || message instanceof OrderBook.AddOrders;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.example;
+
+import java.util.Arrays;
+
+/**
+ * Set of order numbers kept as sorted runs of consecutive numbers, e.g. the completed orders of the
+ * OrderBook. Memory grows with the number of runs, not with the value of the numbers: orders are
+ * mostly completed close to the sequence they were numbered in, so the gaps left by orders still
+ * in production close again and the runs stay few however high the numbers go.
+ * Lookups are a binary search over the runs, O(log runs). Adding a number that extends or joins
+ * runs is O(log runs) as well, one that opens a new run in the middle shifts the runs after it.
+ */
+final class OrderNumberSet {
+
+    // Run i holds firsts[i] up to lasts[i], the runs are ascending and neither overlap nor touch
+    private int[] firsts = new int[16];
+    private int[] lasts = new int[16];
+    private int runs;
+
+    int runs() {
+        return runs;
+    }
+
+    int first(int run) {
+        return firsts[run];
+    }
+
+    int last(int run) {
+        return lasts[run];
+    }
+
+    boolean contains(int orderNumber) {
+        int run = runAtOrBefore(orderNumber);
+        return run >= 0 && orderNumber <= lasts[run];
+    }
+
+    void add(int orderNumber) {
+        add(orderNumber, orderNumber);
+    }
+
+    //Adds the numbers first up to last, inclusive, merging the runs they overlap or touch
+    void add(int first, int last) {
+        if (first > last) {
+            throw new IllegalArgumentException("Empty run of order numbers " + first + " to " + last);
+        }
+        int from = runAtOrBefore(first);
+        if (from < 0 || (long) lasts[from] + 1 < first) {
+            from++;
+        }
+        int to = from;
+        while (to < runs && firsts[to] <= (long) last + 1) {
+            to++;
+        }
+        if (to > from) {
+            first = Math.min(first, firsts[from]);
+            last = Math.max(last, lasts[to - 1]);
+        } else if (runs == firsts.length) {
+            firsts = Arrays.copyOf(firsts, runs * 2);
+            lasts = Arrays.copyOf(lasts, runs * 2);
+        }
+        // Runs from up to to become one
+        int shift = 1 - (to - from);
+        if (shift != 0) {
+            System.arraycopy(firsts, to, firsts, to + shift, runs - to);
+            System.arraycopy(lasts, to, lasts, to + shift, runs - to);
+            runs += shift;
+        }
+        firsts[from] = first;
+        lasts[from] = last;
+    }
+
+    //Index of the last run starting at or before the number, -1 if there is none
+    private int runAtOrBefore(int orderNumber) {
+        int low = 0;
+        int high = runs - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (firsts[mid] <= orderNumber) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+}
@@ -0,0 +1,239 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parses CSV orders into {@link OrderBook.AddOrders} batches, one order per line:
+ *
+ *   orderNumber,model,priority,dueTime,items
+ *
+ * priority is the name of an {@link OrderPriority}, STANDARD if empty. dueTime is in epoch millis,
+ * no deadline if empty. items are catalog ids separated by ';', if there are none the worker picks
+ * the special items. Lines starting with '#' are comments, malformed lines are counted and skipped.
+ *
+ * Lines are parsed straight from the bytes into the arrays of the batch being filled, nothing
+ * is allocated per line. Only handing out a batch copies its arrays.
+ */
+final class OrderParser {
+
+    private static final byte[][] PRIORITY_NAMES = new byte[OrderPriority.values().length][];
+
+    static {
+        for (OrderPriority priority : OrderPriority.values()) {
+            PRIORITY_NAMES[priority.ordinal()] = priority.name().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final int catalogSize;
+
+    // Batch being filled, order i has the items items[itemStarts[i]] up to items[itemStarts[i + 1]]
+    private final int[] orderNumbers;
+    private final int[] models;
+    private final int[] priorities;
+    private final long[] dueTimes;
+    private final int[] itemStarts;
+    private int[] items = new int[64];
+    private int size;
+    private int limit;
+
+    private long rejectedLines;
+
+    // Position in the line being parsed, -1 once it turned out to be malformed
+    private int cursor;
+
+    /**
+     * @param capacity Most orders in one batch
+     * @param catalog Items an order may ask for
+     */
+    OrderParser(int capacity, ItemCatalog catalog) {
+        this.catalogSize = catalog.size();
+        orderNumbers = new int[capacity];
+        models = new int[capacity];
+        priorities = new int[capacity];
+        dueTimes = new long[capacity];
+        itemStarts = new int[capacity + 1];
+        limit = capacity;
+    }
+
+    //Lowers the size of the current batch, e.g. to the credit left, at most the capacity
+    void limit(int orders) {
+        limit = Math.max(size, Math.min(orders, orderNumbers.length));
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isFull() {
+        return size >= limit;
+    }
+
+    long rejectedLines() {
+        return rejectedLines;
+    }
+
+    //Counts a line that was dropped by the caller, e.g. because it does not fit into its buffer
+    void rejectLine() {
+        rejectedLines++;
+    }
+
+    /**
+     * Parses complete lines from the buffer until the batch is full or no complete line is left.
+     * The buffer is positioned after the last parsed line.
+     * @param endOfInput Whether nothing follows the buffer, its last line then needs no line break
+     */
+    void parse(ByteBuffer in, boolean endOfInput) {
+        int position = in.position();
+        int end = in.limit();
+        while (size < limit && position < end) {
+            int lineEnd = position;
+            while (lineEnd < end && in.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd == end && !endOfInput) {
+                break;
+            }
+            int next = lineEnd + 1;
+            if (lineEnd > position && in.get(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+            if (lineEnd > position && in.get(position) != '#') {
+                parseLine(in, position, lineEnd);
+            }
+            position = Math.min(next, end);
+        }
+        in.position(position);
+    }
+
+    //Copies the orders parsed so far into a message and starts a new batch
+    OrderBook.AddOrders drain() {
+        OrderBook.AddOrders batch = new OrderBook.AddOrders(
+                Arrays.copyOf(orderNumbers, size), Arrays.copyOf(models, size), Arrays.copyOf(priorities, size),
+                Arrays.copyOf(dueTimes, size), Arrays.copyOf(itemStarts, size + 1),
+                Arrays.copyOf(items, itemStarts[size]));
+        size = 0;
+        limit = orderNumbers.length;
+        return batch;
+    }
+
+    private void parseLine(ByteBuffer in, int start, int end) {
+        cursor = start;
+        int orderNumber = (int) parseNumber(in, end, -1, Integer.MAX_VALUE);
+        expect(in, end, ',');
+        int model = (int) parseNumber(in, end, -1, Integer.MAX_VALUE);
+        expect(in, end, ',');
+        int priority = parsePriority(in, end);
+        expect(in, end, ',');
+        long dueTime = parseNumber(in, end, Long.MAX_VALUE, Long.MAX_VALUE);
+
+        int first = itemStarts[size];
+        int count = 0;
+        if (cursor >= 0 && cursor < end) {
+            expect(in, end, ',');
+            while (cursor >= 0 && cursor < end) {
+                if (count > 0) {
+                    expect(in, end, ';');
+                }
+                int item = (int) parseNumber(in, end, -1, Integer.MAX_VALUE);
+                if (cursor < 0 || item >= catalogSize || contains(first, count, item)) {
+                    cursor = -1;
+                    break;
+                }
+                if (first + count == items.length) {
+                    items = Arrays.copyOf(items, items.length * 2);
+                }
+                items[first + count++] = item;
+            }
+        }
+        if (cursor < 0 || cursor != end) {
+            rejectedLines++;
+            return;
+        }
+
+        orderNumbers[size] = orderNumber;
+        models[size] = model;
+        priorities[size] = priority;
+        dueTimes[size] = dueTime;
+        itemStarts[++size] = first + count;
+    }
+
+    //Non-negative decimal number up to max, the default if the field is empty. A larger one makes the line malformed
+    private long parseNumber(ByteBuffer in, int end, long empty, long max) {
+        if (cursor < 0) {
+            return 0;
+        }
+        int start = cursor;
+        long value = 0;
+        while (cursor < end) {
+            int digit = in.get(cursor) - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            if (value > (max - digit) / 10) {
+                cursor = -1;
+                return 0;
+            }
+            value = value * 10 + digit;
+            cursor++;
+        }
+        if (cursor == start) {
+            if (empty < 0) {
+                cursor = -1;
+            }
+            return empty;
+        }
+        return value;
+    }
+
+    private int parsePriority(ByteBuffer in, int end) {
+        if (cursor < 0) {
+            return 0;
+        }
+        int length = 0;
+        while (cursor + length < end && in.get(cursor + length) != ',') {
+            length++;
+        }
+        if (length == 0) {
+            return OrderPriority.STANDARD.ordinal();
+        }
+        for (int p = 0; p < PRIORITY_NAMES.length; p++) {
+            byte[] name = PRIORITY_NAMES[p];
+            if (name.length == length && matches(in, cursor, name)) {
+                cursor += length;
+                return p;
+            }
+        }
+        cursor = -1;
+        return 0;
+    }
+
+    private void expect(ByteBuffer in, int end, char separator) {
+        if (cursor >= 0) {
+            if (cursor < end && in.get(cursor) == separator) {
+                cursor++;
+            } else {
+                cursor = -1;
+            }
+        }
+    }
+
+    private boolean contains(int from, int count, int item) {
+        for (int i = from; i < from + count; i++) {
+            if (items[i] == item) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(ByteBuffer in, int at, byte[] name) {
+        for (int i = 0; i < name.length; i++) {
+            if (in.get(at + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
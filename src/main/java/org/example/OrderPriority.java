@@ -0,0 +1,37 @@
+package org.example;
+
+import java.time.Duration;
+
+/**
+ * Priority class of a car order.
+ * Orders are dispatched by earliest deadline, but every class has an aging limit:
+ * an order is never overtaken for longer than that limit, no matter how far away its due time is.
+ * Rush orders therefore go out first, while bulk orders still get their turn eventually.
+ */
+public enum OrderPriority {
+    RUSH(Duration.ZERO),
+    STANDARD(Duration.ofMinutes(1)),
+    BULK(Duration.ofMinutes(10));
+
+    private static final OrderPriority[] VALUES = values();
+
+    private final long agingLimitMillis;
+
+    OrderPriority(Duration agingLimit) {
+        this.agingLimitMillis = agingLimit.toMillis();
+    }
+
+    /**
+     * Computes the key the OrderBook dispatches by, smaller keys go first
+     * @param enqueuedAt Time the order entered the queue (epoch millis)
+     * @param dueTime Time the order is due (epoch millis), Long.MAX_VALUE for no deadline
+     */
+    public long dispatchKey(long enqueuedAt, long dueTime) {
+        return Math.min(dueTime, enqueuedAt + agingLimitMillis);
+    }
+
+    // Lookup without the array copy of values()
+    public static OrderPriority ofOrdinal(int ordinal) {
+        return VALUES[ordinal];
+    }
+}
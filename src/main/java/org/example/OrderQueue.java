@@ -0,0 +1,369 @@
+package org.example;
+
+import java.util.Arrays;
+
+/**
+ * Queue of pending orders used by the OrderBook.
+ * Implemented as a 4-ary min-heap over parallel primitive arrays, ordered by dispatch key and,
+ * for equal keys, by arrival. Insert and poll are O(log n) and allocate nothing unless
+ * the arrays have to grow, which they do by doubling.
+ * An open-addressing index from order number to heap slot, kept up to date as orders move,
+ * makes removing any order O(log n) as well. An order number is queued at most once.
+ */
+final class OrderQueue {
+
+    //Receives the queued orders, see forEachInOrder
+    interface Visitor {
+        void visit(int orderNumber, OrderPriority priority, long dueTime, long key);
+    }
+
+    private static final int ARITY = 4;
+
+    private long[] keys;
+    private long[] sequences;
+    private long[] dueTimes;
+    private int[] orderNumbers;
+    private byte[] priorities;
+    private int size;
+    private long nextSequence;
+    // Index of the queued orders: linear probing over a power of two table at most half full,
+    // each entry holds an order number and its heap slot plus one, 0 marks a free entry
+    private int[] indexOrders;
+    private int[] indexSlots;
+    // Heap slots still to look at while peeking at the first orders, a binary min-heap itself
+    private int[] frontier = new int[ARITY];
+
+    OrderQueue(int initialCapacity) {
+        int capacity = Math.max(initialCapacity, ARITY);
+        keys = new long[capacity];
+        sequences = new long[capacity];
+        dueTimes = new long[capacity];
+        orderNumbers = new int[capacity];
+        priorities = new byte[capacity];
+        int indexCapacity = Integer.highestOneBit(capacity - 1) << 2;
+        indexOrders = new int[indexCapacity];
+        indexSlots = new int[indexCapacity];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Adds an order
+     * @param key Dispatch key, see {@link OrderPriority#dispatchKey(long, long)}
+     */
+    void offer(int orderNumber, OrderPriority priority, long dueTime, long key) {
+        if (size == keys.length) {
+            grow();
+        }
+        int slot = size++;
+        set(slot, key, nextSequence++, dueTime, orderNumber, (byte) priority.ordinal());
+        siftUp(slot);
+    }
+
+    int peekOrderNumber() {
+        checkNotEmpty();
+        return orderNumbers[0];
+    }
+
+    OrderPriority peekPriority() {
+        checkNotEmpty();
+        return OrderPriority.ofOrdinal(priorities[0]);
+    }
+
+    long peekDueTime() {
+        checkNotEmpty();
+        return dueTimes[0];
+    }
+
+    long peekKey() {
+        checkNotEmpty();
+        return keys[0];
+    }
+
+    //Removes the head of the queue, read it with the peek methods before
+    void remove() {
+        checkNotEmpty();
+        removeAt(0);
+    }
+
+    boolean contains(int orderNumber) {
+        return indexOf(orderNumber) >= 0;
+    }
+
+    /**
+     * Removes the given order wherever it is in the queue, found through the index: O(log n).
+     * The OrderBook uses it for orders completed by an attempt whose lease expired, and when replaying its journal.
+     * @return false if the order is not queued
+     */
+    boolean remove(int orderNumber) {
+        return remove(orderNumber, null);
+    }
+
+    /**
+     * Removes the given order like {@link #remove(int)}
+     * @param removed Visits the order before it is removed, may be null
+     */
+    boolean remove(int orderNumber, Visitor removed) {
+        int entry = indexOf(orderNumber);
+        if (entry < 0) {
+            return false;
+        }
+        int slot = indexSlots[entry] - 1;
+        if (removed != null) {
+            removed.visit(orderNumber, OrderPriority.ofOrdinal(priorities[slot]), dueTimes[slot], keys[slot]);
+        }
+        removeAt(slot);
+        return true;
+    }
+
+    /**
+     * The first orders in dispatch order, without removing them. Walks the heap best first: the next
+     * order is the earliest of the frontier, a binary heap of the children of the orders taken so far.
+     * The frontier holds at most count * (ARITY - 1) + 1 slots, so this is O(count log count).
+     * @param first Receives the order numbers
+     * @return Number of orders written, the length of first or the size of the queue
+     */
+    int peekFirst(int[] first) {
+        int count = Math.min(first.length, size);
+        if (count == 0) {
+            return 0;
+        }
+        int maxFrontier = Math.min(count * (ARITY - 1) + 1, size);
+        if (frontier.length < maxFrontier) {
+            frontier = new int[maxFrontier];
+        }
+        walk(count, frontier, first, null);
+        return count;
+    }
+
+    /**
+     * Visits all queued orders in dispatch order, walking the heap like {@link #peekFirst}: O(n log n).
+     * Offering them again in this order queues them the same way, ties included.
+     */
+    void forEachInOrder(Visitor visitor) {
+        if (size > 0) {
+            walk(size, new int[size], null, visitor);
+        }
+    }
+
+    //Takes the first count orders from the frontier, into first or else to the visitor
+    private void walk(int count, int[] frontier, int[] first, Visitor visitor) {
+        frontier[0] = 0;
+        int candidates = 1;
+        for (int n = 0; n < count; n++) {
+            int slot = frontier[0];
+            frontier[0] = frontier[--candidates];
+            siftDownFrontier(frontier, candidates);
+            if (first != null) {
+                first[n] = orderNumbers[slot];
+            } else {
+                visitor.visit(orderNumbers[slot], OrderPriority.ofOrdinal(priorities[slot]), dueTimes[slot], keys[slot]);
+            }
+            int firstChild = slot * ARITY + 1;
+            int lastChild = Math.min(firstChild + ARITY, size);
+            for (int child = firstChild; child < lastChild; child++) {
+                frontier[candidates] = child;
+                siftUpFrontier(frontier, candidates++);
+            }
+        }
+    }
+
+    //Removes the head of the queue and returns its order number
+    int poll() {
+        int orderNumber = peekOrderNumber();
+        remove();
+        return orderNumber;
+    }
+
+    private void removeAt(int slot) {
+        unindex(orderNumbers[slot]);
+        int last = --size;
+        if (slot != last) {
+            move(last, slot);
+            siftDown(slot);
+            siftUp(slot);
+        }
+    }
+
+    private void siftUp(int slot) {
+        long key = keys[slot];
+        long sequence = sequences[slot];
+        long dueTime = dueTimes[slot];
+        int orderNumber = orderNumbers[slot];
+        byte priority = priorities[slot];
+
+        while (slot > 0) {
+            int parent = (slot - 1) / ARITY;
+            if (!before(key, sequence, parent)) {
+                break;
+            }
+            move(parent, slot);
+            slot = parent;
+        }
+        set(slot, key, sequence, dueTime, orderNumber, priority);
+    }
+
+    private void siftDown(int slot) {
+        long key = keys[slot];
+        long sequence = sequences[slot];
+        long dueTime = dueTimes[slot];
+        int orderNumber = orderNumbers[slot];
+        byte priority = priorities[slot];
+
+        while (true) {
+            int firstChild = slot * ARITY + 1;
+            if (firstChild >= size) {
+                break;
+            }
+            int lastChild = Math.min(firstChild + ARITY, size);
+            int smallest = firstChild;
+            for (int child = firstChild + 1; child < lastChild; child++) {
+                if (before(keys[child], sequences[child], smallest)) {
+                    smallest = child;
+                }
+            }
+            if (!before(keys[smallest], sequences[smallest], key, sequence)) {
+                break;
+            }
+            move(smallest, slot);
+            slot = smallest;
+        }
+        set(slot, key, sequence, dueTime, orderNumber, priority);
+    }
+
+    private void siftUpFrontier(int[] frontier, int at) {
+        int slot = frontier[at];
+        while (at > 0) {
+            int parent = (at - 1) >>> 1;
+            if (!before(keys[slot], sequences[slot], frontier[parent])) {
+                break;
+            }
+            frontier[at] = frontier[parent];
+            at = parent;
+        }
+        frontier[at] = slot;
+    }
+
+    private void siftDownFrontier(int[] frontier, int candidates) {
+        if (candidates == 0) {
+            return;
+        }
+        int slot = frontier[0];
+        int at = 0;
+        while (true) {
+            int child = at * 2 + 1;
+            if (child >= candidates) {
+                break;
+            }
+            int right = child + 1;
+            if (right < candidates && before(keys[frontier[right]], sequences[frontier[right]], frontier[child])) {
+                child = right;
+            }
+            if (!before(keys[frontier[child]], sequences[frontier[child]], slot)) {
+                break;
+            }
+            frontier[at] = frontier[child];
+            at = child;
+        }
+        frontier[at] = slot;
+    }
+
+    private boolean before(long key, long sequence, int slot) {
+        return before(key, sequence, keys[slot], sequences[slot]);
+    }
+
+    private static boolean before(long key, long sequence, long otherKey, long otherSequence) {
+        return key < otherKey || (key == otherKey && sequence < otherSequence);
+    }
+
+    private void move(int from, int to) {
+        set(to, keys[from], sequences[from], dueTimes[from], orderNumbers[from], priorities[from]);
+    }
+
+    private void set(int slot, long key, long sequence, long dueTime, int orderNumber, byte priority) {
+        keys[slot] = key;
+        sequences[slot] = sequence;
+        dueTimes[slot] = dueTime;
+        orderNumbers[slot] = orderNumber;
+        priorities[slot] = priority;
+        index(orderNumber, slot);
+    }
+
+    private void grow() {
+        int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        sequences = Arrays.copyOf(sequences, capacity);
+        dueTimes = Arrays.copyOf(dueTimes, capacity);
+        orderNumbers = Arrays.copyOf(orderNumbers, capacity);
+        priorities = Arrays.copyOf(priorities, capacity);
+        if (capacity * 2 > indexOrders.length) {
+            indexOrders = new int[indexOrders.length * 2];
+            indexSlots = new int[indexSlots.length * 2];
+            for (int slot = 0; slot < size; slot++) {
+                index(orderNumbers[slot], slot);
+            }
+        }
+    }
+
+    //Entry of the order in the index, -1 if it is not queued
+    private int indexOf(int orderNumber) {
+        int mask = indexOrders.length - 1;
+        for (int entry = hash(orderNumber) & mask; indexSlots[entry] != 0; entry = (entry + 1) & mask) {
+            if (indexOrders[entry] == orderNumber) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private void index(int orderNumber, int slot) {
+        int mask = indexOrders.length - 1;
+        int entry = hash(orderNumber) & mask;
+        while (indexSlots[entry] != 0 && indexOrders[entry] != orderNumber) {
+            entry = (entry + 1) & mask;
+        }
+        indexOrders[entry] = orderNumber;
+        indexSlots[entry] = slot + 1;
+    }
+
+    //Frees the entry of the order and moves later entries of its probe run back, no tombstones needed
+    private void unindex(int orderNumber) {
+        int entry = indexOf(orderNumber);
+        if (entry < 0) {
+            return;
+        }
+        int mask = indexOrders.length - 1;
+        int next = entry;
+        while (true) {
+            next = (next + 1) & mask;
+            if (indexSlots[next] == 0) {
+                break;
+            }
+            int home = hash(indexOrders[next]) & mask;
+            // The entry at next may fill the gap unless its home lies cyclically in (entry, next]
+            if (((next - home) & mask) >= ((next - entry) & mask)) {
+                indexOrders[entry] = indexOrders[next];
+                indexSlots[entry] = indexSlots[next];
+                entry = next;
+            }
+        }
+        indexSlots[entry] = 0;
+    }
+
+    private static int hash(int orderNumber) {
+        int h = orderNumber * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private void checkNotEmpty() {
+        if (size == 0) {
+            throw new IllegalStateException("Order queue is empty");
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Where an {@link OrderIngestion} reads its orders from. Sources never block: a read takes what
+ * is there and returns, the ingestion polls again later.
+ */
+interface OrderSource extends AutoCloseable {
+
+    /**
+     * Parses orders into the parser until it is full or no more input is available right now
+     * @return False once the input is exhausted and the source can be closed
+     */
+    boolean read(OrderParser parser) throws IOException;
+
+    //Where the orders come from, for logs
+    String description();
+
+    @Override
+    void close() throws IOException;
+
+    //Orders of a file, memory-mapped in windows
+    static OrderSource file(Path file) {
+        return new MappedFile(file);
+    }
+
+    //Orders sent to a TCP port on localhost, one connection after the other
+    static OrderSource tcp(int port) {
+        return new Tcp(port);
+    }
+
+    /**
+     * Maps the file window by window, so large files neither go through a read buffer nor need
+     * one mapping of their full size. A line crossing the end of a window is parsed from the next one.
+     */
+    final class MappedFile implements OrderSource {
+        private static final long WINDOW = 64L << 20;
+
+        private final Path file;
+        private FileChannel channel;
+        private long size;
+        // File offset of the window and the window, positioned at the first unparsed byte
+        private long windowStart;
+        private MappedByteBuffer window;
+
+        MappedFile(Path file) {
+            this.file = file;
+        }
+
+        @Override
+        public boolean read(OrderParser parser) throws IOException {
+            if (channel == null) {
+                channel = FileChannel.open(file, StandardOpenOption.READ);
+                size = channel.size();
+                if (size == 0) {
+                    return false;
+                }
+                map(0);
+            }
+            while (!parser.isFull()) {
+                boolean last = windowStart + window.limit() == size;
+                parser.parse(window, last);
+                if (parser.isFull()) {
+                    break;
+                }
+                if (last) {
+                    return false;
+                }
+                // The rest of the window is the start of a line that continues in the next one
+                if (window.position() == 0) {
+                    // Not a single line break in a full window
+                    parser.rejectLine();
+                    window.position(window.limit());
+                }
+                map(windowStart + window.position());
+            }
+            return windowStart + window.position() < size;
+        }
+
+        private void map(long from) throws IOException {
+            windowStart = from;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(WINDOW, size - from));
+        }
+
+        @Override
+        public String description() {
+            return file.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            window = null;
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Accepts one connection at a time on the loopback interface and parses what it sends.
+     * A line longer than the buffer is dropped. The source is never exhausted, the next connection
+     * is accepted once the current one is closed.
+     */
+    final class Tcp implements OrderSource {
+        private static final int BUFFER_SIZE = 64 << 10;
+
+        private final int port;
+        private ServerSocketChannel server;
+        private SocketChannel connection;
+        // Kept ready for reading between calls
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).flip();
+        // The connection is closed, the buffer still holds the last orders it sent
+        private boolean draining;
+
+        Tcp(int port) {
+            this.port = port;
+        }
+
+        @Override
+        public boolean read(OrderParser parser) throws IOException {
+            if (server == null) {
+                server = ServerSocketChannel.open();
+                server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+                server.configureBlocking(false);
+            }
+            if (draining && !drain(parser)) {
+                return true;
+            }
+            if (connection == null) {
+                connection = server.accept();
+                if (connection == null) {
+                    return true;
+                }
+                connection.configureBlocking(false);
+            }
+            while (!parser.isFull()) {
+                parser.parse(buffer, false);
+                if (parser.isFull()) {
+                    break;
+                }
+                buffer.compact();
+                if (!buffer.hasRemaining()) {
+                    // Not a single line break in a full buffer
+                    parser.rejectLine();
+                    buffer.clear();
+                }
+                int read = connection.read(buffer);
+                buffer.flip();
+                if (read < 0) {
+                    connection.close();
+                    connection = null;
+                    draining = true;
+                    drain(parser);
+                    break;
+                }
+                if (read == 0) {
+                    break;
+                }
+            }
+            return true;
+        }
+
+        //Parses the rest of a closed connection, true once all of it is parsed
+        private boolean drain(OrderParser parser) {
+            parser.parse(buffer, true);
+            if (buffer.hasRemaining()) {
+                return false;
+            }
+            buffer.clear().flip();
+            draining = false;
+            return true;
+        }
+
+        @Override
+        public String description() {
+            return "tcp://localhost:" + port;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (connection != null) {
+                connection.close();
+            }
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package org.example;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read model of the plant on this node: the latest state the OrderBook, the production lines, the
+ * workers, the storage partitions and the {@link DemandAnalytics} published, served as JSON on /state by the {@link MetricsEndpoint}.
+ *
+ * Every core actor publishes an immutable snapshot of its state at factory.state.publish-interval.
+ * Publishing replaces one reference, readers never lock and never send a message to an actor, so
+ * any number of readers costs the actors nothing. A snapshot is at most one interval old. Its
+ * publishedAt is epoch millis of the plant {@link FactoryClock}, simulated time in a simulation, so
+ * it compares with the due times of the orders and the windows of the analytics.
+ */
+public final class PlantState {
+
+    //State of the OrderBook
+    public static final class OrderBookState {
+        public final long publishedAt;
+        public final int pendingOrders;
+        public final int ordersInProduction;
+        public final int productionLines;
+        public final int idleProductionLines;
+        public final int producers;
+        public final int outstandingDemand;
+        public final boolean draining;
+
+        public OrderBookState(long publishedAt, int pendingOrders, int ordersInProduction, int productionLines,
+                              int idleProductionLines, int producers, int outstandingDemand, boolean draining) {
+            this.publishedAt = publishedAt;
+            this.pendingOrders = pendingOrders;
+            this.ordersInProduction = ordersInProduction;
+            this.productionLines = productionLines;
+            this.idleProductionLines = idleProductionLines;
+            this.producers = producers;
+            this.outstandingDemand = outstandingDemand;
+            this.draining = draining;
+        }
+    }
+
+    //State of a production line, stage arrays are indexed by ProductionLine.Stage ordinal
+    public static final class ProductionLineState {
+        public final String name;
+        public final long publishedAt;
+        public final int[] occupiedSlots;
+        public final int[] stageCapacity;
+        // Orders on the line, ascending
+        public final int[] orders;
+
+        public ProductionLineState(String name, long publishedAt, int[] occupiedSlots, int[] stageCapacity,
+                                   int[] orders) {
+            this.name = name;
+            this.publishedAt = publishedAt;
+            this.occupiedSlots = occupiedSlots;
+            this.stageCapacity = stageCapacity;
+            this.orders = orders;
+        }
+    }
+
+    //State of a worker
+    public static final class WorkerState {
+        public final String name;
+        public final long publishedAt;
+        // Orders whose special items the worker is fetching, ascending
+        public final int[] orders;
+
+        public WorkerState(String name, long publishedAt, int[] orders) {
+            this.name = name;
+            this.publishedAt = publishedAt;
+            this.orders = orders;
+        }
+    }
+
+    //State of a storage partition, arrays are indexed by the slot of the item in the partition
+    public static final class StorageState {
+        public final int partition;
+        public final long publishedAt;
+        public final int[] items;
+        public final int[] stock;
+        public final int[] reserved;
+        public final boolean[] restocking;
+        // Orders waiting for a restock of the item
+        public final int[] waiting;
+
+        public StorageState(int partition, long publishedAt, int[] items, int[] stock, int[] reserved,
+                            boolean[] restocking, int[] waiting) {
+            this.partition = partition;
+            this.publishedAt = publishedAt;
+            this.items = items;
+            this.stock = stock;
+            this.reserved = reserved;
+            this.restocking = restocking;
+            this.waiting = waiting;
+        }
+    }
+
+    //Aggregates over the sliding window of DemandAnalytics and the restock policy they led to
+    public static final class AnalyticsState {
+        public final long publishedAt;
+        // By catalog item: units consumed per second over the window, the smoothed rate, the policy
+        public final double[] consumedPerSecond;
+        public final double[] forecastPerSecond;
+        public final int[] reorderPoints;
+        public final int[] restockQuantities;
+        // Orders per second over the window, by line
+        public final String[] productionLines;
+        public final double[] throughputPerSecond;
+        // Mean time an order spends in a stage over the window, by ProductionLine.Stage ordinal
+        public final double[] stageSeconds;
+
+        public AnalyticsState(long publishedAt, double[] consumedPerSecond, double[] forecastPerSecond,
+                              int[] reorderPoints, int[] restockQuantities, String[] productionLines,
+                              double[] throughputPerSecond, double[] stageSeconds) {
+            this.publishedAt = publishedAt;
+            this.consumedPerSecond = consumedPerSecond;
+            this.forecastPerSecond = forecastPerSecond;
+            this.reorderPoints = reorderPoints;
+            this.restockQuantities = restockQuantities;
+            this.productionLines = productionLines;
+            this.throughputPerSecond = throughputPerSecond;
+            this.stageSeconds = stageSeconds;
+        }
+    }
+
+    private final ItemCatalog catalog;
+    private volatile OrderBookState orderBook;
+    private volatile AnalyticsState analytics;
+    private final Map<String, ProductionLineState> productionLines = new ConcurrentHashMap<>();
+    private final Map<String, WorkerState> workers = new ConcurrentHashMap<>();
+    private final Map<Integer, StorageState> storage = new ConcurrentHashMap<>();
+    // Counts the publications, a reader can tell whether anything changed since it last rendered
+    private final AtomicLong version = new AtomicLong();
+
+    PlantState(ItemCatalog catalog) {
+        this.catalog = catalog;
+    }
+
+    public void publish(OrderBookState state) {
+        orderBook = state;
+        version.incrementAndGet();
+    }
+
+    public void publish(ProductionLineState state) {
+        productionLines.put(state.name, state);
+        version.incrementAndGet();
+    }
+
+    public void publish(WorkerState state) {
+        workers.put(state.name, state);
+        version.incrementAndGet();
+    }
+
+    public void publish(StorageState state) {
+        storage.put(state.partition, state);
+        version.incrementAndGet();
+    }
+
+    public void publish(AnalyticsState state) {
+        analytics = state;
+        version.incrementAndGet();
+    }
+
+    //The actor is gone, e.g. a worker removed from the pool
+    public void removeProductionLine(String name) {
+        productionLines.remove(name);
+        version.incrementAndGet();
+    }
+
+    public void removeWorker(String name) {
+        workers.remove(name);
+        version.incrementAndGet();
+    }
+
+    long version() {
+        return version.get();
+    }
+
+    //Sections of the JSON document, each can be queried on its own
+    enum Section { ORDER_BOOK, PRODUCTION_LINES, WORKERS, STORAGE, ANALYTICS }
+
+    //The given sections as one JSON object, all sections if none is given
+    String toJson(Section... sections) {
+        if (sections.length == 0) {
+            sections = Section.values();
+        }
+        StringBuilder json = new StringBuilder(4096);
+        json.append("{\"version\":").append(version.get());
+        for (Section section : sections) {
+            switch (section) {
+                case ORDER_BOOK:
+                    json.append(",\"orderBook\":");
+                    appendOrderBook(json, orderBook);
+                    break;
+                case PRODUCTION_LINES:
+                    json.append(",\"productionLines\":[");
+                    String separator = "";
+                    for (ProductionLineState line : new TreeMap<>(productionLines).values()) {
+                        json.append(separator);
+                        appendProductionLine(json, line);
+                        separator = ",";
+                    }
+                    json.append(']');
+                    break;
+                case WORKERS:
+                    json.append(",\"workers\":[");
+                    separator = "";
+                    for (WorkerState worker : new TreeMap<>(workers).values()) {
+                        json.append(separator).append("{\"name\":");
+                        string(json, worker.name);
+                        json.append(",\"publishedAt\":").append(worker.publishedAt).append(",\"orders\":");
+                        ints(json, worker.orders);
+                        json.append('}');
+                        separator = ",";
+                    }
+                    json.append(']');
+                    break;
+                case STORAGE:
+                    json.append(",\"storage\":[");
+                    separator = "";
+                    for (StorageState partition : new TreeMap<>(storage).values()) {
+                        json.append(separator);
+                        appendStorage(json, partition);
+                        separator = ",";
+                    }
+                    json.append(']');
+                    break;
+                case ANALYTICS:
+                    json.append(",\"analytics\":");
+                    appendAnalytics(json, analytics);
+                    break;
+            }
+        }
+        return json.append('}').toString();
+    }
+
+    private static void appendOrderBook(StringBuilder json, OrderBookState book) {
+        if (book == null) {
+            json.append("null");
+            return;
+        }
+        json.append("{\"publishedAt\":").append(book.publishedAt)
+                .append(",\"pendingOrders\":").append(book.pendingOrders)
+                .append(",\"ordersInProduction\":").append(book.ordersInProduction)
+                .append(",\"productionLines\":").append(book.productionLines)
+                .append(",\"idleProductionLines\":").append(book.idleProductionLines)
+                .append(",\"producers\":").append(book.producers)
+                .append(",\"outstandingDemand\":").append(book.outstandingDemand)
+                .append(",\"draining\":").append(book.draining).append('}');
+    }
+
+    private static void appendProductionLine(StringBuilder json, ProductionLineState line) {
+        json.append("{\"name\":");
+        string(json, line.name);
+        json.append(",\"publishedAt\":").append(line.publishedAt).append(",\"stages\":{");
+        ProductionLine.Stage[] stages = ProductionLine.Stage.values();
+        for (int i = 0; i < stages.length; i++) {
+            json.append(i == 0 ? "\"" : ",\"").append(stages[i].name().toLowerCase())
+                    .append("\":{\"occupied\":").append(line.occupiedSlots[i])
+                    .append(",\"capacity\":").append(line.stageCapacity[i]).append('}');
+        }
+        json.append("},\"orders\":");
+        ints(json, line.orders);
+        json.append('}');
+    }
+
+    private void appendStorage(StringBuilder json, StorageState partition) {
+        json.append("{\"partition\":").append(partition.partition)
+                .append(",\"publishedAt\":").append(partition.publishedAt).append(",\"items\":[");
+        for (int slot = 0; slot < partition.items.length; slot++) {
+            json.append(slot == 0 ? "{\"id\":" : ",{\"id\":").append(partition.items[slot]).append(",\"name\":");
+            string(json, catalog.name(partition.items[slot]));
+            json.append(",\"stock\":").append(partition.stock[slot])
+                    .append(",\"reserved\":").append(partition.reserved[slot])
+                    .append(",\"restocking\":").append(partition.restocking[slot])
+                    .append(",\"waiting\":").append(partition.waiting[slot]).append('}');
+        }
+        json.append("]}");
+    }
+
+    private void appendAnalytics(StringBuilder json, AnalyticsState analytics) {
+        if (analytics == null) {
+            json.append("null");
+            return;
+        }
+        json.append("{\"publishedAt\":").append(analytics.publishedAt).append(",\"items\":[");
+        for (int item = 0; item < analytics.forecastPerSecond.length; item++) {
+            json.append(item == 0 ? "{\"id\":" : ",{\"id\":").append(item).append(",\"name\":");
+            string(json, catalog.name(item));
+            json.append(",\"consumedPerSecond\":").append(analytics.consumedPerSecond[item])
+                    .append(",\"forecastPerSecond\":").append(analytics.forecastPerSecond[item])
+                    .append(",\"reorderPoint\":").append(analytics.reorderPoints[item])
+                    .append(",\"restockQuantity\":").append(analytics.restockQuantities[item]).append('}');
+        }
+        json.append("],\"productionLines\":[");
+        for (int line = 0; line < analytics.productionLines.length; line++) {
+            json.append(line == 0 ? "{\"name\":" : ",{\"name\":");
+            string(json, analytics.productionLines[line]);
+            json.append(",\"throughputPerSecond\":").append(analytics.throughputPerSecond[line]).append('}');
+        }
+        json.append("],\"stageSeconds\":{");
+        ProductionLine.Stage[] stages = ProductionLine.Stage.values();
+        for (int i = 0; i < stages.length; i++) {
+            json.append(i == 0 ? "\"" : ",\"").append(stages[i].name().toLowerCase()).append("\":")
+                    .append(analytics.stageSeconds[i]);
+        }
+        json.append("}}");
+    }
+
+    private static void ints(StringBuilder json, int[] values) {
+        json.append('[');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(values[i]);
+        }
+        json.append(']');
+    }
+
+    private static void string(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    //Sorted copy of the order numbers, for the snapshots
+    static int[] sorted(Iterable<Integer> orders, int count) {
+        int[] sorted = new int[count];
+        int i = 0;
+        for (int order : orders) {
+            sorted[i++] = order;
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+}
@@ -1,147 +1,429 @@
 package org.example;
 
 import akka.actor.typed.Behavior;
+import akka.actor.typed.PostStop;
 import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+import akka.actor.typed.receptionist.ServiceKey;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import org.slf4j.Logger;
 
-import java.time.Duration;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
 
 /**
  * The ProductionLine actor manages the car production process for a single assembly line.
- * It coordinates workers to build car bodies and install special requests.
+ *
+ * The line is a pipeline of {@link Stage}s, each with its own number of slots, so the body of
+ * one order can be built while the special items of another are fetched. An order that is done
+ * with a stage keeps its slot until the next stage has room (blocking pipeline), so a slow stage
+ * backs up into the ones before it. New orders enter through the body build stage, whose free
+ * slots the line reports to the OrderBook.
+ *
+ * Every order comes under a lease of the OrderBook, see {@link StartProduction#attempt}. The line
+ * accepts or rejects it right away and drops it when the OrderBook calls the attempt off.
  */
 public class ProductionLine extends AbstractBehavior<ProductionLine.Command> {
 
+    //Stages an order passes through, in order
+    public enum Stage { BODY_BUILD, SPECIAL_ITEM_FETCH, INSTALL }
+
     // Interface for all possible messages this actor can receive
-    public interface Command {}
+    public interface Command extends CborSerializable {}
+
+    // Lines of a cluster register under this key, the OrderBook finds them through the receptionist
+    public static final ServiceKey<Command> SERVICE_KEY = ServiceKey.create(Command.class, "productionLine");
 
-    //Message from OrderBook checking if this production line is available
-    public static final class IsAvailable implements Command {
-        public final akka.actor.typed.ActorRef<OrderBook.Command> replyTo;
+    //Message from OrderBook registering itself as the receiver of capacity updates
+    public static final class RegisterOrderBook implements Command {
+        public final akka.actor.typed.ActorRef<OrderBook.Command> orderBook;
 
-        public IsAvailable(akka.actor.typed.ActorRef<OrderBook.Command> replyTo) {
-            this.replyTo = replyTo;
+        @JsonCreator
+        public RegisterOrderBook(akka.actor.typed.ActorRef<OrderBook.Command> orderBook) {
+            this.orderBook = orderBook;
         }
     }
 
-    //Message to start production of a specific order
+    //Message to start production of a specific order, answered with ProductionAccepted or ProductionRejected
     public static final class StartProduction implements Command {
         public final int orderNumber;
+        // Counts the times the OrderBook handed the order to a line, the lease is for this attempt
+        public final int attempt;
+        public final int model;
+        // Special items the order asks for, null if the worker picks them
+        public final int[] items;
 
         public StartProduction(int orderNumber) {
+            this(orderNumber, 1, 0, null);
+        }
+
+        @JsonCreator
+        public StartProduction(int orderNumber, int attempt, int model, int[] items) {
+            this.orderNumber = orderNumber;
+            this.attempt = attempt;
+            this.model = model;
+            this.items = items;
+        }
+    }
+
+    //Message from the OrderBook: the lease of the attempt expired, the order was handed out again
+    public static final class CancelProduction implements Command {
+        public final int orderNumber;
+        public final int attempt;
+
+        public CancelProduction(int orderNumber, int attempt) {
             this.orderNumber = orderNumber;
+            this.attempt = attempt;
         }
     }
 
     //Message indicating the car body has been built
     public static final class BodyBuilt implements Command {
         public final int orderNumber;
+        // Attempt the body was built for, the build of an attempt called off is ignored
+        public final int attempt;
+
+        public BodyBuilt(int orderNumber) {
+            this(orderNumber, 1);
+        }
+
+        @JsonCreator
+        public BodyBuilt(int orderNumber, int attempt) {
+            this.orderNumber = orderNumber;
+            this.attempt = attempt;
+        }
+    }
+
+    //Message from the worker indicating the special items of the order are at the line
+    public static final class SpecialItemsFetched implements Command {
+        public final int orderNumber;
+        // Attempt the fetch was made for, a fetch of an attempt called off is ignored
+        public final int attempt;
         public final akka.actor.typed.ActorRef<Worker.Command> worker;
 
-        public BodyBuilt(int orderNumber, akka.actor.typed.ActorRef<Worker.Command> worker) {
+        public SpecialItemsFetched(int orderNumber, akka.actor.typed.ActorRef<Worker.Command> worker) {
+            this(orderNumber, 1, worker);
+        }
+
+        @JsonCreator
+        public SpecialItemsFetched(int orderNumber, int attempt, akka.actor.typed.ActorRef<Worker.Command> worker) {
             this.orderNumber = orderNumber;
+            this.attempt = attempt;
             this.worker = worker;
         }
     }
 
-    //Message indicating special requests have been installed
+    //Message indicating the special items have been installed, the car is finished
     public static final class SpecialRequestsInstalled implements Command {
         public final int orderNumber;
-        public final akka.actor.typed.ActorRef<Worker.Command> worker;
+        // Attempt the items were installed for, the installation of an attempt called off is ignored
+        public final int attempt;
+
+        public SpecialRequestsInstalled(int orderNumber) {
+            this(orderNumber, 1);
+        }
 
-        public SpecialRequestsInstalled(int orderNumber, akka.actor.typed.ActorRef<Worker.Command> worker) {
+        @JsonCreator
+        public SpecialRequestsInstalled(int orderNumber, int attempt) {
             this.orderNumber = orderNumber;
-            this.worker = worker;
+            this.attempt = attempt;
         }
     }
 
+    //Message to publish the state of the line to the PlantState read model
+    private static final class PublishState implements Command {}
+
     /**
      * Factory method to create the ProductionLine actor
-     * @param workers Array of available worker actors
+     * @param workerPool Pool whose workers fetch the special items
+     * @param analytics Receives the time every order spent in each stage, may be null
+     * @param settings Production timings and stage capacities
+     * @param clock Clock the body builds and installations run on
+     * @param metrics Receives the line utilization and the stages of the orders
+     * @param random Source of the build and install times
      */
-    public static Behavior<Command> create(akka.actor.typed.ActorRef<Worker.Command>[] workers) {
-        return Behaviors.setup(context -> new ProductionLine(context, workers));
+    public static Behavior<Command> create(akka.actor.typed.ActorRef<WorkerPool.Command> workerPool,
+                                           akka.actor.typed.ActorRef<DemandAnalytics.Command> analytics,
+                                           FactorySettings settings, FactoryClock clock,
+                                           FactoryMetrics metrics, SplittableRandom random) {
+        return Behaviors.setup(context -> Behaviors.withTimers(timers ->
+                new ProductionLine(context, timers, workerPool, analytics, settings, clock, metrics, random)));
     }
 
-    private final akka.actor.typed.ActorRef<Worker.Command>[] workers;
-    private boolean isAvailable = true;
+    private static final Stage[] STAGES = Stage.values();
 
-    private ProductionLine(ActorContext<Command> context,
-                           akka.actor.typed.ActorRef<Worker.Command>[] workers) {
+    private final akka.actor.typed.ActorRef<WorkerPool.Command> workerPool;
+    private final akka.actor.typed.ActorRef<DemandAnalytics.Command> analytics;
+    private final FactorySettings settings;
+    private final FactoryClock clock;
+    private final FactoryMetrics metrics;
+    private final SplittableRandom random;
+    private final Logger log;
+    private akka.actor.typed.ActorRef<OrderBook.Command> orderBook;
+
+    // Per stage: slots, occupied slots and orders done with the stage that wait for the next one
+    private final int[] capacity;
+    private final int[] occupied = new int[STAGES.length];
+    private final Deque<Integer>[] blocked;
+
+    //An order on the line: the attempt it came with and the stage it is in, or waits to leave
+    private static final class OnLine {
+        int attempt;
+        // Attempt the work of the current stage runs for, the one the order had when it entered the
+        // stage. An order handed out again while on the line keeps it, its work still counts
+        int stageAttempt;
+        Stage stage = Stage.BODY_BUILD;
+        // Clock time the order entered its stage, and the time it spent in the stages it left
+        long enteredAt;
+        final long[] stageNanos = new long[STAGES.length];
+
+        OnLine(int attempt) {
+            this.attempt = attempt;
+        }
+    }
+
+    // Orders on the line
+    private final Map<Integer, OnLine> inFlight = new HashMap<>();
+    // Special items of the orders on the line that came with them, until they are fetched
+    private final Map<Integer, int[]> orderItems = new HashMap<>();
+    private long busySince;
+
+    @SuppressWarnings("unchecked")
+    private ProductionLine(ActorContext<Command> context, TimerScheduler<Command> timers,
+                           akka.actor.typed.ActorRef<WorkerPool.Command> workerPool,
+                           akka.actor.typed.ActorRef<DemandAnalytics.Command> analytics,
+                           FactorySettings settings, FactoryClock clock, FactoryMetrics metrics,
+                           SplittableRandom random) {
         super(context);
-        this.workers = workers;
+        this.workerPool = workerPool;
+        this.analytics = analytics;
+        this.settings = settings;
+        this.clock = clock;
+        this.metrics = metrics;
+        this.random = random;
+        this.log = context.getLog();
+        this.capacity = settings.productionLineStageCapacity.clone();
+        this.blocked = new Deque[STAGES.length];
+        for (int i = 0; i < STAGES.length; i++) {
+            blocked[i] = new ArrayDeque<>();
+        }
+        if (!settings.statePublishInterval.isZero()) {
+            timers.startTimerWithFixedDelay(new PublishState(), settings.statePublishInterval);
+        }
     }
 
     @Override
     public Receive<Command> createReceive() {
         return newReceiveBuilder()
-                .onMessage(IsAvailable.class, this::onIsAvailable)
+                .onMessage(RegisterOrderBook.class, this::onRegisterOrderBook)
                 .onMessage(StartProduction.class, this::onStartProduction)
+                .onMessage(CancelProduction.class, this::onCancelProduction)
                 .onMessage(BodyBuilt.class, this::onBodyBuilt)
+                .onMessage(SpecialItemsFetched.class, this::onSpecialItemsFetched)
                 .onMessage(SpecialRequestsInstalled.class, this::onSpecialRequestsInstalled)
+                .onMessage(PublishState.class, this::onPublishState)
+                .onSignal(PostStop.class, signal -> onPostStop())
                 .build();
     }
 
-    // Handles availability check requests from OrderBook
-//    private Behavior<Command> onIsAvailable(IsAvailable msg) {
-//        if (isAvailable) {
-//            msg.replyTo.tell(new OrderBook.ProductionLineAvailable(getContext().getSelf()));
-//            System.out.print("hihi");
-//        }
-//        return this;
-//    }
-
-    private Behavior<Command> onIsAvailable(IsAvailable msg) {
-        if (isAvailable) {
-            msg.replyTo.tell(new OrderBook.ProductionLineAvailable(getContext().getSelf()));
-            System.out.println("hihi");
-        }
-        else {
-            System.out.println("haha");
+    //Remembers the OrderBook and reports the initial free capacity
+    private Behavior<Command> onRegisterOrderBook(RegisterOrderBook msg) {
+        orderBook = msg.orderBook;
+        int free = capacity[Stage.BODY_BUILD.ordinal()] - occupied[Stage.BODY_BUILD.ordinal()];
+        if (free > 0) {
+            orderBook.tell(new OrderBook.ProductionLineAvailable(getContext().getSelf(), free));
         }
         return this;
     }
 
     //Starts production for a new order
     private Behavior<Command> onStartProduction(StartProduction msg) {
-        if (isAvailable) {
-            isAvailable = false;
-            getContext().getLog().info("Starting production for order {}", msg.orderNumber);
-
-            // Assign a random worker
-            int workerIndex = ThreadLocalRandom.current().nextInt(workers.length);
-            var worker = workers[workerIndex];
-
-            // Schedule body building (takes 5-10 seconds)
-            int buildTime = ThreadLocalRandom.current().nextInt(5, 11);
-            getContext().scheduleOnce(
-                    Duration.ofSeconds(buildTime),
-                    getContext().getSelf(),
-                    new BodyBuilt(msg.orderNumber, worker)
-            );
+        OnLine onLine = inFlight.get(msg.orderNumber);
+        if (onLine != null) {
+            // Handed out again after its lease expired: built once, under the new attempt, and the
+            // slot the OrderBook counted for it is still free
+            onLine.attempt = msg.attempt;
+            tellOrderBook(new OrderBook.ProductionAccepted(msg.orderNumber, msg.attempt));
+            tellOrderBook(new OrderBook.ProductionLineAvailable(getContext().getSelf(), 1));
+            return this;
+        }
+        if (occupied[Stage.BODY_BUILD.ordinal()] >= capacity[Stage.BODY_BUILD.ordinal()]) {
+            if (log.isDebugEnabled()) {
+                log.debug("Order {} rejected, the body build stage is full", msg.orderNumber);
+            }
+            tellOrderBook(new OrderBook.ProductionRejected(msg.orderNumber, msg.attempt, getContext().getSelf()));
+            return this;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Starting production for order {} (model {})", msg.orderNumber, msg.model);
+        }
+        if (inFlight.isEmpty()) {
+            busySince = metrics.lineStarted();
+        }
+        inFlight.put(msg.orderNumber, new OnLine(msg.attempt));
+        if (msg.items != null) {
+            orderItems.put(msg.orderNumber, msg.items);
+        }
+        tellOrderBook(new OrderBook.ProductionAccepted(msg.orderNumber, msg.attempt));
+        enter(Stage.BODY_BUILD, msg.orderNumber);
+        return this;
+    }
+
+    //Drops the order from whatever stage it is in, work still under way for it is ignored when it is done
+    private Behavior<Command> onCancelProduction(CancelProduction msg) {
+        OnLine onLine = inFlight.get(msg.orderNumber);
+        if (onLine == null || onLine.attempt != msg.attempt) {
+            return this;
+        }
+        metrics.productionCancelled();
+        if (log.isDebugEnabled()) {
+            log.debug("Order {} called off at {}, attempt {} expired", msg.orderNumber, onLine.stage, msg.attempt);
+        }
+        inFlight.remove(msg.orderNumber);
+        orderItems.remove(msg.orderNumber);
+        boolean waiting = blocked[onLine.stage.ordinal()].remove(msg.orderNumber);
+        if (onLine.stage == Stage.SPECIAL_ITEM_FETCH && !waiting) {
+            // The worker stops fetching and gives back what it reserved
+            workerPool.tell(new WorkerPool.CancelFetch(msg.orderNumber, onLine.stageAttempt));
+        }
+        release(onLine.stage);
+        if (inFlight.isEmpty()) {
+            metrics.lineFinished(busySince);
         }
         return this;
     }
 
     //Handles completion of car body construction
     private Behavior<Command> onBodyBuilt(BodyBuilt msg) {
-        getContext().getLog().info("Order {}: Body built by {}, now installing special requests",
-                msg.orderNumber, msg.worker.path().name());
+        if (!isCurrent(inFlight.get(msg.orderNumber), Stage.BODY_BUILD, msg.attempt)) {
+            return this;
+        }
+        metrics.stamp(msg.orderNumber, FactoryMetrics.Stage.BODY_BUILT);
+        if (log.isDebugEnabled()) {
+            log.debug("Order {}: Body built, now fetching the special items", msg.orderNumber);
+        }
+        finished(Stage.BODY_BUILD, msg.orderNumber);
+        return this;
+    }
 
-        // Tell worker to install special requests
-        msg.worker.tell(new Worker.InstallSpecialRequests(msg.orderNumber, getContext().getSelf()));
+    //Handles the special items arriving at the line
+    private Behavior<Command> onSpecialItemsFetched(SpecialItemsFetched msg) {
+        if (log.isDebugEnabled()) {
+            log.debug("Order {}: Special items brought by {}", msg.orderNumber, msg.worker.path().name());
+        }
+        if (isCurrent(inFlight.get(msg.orderNumber), Stage.SPECIAL_ITEM_FETCH, msg.attempt)) {
+            finished(Stage.SPECIAL_ITEM_FETCH, msg.orderNumber);
+        }
         return this;
     }
 
-    //Handles completion of special requests installation
+    //Handles completion of special requests installation, the order leaves the line
     private Behavior<Command> onSpecialRequestsInstalled(SpecialRequestsInstalled msg) {
-        getContext().getLog().info("Order {} completed by {}, production line now available",
-                msg.orderNumber, msg.worker.path().name());
+        OnLine onLine = inFlight.get(msg.orderNumber);
+        if (!isCurrent(onLine, Stage.INSTALL, msg.attempt)) {
+            return this;
+        }
+        inFlight.remove(msg.orderNumber);
+        metrics.stamp(msg.orderNumber, FactoryMetrics.Stage.INSTALLED);
+        if (log.isDebugEnabled()) {
+            log.debug("Order {} completed", msg.orderNumber);
+        }
+        release(Stage.INSTALL);
+        if (inFlight.isEmpty()) {
+            metrics.lineFinished(busySince);
+        }
+        tellOrderBook(new OrderBook.OrderCompleted(msg.orderNumber, onLine.attempt));
+        if (analytics != null) {
+            onLine.stageNanos[Stage.INSTALL.ordinal()] = clock.nanoTime() - onLine.enteredAt;
+            analytics.tell(new DemandAnalytics.OrderBuilt(getContext().getSelf().path().name(), onLine.stageNanos));
+        }
+        return this;
+    }
 
-        isAvailable = true; // Mark as available for new orders
+    //Whether the order is on the line and the work of the attempt in the stage is still wanted
+    private static boolean isCurrent(OnLine onLine, Stage stage, int attempt) {
+        return onLine != null && onLine.stage == stage && onLine.stageAttempt == attempt;
+    }
+
+    private Behavior<Command> onPublishState(PublishState msg) {
+        metrics.state().publish(new PlantState.ProductionLineState(getContext().getSelf().path().name(),
+                clock.currentTimeMillis(), occupied.clone(), capacity.clone(), PlantState.sorted(inFlight.keySet(), inFlight.size())));
+        return this;
+    }
+
+    private Behavior<Command> onPostStop() {
+        metrics.state().removeProductionLine(getContext().getSelf().path().name());
         return this;
     }
-}
\ No newline at end of file
+
+    private void tellOrderBook(OrderBook.Command message) {
+        if (orderBook != null) {
+            orderBook.tell(message);
+        }
+    }
+
+    //The order is done with the stage, moves it on or lets it wait for the next stage
+    private void finished(Stage stage, int orderNumber) {
+        OnLine onLine = inFlight.get(orderNumber);
+        if (onLine == null || onLine.stage != stage) {
+            return;
+        }
+        int next = stage.ordinal() + 1;
+        if (occupied[next] < capacity[next]) {
+            release(stage);
+            enter(STAGES[next], orderNumber);
+        } else {
+            blocked[stage.ordinal()].add(orderNumber);
+        }
+    }
+
+    //Frees a slot of the stage and pulls in the next order waiting for it
+    private void release(Stage stage) {
+        int index = stage.ordinal();
+        occupied[index]--;
+        metrics.stageLeft(stage);
+        if (index == 0) {
+            tellOrderBook(new OrderBook.ProductionLineAvailable(getContext().getSelf(), 1));
+        } else if (!blocked[index - 1].isEmpty()) {
+            int orderNumber = blocked[index - 1].poll();
+            release(STAGES[index - 1]);
+            enter(stage, orderNumber);
+        }
+    }
+
+    //Takes a slot of the stage and starts its work on the order
+    private void enter(Stage stage, int orderNumber) {
+        OnLine onLine = inFlight.get(orderNumber);
+        long now = clock.nanoTime();
+        if (stage != Stage.BODY_BUILD) {
+            // Time in the previous stage, including the wait for this one
+            onLine.stageNanos[stage.ordinal() - 1] = now - onLine.enteredAt;
+        }
+        onLine.stage = stage;
+        onLine.stageAttempt = onLine.attempt;
+        onLine.enteredAt = now;
+        occupied[stage.ordinal()]++;
+        metrics.stageEntered(stage);
+        switch (stage) {
+            case BODY_BUILD:
+                clock.scheduleOnce(settings.bodyBuildTime.sample(random), getContext().getSelf(),
+                        new BodyBuilt(orderNumber, onLine.attempt));
+                break;
+            case SPECIAL_ITEM_FETCH:
+                // The pool picks the worker
+                workerPool.tell(new WorkerPool.Fetch(orderNumber, onLine.attempt, orderItems.remove(orderNumber),
+                        getContext().getSelf()));
+                break;
+            case INSTALL:
+                clock.scheduleOnce(settings.installTime.sample(random), getContext().getSelf(),
+                        new SpecialRequestsInstalled(orderNumber, onLine.attempt));
+                break;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.example;
+
+import akka.actor.typed.ActorSystem;
+
+import java.time.Duration;
+
+/**
+ * Wall clock backed by the scheduler of the actor system
+ */
+final class RealTimeClock implements FactoryClock {
+
+    private final ActorSystem<?> system;
+
+    RealTimeClock(ActorSystem<?> system) {
+        this.system = system;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public <T> void scheduleOnce(Duration delay, akka.actor.typed.ActorRef<T> target, T message) {
+        if (delay.isZero()) {
+            // The scheduler rounds up to its tick, a zero delay is delivered right away
+            target.tell(message);
+            return;
+        }
+        system.scheduler().scheduleOnce(delay, () -> target.tell(message), system.executionContext());
+    }
+}
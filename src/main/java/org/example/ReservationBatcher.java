@@ -0,0 +1,285 @@
+package org.example;
+
+import akka.actor.typed.Behavior;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+import com.fasterxml.jackson.annotation.JsonCreator;
+
+import java.util.Arrays;
+
+/**
+ * Sits in front of one LocalStorage partition and turns the reservations and commits of all
+ * workers into batches, so the partition pays its mailbox and scheduling cost once per batch.
+ *
+ * A batch is sent when it reaches factory.local-storage.batching.max-items, or once the batching
+ * window has passed since its first entry. With a window of zero the batch is sent as soon as the
+ * batcher has worked off its mailbox: whatever arrived in the meantime goes into the batch, so
+ * batches grow with the load and a single request is not delayed at all.
+ *
+ * The items one order reserves in the partition stay next to each other in the batch, so the
+ * partition can grant them together. Every entry carries its worker, the batcher keeps no state
+ * about the reservations it sent.
+ */
+public class ReservationBatcher extends AbstractBehavior<ReservationBatcher.Command> {
+
+    public interface Command extends CborSerializable {}
+
+    //Message from a worker reserving one unit of each item for an attempt of an order, granted all or nothing
+    public static final class Reserve implements Command {
+        public final int orderNumber;
+        public final int attempt;
+        public final int[] items;
+        public final akka.actor.typed.ActorRef<Worker.Command> worker;
+
+        public Reserve(int orderNumber, int attempt, int[] items, akka.actor.typed.ActorRef<Worker.Command> worker) {
+            this.orderNumber = orderNumber;
+            this.attempt = attempt;
+            this.items = items;
+            this.worker = worker;
+        }
+    }
+
+    //Message from a worker consuming the units reserved for an attempt of an order
+    public static final class Commit implements Command {
+        public final int orderNumber;
+        public final int attempt;
+        public final int[] items;
+
+        public Commit(int orderNumber, int attempt, int[] items) {
+            this.orderNumber = orderNumber;
+            this.attempt = attempt;
+            this.items = items;
+        }
+    }
+
+    /**
+     * Message withdrawing the reservation of a fetch that was called off, from its worker, or of a
+     * failed worker, from the pool. Passed on right away, behind the reservations collected so far
+     */
+    public static final class CancelReserve implements Command {
+        public final int orderNumber;
+        public final int attempt;
+        public final akka.actor.typed.ActorRef<Worker.Command> worker;
+
+        public CancelReserve(int orderNumber, int attempt, akka.actor.typed.ActorRef<Worker.Command> worker) {
+            this.orderNumber = orderNumber;
+            this.attempt = attempt;
+            this.worker = worker;
+        }
+    }
+
+    //Message from the OrderBook staging the items of a queued order in the partition, passed on right away
+    public static final class StageKit implements Command {
+        public final int orderNumber;
+        public final int[] items;
+
+        public StageKit(int orderNumber, int[] items) {
+            this.orderNumber = orderNumber;
+            this.items = items;
+        }
+    }
+
+    //Message from the OrderBook dropping the kit of an order, passed on right away
+    public static final class ReleaseKit implements Command {
+        public final int orderNumber;
+
+        @JsonCreator
+        public ReleaseKit(int orderNumber) {
+            this.orderNumber = orderNumber;
+        }
+    }
+
+    /**
+     * Message from the storage partition: entry i (orderNumbers[i], attempts[i], items[i], workers[i]) was
+     * granted if granted[i] is set, otherwise its order waits for a restock and the partition tells the
+     * worker once it is granted
+     */
+    public static final class ReservationResult implements Command {
+        public final int[] orderNumbers;
+        public final int[] attempts;
+        public final int[] items;
+        public final akka.actor.typed.ActorRef<Worker.Command>[] workers;
+        public final boolean[] granted;
+
+        public ReservationResult(int[] orderNumbers, int[] attempts, int[] items,
+                                 akka.actor.typed.ActorRef<Worker.Command>[] workers, boolean[] granted) {
+            this.orderNumbers = orderNumbers;
+            this.attempts = attempts;
+            this.items = items;
+            this.workers = workers;
+            this.granted = granted;
+        }
+    }
+
+    //Message to send the current batch
+    private static final class Flush implements Command {}
+
+    private static final Flush FLUSH = new Flush();
+
+    /**
+     * @param storage The partition the batches go to, an actor or a sharded entity
+     * @param settings Batch size and window
+     * @param clock Clock the batching window runs on
+     */
+    public static Behavior<Command> create(akka.actor.typed.RecipientRef<LocalStorage.Command> storage,
+                                           FactorySettings settings, FactoryClock clock) {
+        return Behaviors.setup(context -> new ReservationBatcher(context, storage, settings, clock));
+    }
+
+    private final akka.actor.typed.RecipientRef<LocalStorage.Command> storage;
+    private final FactorySettings settings;
+    private final FactoryClock clock;
+
+    // Entries of the batches being collected
+    private final int[] reserveOrders;
+    private final int[] reserveAttempts;
+    private final int[] reserveItems;
+    private final akka.actor.typed.ActorRef<Worker.Command>[] reserveWorkers;
+    private int reserves;
+    private final int[] commitOrders;
+    private final int[] commitAttempts;
+    private final int[] commitItems;
+    private int commits;
+    private boolean flushScheduled;
+
+    @SuppressWarnings("unchecked")
+    private ReservationBatcher(ActorContext<Command> context, akka.actor.typed.RecipientRef<LocalStorage.Command> storage,
+                               FactorySettings settings, FactoryClock clock) {
+        super(context);
+        this.storage = storage;
+        this.settings = settings;
+        this.clock = clock;
+        // The items of one order are distinct, so they always fit into a batch
+        int capacity = Math.max(settings.reservationBatchSize, settings.catalog.size());
+        reserveOrders = new int[capacity];
+        reserveAttempts = new int[capacity];
+        reserveItems = new int[capacity];
+        reserveWorkers = new akka.actor.typed.ActorRef[capacity];
+        commitOrders = new int[capacity];
+        commitAttempts = new int[capacity];
+        commitItems = new int[capacity];
+    }
+
+    @Override
+    public Receive<Command> createReceive() {
+        return newReceiveBuilder()
+                .onMessage(Reserve.class, this::onReserve)
+                .onMessage(Commit.class, this::onCommit)
+                .onMessage(CancelReserve.class, this::onCancelReserve)
+                .onMessage(StageKit.class, msg -> {
+                    storage.tell(new LocalStorage.StageKit(msg.orderNumber, msg.items));
+                    return this;
+                })
+                .onMessage(ReleaseKit.class, msg -> {
+                    storage.tell(new LocalStorage.ReleaseKit(msg.orderNumber));
+                    return this;
+                })
+                .onMessage(ReservationResult.class, this::onReservationResult)
+                .onMessage(Flush.class, this::onFlush)
+                .build();
+    }
+
+    private Behavior<Command> onReserve(Reserve msg) {
+        if (reserves + msg.items.length > reserveOrders.length) {
+            flushReserves();
+        }
+        for (int item : msg.items) {
+            reserveOrders[reserves] = msg.orderNumber;
+            reserveAttempts[reserves] = msg.attempt;
+            reserveItems[reserves] = item;
+            reserveWorkers[reserves] = msg.worker;
+            reserves++;
+        }
+        if (reserves >= settings.reservationBatchSize) {
+            flushReserves();
+        } else {
+            scheduleFlush();
+        }
+        return this;
+    }
+
+    private Behavior<Command> onCommit(Commit msg) {
+        if (commits + msg.items.length > commitOrders.length) {
+            flushCommits();
+        }
+        for (int item : msg.items) {
+            commitOrders[commits] = msg.orderNumber;
+            commitAttempts[commits] = msg.attempt;
+            commitItems[commits] = item;
+            commits++;
+        }
+        if (commits >= settings.reservationBatchSize) {
+            flushCommits();
+        } else {
+            scheduleFlush();
+        }
+        return this;
+    }
+
+    private Behavior<Command> onCancelReserve(CancelReserve msg) {
+        // The reservation it withdraws must not overtake it
+        flushReserves();
+        flushCommits();
+        storage.tell(new LocalStorage.CancelReserve(msg.orderNumber, msg.attempt, msg.worker));
+        return this;
+    }
+
+    //Tells the workers about their granted reservations, one message for the items of an order
+    private Behavior<Command> onReservationResult(ReservationResult msg) {
+        int entries = msg.orderNumbers.length;
+        for (int from = 0, to; from < entries; from = to) {
+            to = from + 1;
+            while (to < entries && msg.orderNumbers[to] == msg.orderNumbers[from]
+                    && msg.attempts[to] == msg.attempts[from]) {
+                to++;
+            }
+            // The items of an order are granted together
+            if (msg.granted[from]) {
+                msg.workers[from].tell(new Worker.ItemsReserved(msg.orderNumbers[from], msg.attempts[from],
+                        Arrays.copyOfRange(msg.items, from, to)));
+            }
+        }
+        return this;
+    }
+
+    private Behavior<Command> onFlush(Flush msg) {
+        flushScheduled = false;
+        flushReserves();
+        flushCommits();
+        return this;
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        if (settings.reservationBatchWindow.isZero()) {
+            // Queued behind everything already in the mailbox
+            getContext().getSelf().tell(FLUSH);
+        } else {
+            clock.scheduleOnce(settings.reservationBatchWindow, getContext().getSelf(), FLUSH);
+        }
+    }
+
+    private void flushReserves() {
+        if (reserves > 0) {
+            storage.tell(new LocalStorage.ReserveBatch(Arrays.copyOf(reserveOrders, reserves),
+                    Arrays.copyOf(reserveAttempts, reserves), Arrays.copyOf(reserveItems, reserves), Arrays.copyOf(reserveWorkers, reserves),
+                    getContext().getSelf()));
+            // Workers are not kept alive by a sent batch
+            Arrays.fill(reserveWorkers, 0, reserves, null);
+            reserves = 0;
+        }
+    }
+
+    private void flushCommits() {
+        if (commits > 0) {
+            storage.tell(new LocalStorage.CommitBatch(Arrays.copyOf(commitOrders, commits),
+                    Arrays.copyOf(commitAttempts, commits), Arrays.copyOf(commitItems, commits)));
+            commits = 0;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.example;
+
+import akka.dispatch.DispatcherPrerequisites;
+import akka.dispatch.ExecutorServiceConfigurator;
+import akka.dispatch.ExecutorServiceFactory;
+import com.typesafe.config.Config;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Executor of the simulation dispatcher, configured with executor = "org.example.SimulationExecutor".
+ *
+ * Runs all tasks on a single thread in submission order. A mailbox with messages is always either
+ * queued here or running, so once the queue runs dry the plant has nothing left to do and the
+ * {@link VirtualClock} is advanced to the next due event.
+ */
+public class SimulationExecutor extends ExecutorServiceConfigurator {
+
+    public SimulationExecutor(Config config, DispatcherPrerequisites prerequisites) {
+        super(config, prerequisites);
+    }
+
+    @Override
+    public ExecutorServiceFactory createExecutorServiceFactory(String id, ThreadFactory threadFactory) {
+        return () -> new DiscreteEventExecutor(threadFactory);
+    }
+
+    private static final class DiscreteEventExecutor extends AbstractExecutorService {
+
+        // How long the idle thread waits before it checks again whether the clock was started
+        private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition taskAdded = lock.newCondition();
+        private final Condition terminated = lock.newCondition();
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean shutdown;
+        private boolean done;
+
+        DiscreteEventExecutor(ThreadFactory threadFactory) {
+            threadFactory.newThread(this::runLoop).start();
+        }
+
+        private void runLoop() {
+            try {
+                while (true) {
+                    Runnable task = nextTask();
+                    if (task == null) {
+                        return;
+                    }
+                    task.run();
+                }
+            } finally {
+                lock.lock();
+                try {
+                    done = true;
+                    terminated.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        // Next task to run, advances the virtual clock while there is none; null once shut down
+        private Runnable nextTask() {
+            while (true) {
+                lock.lock();
+                try {
+                    if (!tasks.isEmpty()) {
+                        return tasks.poll();
+                    }
+                    if (shutdown) {
+                        return null;
+                    }
+                    VirtualClock clock = VirtualClock.installed();
+                    if (clock == null || !clock.isRunning()) {
+                        taskAdded.awaitNanos(IDLE_WAIT_NANOS);
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                } finally {
+                    lock.unlock();
+                }
+                // Delivering the event submits the mailbox of its target
+                VirtualClock.installed().advance();
+            }
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            lock.lock();
+            try {
+                if (shutdown) {
+                    throw new java.util.concurrent.RejectedExecutionException("Simulation executor is shut down");
+                }
+                tasks.add(command);
+                taskAdded.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            lock.lock();
+            try {
+                shutdown = true;
+                taskAdded.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            lock.lock();
+            try {
+                shutdown = true;
+                List<Runnable> pending = List.copyOf(tasks);
+                tasks.clear();
+                taskAdded.signal();
+                return pending;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isShutdown() {
+            lock.lock();
+            try {
+                return shutdown;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isTerminated() {
+            lock.lock();
+            try {
+                return done;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            lock.lock();
+            try {
+                while (!done) {
+                    if (nanos <= 0) {
+                        return false;
+                    }
+                    nanos = terminated.awaitNanos(nanos);
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.example;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Sums over a sliding time window, for any number of series such as the units consumed of every
+ * catalog item. The window is split into buckets that each series rolls forward lazily, only when
+ * it is added to or read: both are O(1) amortized, however many series there are and however long
+ * a series was idle. The oldest bucket leaves the window as a whole, so the window covers its
+ * length minus at most one bucket.
+ */
+final class SlidingWindows {
+
+    private final int buckets;
+    private final long bucketNanos;
+    private final long windowNanos;
+    // Clock time the buckets count from
+    private final long origin;
+    // Per series: its buckets, their sum, and the bucket it was rolled forward to
+    private long[] counts;
+    private long[] sums;
+    private long[] rolledTo;
+
+    /**
+     * @param series Number of series, more can be added with {@link #ensureSeries}
+     * @param window Length of the window
+     * @param buckets Buckets the window is split into
+     * @param now Clock nanos the window starts at
+     */
+    SlidingWindows(int series, Duration window, int buckets, long now) {
+        if (buckets < 1) {
+            throw new IllegalArgumentException("A sliding window needs at least one bucket, was " + buckets);
+        }
+        this.buckets = buckets;
+        this.windowNanos = window.toNanos();
+        this.bucketNanos = Math.max(1, windowNanos / buckets);
+        this.origin = now;
+        this.counts = new long[series * buckets];
+        this.sums = new long[series];
+        this.rolledTo = new long[series];
+    }
+
+    int series() {
+        return sums.length;
+    }
+
+    //Adds series up to the given count, they start empty
+    void ensureSeries(int series) {
+        if (series > sums.length) {
+            counts = Arrays.copyOf(counts, series * buckets);
+            sums = Arrays.copyOf(sums, series);
+            rolledTo = Arrays.copyOf(rolledTo, series);
+        }
+    }
+
+    void add(int series, long now, long amount) {
+        roll(series, now);
+        counts[series * buckets + (int) (rolledTo[series] % buckets)] += amount;
+        sums[series] += amount;
+    }
+
+    //Sum over the window
+    long sum(int series, long now) {
+        roll(series, now);
+        return sums[series];
+    }
+
+    //Sum per second over the window, or over the time since the start while it is shorter
+    double perSecond(int series, long now) {
+        long covered = Math.min(windowNanos, now - origin);
+        return covered <= 0 ? 0 : sum(series, now) * 1e9 / covered;
+    }
+
+    //Empties the buckets that left the window since the series was last touched
+    private void roll(int series, long now) {
+        long bucket = Math.max(0, Math.floorDiv(now - origin, bucketNanos));
+        long last = rolledTo[series];
+        if (bucket <= last) {
+            return;
+        }
+        int base = series * buckets;
+        if (bucket - last >= buckets) {
+            Arrays.fill(counts, base, base + buckets, 0);
+            sums[series] = 0;
+        } else {
+            for (long b = last + 1; b <= bucket; b++) {
+                int slot = base + (int) (b % buckets);
+                sums[series] -= counts[slot];
+                counts[slot] = 0;
+            }
+        }
+        rolledTo[series] = bucket;
+    }
+}
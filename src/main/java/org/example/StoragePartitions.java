@@ -0,0 +1,154 @@
+package org.example;
+
+import akka.actor.typed.DispatcherSelector;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.cluster.sharding.typed.javadsl.ClusterSharding;
+import akka.cluster.sharding.typed.javadsl.Entity;
+import akka.cluster.sharding.typed.javadsl.EntityTypeKey;
+
+import java.util.SplittableRandom;
+
+/**
+ * Routes special items to the LocalStorage partition that owns them.
+ * Items are spread round robin over the partitions by their index.
+ * Requests go through the {@link ReservationBatcher} of the partition.
+ *
+ * In a cluster the partitions are sharded entities, every node has its own batchers in front of them,
+ * so requests are batched before they leave the node.
+ */
+public final class StoragePartitions {
+
+    // Sharded storage partitions, the entity id is the partition index
+    static final EntityTypeKey<LocalStorage.Command> ENTITY_KEY =
+            EntityTypeKey.create(LocalStorage.Command.class, "LocalStorage");
+
+    private final akka.actor.typed.ActorRef<ReservationBatcher.Command>[] partitions;
+
+    @SuppressWarnings("unchecked")
+    private StoragePartitions(int count) {
+        this.partitions = new akka.actor.typed.ActorRef[count];
+    }
+
+    /**
+     * Spawns the storage partitions and their batchers as children of the given actor
+     * @param settings Number of partitions and their settings
+     * @param clock Clock the restocks run on
+     * @param metrics Receives the stock-outs
+     * @param analytics Drives the restocks of the partitions, may be null
+     * @param seeds Every partition splits its random generator from it
+     */
+    public static StoragePartitions spawn(ActorContext<?> context, FactorySettings settings,
+                                          FactoryClock clock, FactoryMetrics metrics,
+                                          akka.actor.typed.ActorRef<DemandAnalytics.Command> analytics,
+                                          SplittableRandom seeds) {
+        StoragePartitions storage = new StoragePartitions(settings.storagePartitions);
+        for (int i = 0; i < settings.storagePartitions; i++) {
+            String name = "localStorage-" + (i + 1);
+            var partition = context.spawn(
+                    LocalStorage.create(storage, i, settings, clock, metrics, analytics, seeds.split(),
+                            settings.journalDirectory.resolve(name)), name,
+                    DispatcherSelector.fromConfig(settings.localStorageDispatcher));
+            storage.partitions[i] = context.spawn(ReservationBatcher.create(partition, settings, clock),
+                    "reservationBatcher-" + (i + 1), DispatcherSelector.fromConfig(settings.localStorageDispatcher));
+        }
+        return storage;
+    }
+
+    /**
+     * Starts sharding of the storage partitions on this node and spawns the local batchers in front of them
+     * @param settings Number of partitions and their settings
+     * @param clock Clock the restocks and batching windows run on
+     * @param metrics Receives the stock-outs of the partitions hosted on this node
+     * @param analytics Drives the restocks of the partitions hosted on this node, may be null
+     */
+    public static StoragePartitions sharded(ActorContext<?> context, FactorySettings settings,
+                                            FactoryClock clock, FactoryMetrics metrics,
+                                            akka.actor.typed.ActorRef<DemandAnalytics.Command> analytics) {
+        StoragePartitions storage = new StoragePartitions(settings.storagePartitions);
+        // With a configured random seed a partition gets the same seed on whichever node hosts it
+        long[] seeds = new long[settings.storagePartitions];
+        SplittableRandom random = new SplittableRandom(settings.randomSeed);
+        for (int i = 0; i < seeds.length; i++) {
+            seeds[i] = random.nextLong();
+        }
+
+        ClusterSharding sharding = ClusterSharding.get(context.getSystem());
+        sharding.init(Entity.of(ENTITY_KEY, entity -> {
+            int partition = Integer.parseInt(entity.getEntityId());
+            return LocalStorage.create(storage, partition, settings, clock, metrics, analytics,
+                    new SplittableRandom(seeds[partition]),
+                    settings.journalDirectory.resolve("localStorage-" + (partition + 1)));
+        }).withEntityProps(DispatcherSelector.fromConfig(settings.localStorageDispatcher)));
+
+        for (int i = 0; i < settings.storagePartitions; i++) {
+            var partition = sharding.entityRefFor(ENTITY_KEY, String.valueOf(i));
+            storage.partitions[i] = context.spawn(ReservationBatcher.create(partition, settings, clock),
+                    "reservationBatcher-" + (i + 1), DispatcherSelector.fromConfig(settings.localStorageDispatcher));
+        }
+        return storage;
+    }
+
+    //Partitioning over already running batchers, e.g. test inboxes in the benchmarks
+    @SafeVarargs
+    static StoragePartitions of(akka.actor.typed.ActorRef<ReservationBatcher.Command>... partitions) {
+        StoragePartitions storage = new StoragePartitions(partitions.length);
+        System.arraycopy(partitions, 0, storage.partitions, 0, partitions.length);
+        return storage;
+    }
+
+    public int size() {
+        return partitions.length;
+    }
+
+    public int partitionOf(int item) {
+        return item % partitions.length;
+    }
+
+    //Index of the item among the items of its partition
+    public int slotOf(int item) {
+        return item / partitions.length;
+    }
+
+    //Number of items the partition owns out of a catalog of the given size
+    public int itemsOf(int partition, int catalogSize) {
+        return (catalogSize - partition + partitions.length - 1) / partitions.length;
+    }
+
+    //Item at the given slot of the partition
+    public int itemAt(int partition, int slot) {
+        return slot * partitions.length + partition;
+    }
+
+    //Insertion sort keeps the items of a partition next to each other, orders have a handful of items
+    int[] sortByPartition(int[] items) {
+        for (int i = 1; i < items.length; i++) {
+            int item = items[i];
+            int j = i;
+            while (j > 0 && partitionOf(items[j - 1]) > partitionOf(item)) {
+                items[j] = items[j - 1];
+                j--;
+            }
+            items[j] = item;
+        }
+        return items;
+    }
+
+    //End of the run of items owned by the same partition as items[from]
+    int partitionEnd(int[] items, int from) {
+        int partition = partitionOf(items[from]);
+        int to = from + 1;
+        while (to < items.length && partitionOf(items[to]) == partition) {
+            to++;
+        }
+        return to;
+    }
+
+    //Batcher of the partition with the given index
+    public akka.actor.typed.ActorRef<ReservationBatcher.Command> partition(int partition) {
+        return partitions[partition];
+    }
+
+    public akka.actor.typed.ActorRef<ReservationBatcher.Command> partitionFor(int item) {
+        return partitions[partitionOf(item)];
+    }
+}
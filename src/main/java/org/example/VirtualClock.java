@@ -0,0 +1,137 @@
+package org.example;
+
+import java.time.Duration;
+import java.util.PriorityQueue;
+
+/**
+ * Discrete-event clock for simulation mode.
+ *
+ * Scheduled messages are kept in a queue ordered by their virtual due time. Whenever the plant has
+ * nothing left to do, the {@link SimulationExecutor} the plant actors run on calls {@link #advance()},
+ * which jumps to the next due message and delivers it. A month of plant time therefore takes only
+ * as long as the actors need to process its messages, and since everything runs on one thread in
+ * a fixed order, a run with the same seed is repeated exactly.
+ *
+ * Akka creates executors from configuration, so the executor finds the clock through
+ * {@link #installed()}; there is at most one simulation per JVM.
+ */
+public final class VirtualClock implements FactoryClock {
+
+    private static volatile VirtualClock installed;
+
+    private static final class Event implements Comparable<Event> {
+        final long dueTime;
+        final long sequence;
+        final Runnable delivery;
+
+        Event(long dueTime, long sequence, Runnable delivery) {
+            this.dueTime = dueTime;
+            this.sequence = sequence;
+            this.delivery = delivery;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            int byTime = Long.compare(dueTime, other.dueTime);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private final long startTime;
+    private final long endTime;
+    private final Runnable onFinished;
+    private long now;
+    private long nextSequence;
+    private long deliveredEvents;
+    private volatile boolean running;
+    private boolean finished;
+
+    private VirtualClock(long startTime, Duration duration, Runnable onFinished) {
+        this.startTime = startTime;
+        this.endTime = startTime + duration.toMillis();
+        this.onFinished = onFinished;
+        this.now = startTime;
+    }
+
+    /**
+     * Creates the clock of this JVM's simulation, it does not advance before {@link #start()}
+     * @param startTime Virtual start time (epoch millis)
+     * @param duration Virtual time after which the simulation finishes
+     * @param onFinished Called once the end is reached or no events are left
+     */
+    public static VirtualClock install(long startTime, Duration duration, Runnable onFinished) {
+        VirtualClock clock = new VirtualClock(startTime, duration, onFinished);
+        installed = clock;
+        return clock;
+    }
+
+    //The installed clock, null outside of simulation mode
+    static VirtualClock installed() {
+        return installed;
+    }
+
+    //Lets the clock advance, to be called once all plant actors have been spawned
+    public void start() {
+        running = true;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public synchronized long currentTimeMillis() {
+        return now;
+    }
+
+    @Override
+    public long nanoTime() {
+        return currentTimeMillis() * 1_000_000L;
+    }
+
+    @Override
+    public synchronized <T> void scheduleOnce(Duration delay, akka.actor.typed.ActorRef<T> target, T message) {
+        events.add(new Event(now + delay.toMillis(), nextSequence++, () -> target.tell(message)));
+    }
+
+    //Virtual time that has passed since the start
+    public synchronized Duration elapsed() {
+        return Duration.ofMillis(now - startTime);
+    }
+
+    public synchronized long deliveredEvents() {
+        return deliveredEvents;
+    }
+
+    /**
+     * Jumps to the next due event and delivers it, only to be called when the plant is idle
+     * @return false if the simulation has finished
+     */
+    boolean advance() {
+        Event next;
+        synchronized (this) {
+            if (finished) {
+                return false;
+            }
+            next = events.peek();
+            if (next == null || next.dueTime > endTime) {
+                finished = true;
+                running = false;
+                if (next != null) {
+                    now = endTime;
+                }
+            } else {
+                events.poll();
+                now = next.dueTime;
+                deliveredEvents++;
+            }
+        }
+        if (finished) {
+            onFinished.run();
+            return false;
+        }
+        next.delivery.run();
+        return true;
+    }
+}
@@ -0,0 +1,60 @@
+package org.example;
+
+import akka.dispatch.DispatcherPrerequisites;
+import akka.dispatch.ExecutorServiceConfigurator;
+import akka.dispatch.ExecutorServiceFactory;
+import com.typesafe.config.Config;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor for blocking work, configured with executor = "org.example.VirtualThreadExecutor".
+ *
+ * On a JVM with virtual threads (Java 21 and later) every task gets a virtual thread of its own,
+ * a task blocked on the disk or the network holds no carrier thread. The plant is built for Java 17,
+ * so virtual threads are looked up by reflection. Without them the tasks run on a pool of up to
+ * max-platform-threads platform threads of the dispatcher, idle ones time out after a minute.
+ */
+public class VirtualThreadExecutor extends ExecutorServiceConfigurator {
+
+    private final int maxPlatformThreads;
+
+    public VirtualThreadExecutor(Config config, DispatcherPrerequisites prerequisites) {
+        super(config, prerequisites);
+        maxPlatformThreads = config.hasPath("max-platform-threads") ? config.getInt("max-platform-threads") : 64;
+    }
+
+    @Override
+    public ExecutorServiceFactory createExecutorServiceFactory(String id, ThreadFactory threadFactory) {
+        return () -> {
+            ExecutorService virtualThreads = virtualThreadPerTask(id);
+            if (virtualThreads != null) {
+                return virtualThreads;
+            }
+            ThreadPoolExecutor platformThreads = new ThreadPoolExecutor(maxPlatformThreads, maxPlatformThreads,
+                    1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), threadFactory);
+            platformThreads.allowCoreThreadTimeOut(true);
+            return platformThreads;
+        };
+    }
+
+    //Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(id + "-", 0).factory()), null before Java 21
+    static ExecutorService virtualThreadPerTask(String id) {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, id + "-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) perTask.invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -1,106 +1,297 @@
 package org.example;
 
 import akka.actor.typed.Behavior;
+import akka.actor.typed.PostStop;
 import akka.actor.typed.javadsl.AbstractBehavior;
 import akka.actor.typed.javadsl.ActorContext;
 import akka.actor.typed.javadsl.Behaviors;
 import akka.actor.typed.javadsl.Receive;
+import akka.actor.typed.javadsl.TimerScheduler;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import org.slf4j.Logger;
 
-import java.time.Duration;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
 
 /**
- * Represents a worker who performs car assembly tasks including:
- * - Building car bodies
- * - Installing special requests/features
- * Each worker can only work on one task at a time.
+ * Represents a worker who fetches the special items of an order from the storage partitions
+ * and brings them to the production line, which installs them.
  */
 public class Worker extends AbstractBehavior<Worker.Command> {
 
     //Interface for all worker commands
-    public interface Command {}
+    public interface Command extends CborSerializable {}
 
     /**
-     * Message instructing the worker to install special requests for an order
+     * Message instructing the worker to fetch the special items of an order
      */
-    public static final class InstallSpecialRequests implements Command {
+    public static final class FetchSpecialItems implements Command {
         public final int orderNumber;
+        // Attempt of the order on its line, see ProductionLine.StartProduction
+        public final int attempt;
+        // Special items the order asks for, null to pick them at random
+        public final int[] items;
         public final akka.actor.typed.ActorRef<ProductionLine.Command> productionLine;
 
-        public InstallSpecialRequests(int orderNumber,
+        public FetchSpecialItems(int orderNumber,
                                       akka.actor.typed.ActorRef<ProductionLine.Command> productionLine) {
+            this(orderNumber, 1, null, productionLine);
+        }
+
+        @JsonCreator
+        public FetchSpecialItems(int orderNumber, int attempt, int[] items,
+                                 akka.actor.typed.ActorRef<ProductionLine.Command> productionLine) {
             this.orderNumber = orderNumber;
+            this.attempt = attempt;
+            this.items = items;
             this.productionLine = productionLine;
         }
     }
 
     /**
-     * Message indicating special requests have been received from storage
+     * Message indicating special items of an order have been reserved in storage
      */
-    public static final class SpecialRequestsReceived implements Command {
+    public static final class ItemsReserved implements Command {
         public final int orderNumber;
-        public final akka.actor.typed.ActorRef<ProductionLine.Command> productionLine;
+        public final int attempt;
+        // The reserved items, all of one partition
+        public final int[] items;
 
-        public SpecialRequestsReceived(int orderNumber,
-                                       akka.actor.typed.ActorRef<ProductionLine.Command> productionLine) {
+        public ItemsReserved(int orderNumber, int attempt, int[] items) {
             this.orderNumber = orderNumber;
-            this.productionLine = productionLine;
+            this.attempt = attempt;
+            this.items = items;
+        }
+    }
+
+    //Message from the pool: the attempt was called off, its fetch is dropped
+    public static final class CancelFetch implements Command {
+        public final int orderNumber;
+        public final int attempt;
+
+        public CancelFetch(int orderNumber, int attempt) {
+            this.orderNumber = orderNumber;
+            this.attempt = attempt;
         }
     }
 
+    //Message to publish the state of the worker to the PlantState read model
+    private static final class PublishState implements Command {}
 
     /**
      * Factory method to create a worker
      * @param name Worker identifier
-     * @param localStorage Reference to the parts storage system
+     * @param storage Partitions of the parts storage system
+     * @param pool Pool the worker belongs to, told about every finished task
+     * @param settings Item catalog and number of items per order
+     * @param metrics Receives the busy time of the worker and the stages of the orders
+     * @param random Source of the special item choice
      */
-    public static Behavior<Command> create(String name,
-                                           akka.actor.typed.ActorRef<LocalStorage.Command> localStorage) {
-        return Behaviors.setup(context -> new Worker(context, name, localStorage));
+    public static Behavior<Command> create(String name, StoragePartitions storage,
+                                           akka.actor.typed.ActorRef<WorkerPool.Command> pool,
+                                           FactorySettings settings, FactoryMetrics metrics,
+                                           SplittableRandom random) {
+        return Behaviors.setup(context -> Behaviors.withTimers(timers ->
+                new Worker(context, timers, name, storage, pool, settings, metrics, random)));
+    }
+
+    /**
+     * Special items of an order being reserved, the worker coordinates the reservation
+     * across the storage partitions that own the items
+     */
+    private static final class PendingItems {
+        final int orderNumber;
+        final akka.actor.typed.ActorRef<ProductionLine.Command> productionLine;
+        final int[] items;
+        // Items not granted yet
+        int missing;
+
+        PendingItems(int orderNumber, akka.actor.typed.ActorRef<ProductionLine.Command> productionLine, int[] items) {
+            this.orderNumber = orderNumber;
+            this.productionLine = productionLine;
+            this.items = items;
+            this.missing = items.length;
+        }
     }
 
     private final String name;
-    private final akka.actor.typed.ActorRef<LocalStorage.Command> localStorage;
+    private final StoragePartitions storage;
+    private final akka.actor.typed.ActorRef<WorkerPool.Command> pool;
+    private final FactorySettings settings;
+    private final FactoryMetrics metrics;
+    private final SplittableRandom random;
+    private final Logger log;
+    // Fetches in hand by WorkerPool.taskKey: an order may come again under a new attempt while the
+    // fetch of the expired one is still under way
+    private final Map<Long, PendingItems> pendingItems = new HashMap<>();
+    private long busySince;
 
 
     /**
      * Worker constructor
      */
-    private Worker(ActorContext<Command> context, String name,
-                   akka.actor.typed.ActorRef<LocalStorage.Command> localStorage) {
+    private Worker(ActorContext<Command> context, TimerScheduler<Command> timers, String name,
+                   StoragePartitions storage, akka.actor.typed.ActorRef<WorkerPool.Command> pool, FactorySettings settings,
+                   FactoryMetrics metrics, SplittableRandom random) {
         super(context);
         this.name = name;
-        this.localStorage = localStorage;
+        this.storage = storage;
+        this.pool = pool;
+        this.settings = settings;
+        this.metrics = metrics;
+        this.log = context.getLog();
+        this.random = random;
+        if (!settings.statePublishInterval.isZero()) {
+            timers.startTimerWithFixedDelay(new PublishState(), settings.statePublishInterval);
+        }
     }
 
     @Override
     public Receive<Command> createReceive() {
         return newReceiveBuilder()
-                .onMessage(InstallSpecialRequests.class, this::onInstallSpecialRequests)
-                .onMessage(SpecialRequestsReceived.class, this::onSpecialRequestsReceived)
+                .onMessage(FetchSpecialItems.class, this::onFetchSpecialItems)
+                .onMessage(ItemsReserved.class, this::onItemsReserved)
+                .onMessage(CancelFetch.class, this::onCancelFetch)
+                .onMessage(PublishState.class, this::onPublishState)
+                .onSignal(PostStop.class, signal -> onPostStop())
                 .build();
     }
 
     /**
-     * Handles request to install special features by fetching them from storage
+     * Handles request to fetch special features by reserving them in storage
      */
-    private Behavior<Command> onInstallSpecialRequests(InstallSpecialRequests msg) {
-        getContext().getLog().info("{} fetching special requests for order {}", name, msg.orderNumber);
+    private Behavior<Command> onFetchSpecialItems(FetchSpecialItems msg) {
+        if (log.isDebugEnabled()) {
+            log.debug("{} fetching special requests for order {}", name, msg.orderNumber);
+        }
+
+        // The items of the order or distinct random ones, grouped by the partition that owns them
+        int[] items = msg.items != null ? storage.sortByPartition(msg.items.clone()) : pickItems();
 
-        // Request parts from storage
-        localStorage.tell(new LocalStorage.RequestSpecialItems(msg.orderNumber, getContext().getSelf(), msg.productionLine));
+        // Phase one: reserve the items of each partition together
+        PendingItems pending = new PendingItems(msg.orderNumber, msg.productionLine, items);
+        if (pendingItems.isEmpty()) {
+            busySince = metrics.workerBusy();
+        }
+        pendingItems.put(WorkerPool.taskKey(msg.orderNumber, msg.attempt), pending);
+        for (int from = 0, to; from < items.length; from = to) {
+            to = storage.partitionEnd(items, from);
+            storage.partitionFor(items[from]).tell(new ReservationBatcher.Reserve(msg.orderNumber, msg.attempt,
+                    slice(items, from, to), getContext().getSelf()));
+        }
         return this;
     }
 
+    //Distinct random items of the catalog, sorted by partition
+    private int[] pickItems() {
+        int[] items = new int[settings.itemsPerOrder];
+        for (int i = 0; i < items.length; i++) {
+            int item;
+            do {
+                item = random.nextInt(settings.catalog.size());
+            } while (contains(items, i, item));
+            items[i] = item;
+        }
+        return storage.sortByPartition(items);
+    }
+
+    private static int[] slice(int[] items, int from, int to) {
+        return from == 0 && to == items.length ? items : Arrays.copyOfRange(items, from, to);
+    }
+
+    private static boolean contains(int[] items, int count, int item) {
+        for (int i = 0; i < count; i++) {
+            if (items[i] == item) {
+                return true;
+            }
+        }
+        return false;
+    }
+
 
     /**
-     * Handles completion of special requests installation
+     * Handles reserved items, takes them to the line once all of them are reserved
      */
-    private Behavior<Command> onSpecialRequestsReceived(SpecialRequestsReceived msg) {
-        getContext().getLog().info("{} installed special requests for order {}", name, msg.orderNumber);
+    private Behavior<Command> onItemsReserved(ItemsReserved msg) {
+        long key = WorkerPool.taskKey(msg.orderNumber, msg.attempt);
+        PendingItems pending = pendingItems.get(key);
+        if (pending == null) {
+            // Granted before the cancel reached the partition, which took the items back with it
+            return this;
+        }
+        pending.missing -= msg.items.length;
+        if (pending.missing > 0) {
+            return this;
+        }
+        pendingItems.remove(key);
+        metrics.stamp(msg.orderNumber, FactoryMetrics.Stage.ITEMS_RESERVED);
+
+        // Phase two: all items are there, consume them
+        for (int from = 0, to; from < pending.items.length; from = to) {
+            to = storage.partitionEnd(pending.items, from);
+            storage.partitionFor(pending.items[from]).tell(new ReservationBatcher.Commit(msg.orderNumber,
+                    msg.attempt, slice(pending.items, from, to)));
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("{} brought the special items of order {} to the line", name, msg.orderNumber);
+        }
+
+        // Notify production line that the items are there
+        pending.productionLine.tell(new ProductionLine.SpecialItemsFetched(msg.orderNumber, msg.attempt,
+                getContext().getSelf()));
+        taskDone(msg.orderNumber, msg.attempt);
+        return this;
+    }
+
+    //Drops the fetch of an attempt the OrderBook called off, the partitions give back what they granted
+    //and drop what still waits for stock, so the task is done for the pool right away
+    private Behavior<Command> onCancelFetch(CancelFetch msg) {
+        PendingItems pending = pendingItems.remove(WorkerPool.taskKey(msg.orderNumber, msg.attempt));
+        if (pending == null) {
+            // The items were brought already
+            return this;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("{} dropped the fetch for order {}, attempt {} was called off", name, msg.orderNumber,
+                    msg.attempt);
+        }
+        for (int from = 0, to; from < pending.items.length; from = to) {
+            to = storage.partitionEnd(pending.items, from);
+            storage.partitionFor(pending.items[from]).tell(new ReservationBatcher.CancelReserve(msg.orderNumber,
+                    msg.attempt, getContext().getSelf()));
+        }
+        taskDone(msg.orderNumber, msg.attempt);
+        return this;
+    }
+
+    private void taskDone(int orderNumber, int attempt) {
+        pool.tell(new WorkerPool.TaskDone(getContext().getSelf(), orderNumber, attempt));
+        if (pendingItems.isEmpty()) {
+            metrics.workerIdle(busySince);
+        }
+    }
+
+    private Behavior<Command> onPublishState(PublishState msg) {
+        metrics.state().publish(new PlantState.WorkerState(name, metrics.clock().currentTimeMillis(),
+                pendingOrders()));
+        return this;
+    }
+
+    private int[] pendingOrders() {
+        int[] orders = new int[pendingItems.size()];
+        int i = 0;
+        for (PendingItems pending : pendingItems.values()) {
+            orders[i++] = pending.orderNumber;
+        }
+        Arrays.sort(orders);
+        return orders;
+    }
 
-        // Notify production line that work is done
-        msg.productionLine.tell(new ProductionLine.SpecialRequestsInstalled(msg.orderNumber, getContext().getSelf()));
+    //A worker removed from the pool leaves the read model with it
+    private Behavior<Command> onPostStop() {
+        metrics.state().removeWorker(name);
         return this;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,342 @@
+package org.example;
+
+import akka.actor.typed.Behavior;
+import akka.actor.typed.DispatcherSelector;
+import akka.actor.typed.PostStop;
+import akka.actor.typed.Terminated;
+import akka.actor.typed.javadsl.AbstractBehavior;
+import akka.actor.typed.javadsl.ActorContext;
+import akka.actor.typed.javadsl.Behaviors;
+import akka.actor.typed.javadsl.Receive;
+
+import javax.management.ObjectName;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Pool of the workers, shared by all production lines.
+ *
+ * The pool knows how many tasks each worker has in hand and gives a new task to the least loaded
+ * worker, or to the less loaded of two random ones (power of two choices) for large pools.
+ * Each worker takes at most factory.worker-pool.tasks-per-worker tasks at once, further tasks
+ * wait in one queue for all lines, so whichever worker gets free first takes the oldest task
+ * no matter which line it comes from.
+ *
+ * The pool can be resized at runtime with {@link Resize}, or through JMX. Removed workers take no
+ * new tasks and stop once they are done with the ones they have. The pool watches its workers, one
+ * that fails is replaced and its tasks go to the other workers.
+ */
+public class WorkerPool extends AbstractBehavior<WorkerPool.Command> {
+
+    public interface Command {}
+
+    //Message from a production line: fetch the special items of an order
+    public static final class Fetch implements Command {
+        public final int orderNumber;
+        // Attempt of the order on the line, a cancel names it
+        public final int attempt;
+        // Special items the order asks for, null if the worker picks them
+        public final int[] items;
+        public final akka.actor.typed.ActorRef<ProductionLine.Command> productionLine;
+
+        public Fetch(int orderNumber, akka.actor.typed.ActorRef<ProductionLine.Command> productionLine) {
+            this(orderNumber, 1, null, productionLine);
+        }
+
+        public Fetch(int orderNumber, int attempt, int[] items,
+                     akka.actor.typed.ActorRef<ProductionLine.Command> productionLine) {
+            this.orderNumber = orderNumber;
+            this.attempt = attempt;
+            this.items = items;
+            this.productionLine = productionLine;
+        }
+    }
+
+    //Message from a production line: the attempt was called off, its fetch is dropped wherever it is
+    public static final class CancelFetch implements Command {
+        public final int orderNumber;
+        public final int attempt;
+
+        public CancelFetch(int orderNumber, int attempt) {
+            this.orderNumber = orderNumber;
+            this.attempt = attempt;
+        }
+    }
+
+    //Message from a worker that finished or dropped a task
+    public static final class TaskDone implements Command {
+        public final akka.actor.typed.ActorRef<Worker.Command> worker;
+        public final int orderNumber;
+        public final int attempt;
+
+        public TaskDone(akka.actor.typed.ActorRef<Worker.Command> worker, int orderNumber, int attempt) {
+            this.worker = worker;
+            this.orderNumber = orderNumber;
+            this.attempt = attempt;
+        }
+    }
+
+    //Message changing the number of workers
+    public static final class Resize implements Command {
+        public final int workers;
+
+        public Resize(int workers) {
+            this.workers = workers;
+        }
+    }
+
+    //How a task picks its worker
+    public enum Strategy { LEAST_LOADED, POWER_OF_TWO_CHOICES }
+
+    static final ObjectName OBJECT_NAME = Jmx.objectName("org.example:type=WorkerPool");
+
+    /**
+     * Creates the pool and spawns its workers
+     * @param settings Pool size, strategy and worker dispatcher
+     * @param storage Partitions the workers fetch the items from
+     * @param metrics Receives the busy times of the workers
+     * @param random Source of the power of two choices, every worker splits its random generator from it
+     */
+    public static Behavior<Command> create(FactorySettings settings, StoragePartitions storage,
+                                           FactoryMetrics metrics, SplittableRandom random) {
+        return Behaviors.setup(context -> new WorkerPool(context, settings, storage, metrics, random));
+    }
+
+    //A worker of the pool and the tasks it has in hand
+    private static final class Member {
+        final akka.actor.typed.ActorRef<Worker.Command> worker;
+        int tasks;
+        boolean retiring;
+        // Tasks in hand by taskKey, handed to other workers should this one fail
+        final Map<Long, Fetch> fetches = new HashMap<>();
+
+        Member(akka.actor.typed.ActorRef<Worker.Command> worker) {
+            this.worker = worker;
+        }
+    }
+
+    //JMX view, the pool publishes its size into it
+    private static final class Control implements WorkerPoolMXBean {
+        private final akka.actor.typed.ActorRef<Command> pool;
+        private volatile int workers;
+        private volatile int queuedTasks;
+
+        Control(akka.actor.typed.ActorRef<Command> pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public int getWorkers() {
+            return workers;
+        }
+
+        @Override
+        public void setWorkers(int workers) {
+            pool.tell(new Resize(workers));
+        }
+
+        @Override
+        public int getQueuedTasks() {
+            return queuedTasks;
+        }
+    }
+
+    private final FactorySettings settings;
+    private final StoragePartitions storage;
+    private final FactoryMetrics metrics;
+    private final SplittableRandom random;
+    private final Control control;
+
+    // Workers taking new tasks, retiring ones are only kept in byWorker until their last task is done
+    private final List<Member> members = new ArrayList<>();
+    private final Map<akka.actor.typed.ActorRef<Worker.Command>, Member> byWorker = new HashMap<>();
+    private final Deque<Fetch> queue = new ArrayDeque<>();
+    // Worker of each task in hand, by taskKey, so a cancel reaches it
+    private final Map<Long, Member> tasks = new HashMap<>();
+    private int spawned;
+
+    private WorkerPool(ActorContext<Command> context, FactorySettings settings, StoragePartitions storage,
+                       FactoryMetrics metrics, SplittableRandom random) {
+        super(context);
+        this.settings = settings;
+        this.storage = storage;
+        this.metrics = metrics;
+        this.random = random;
+        this.control = new Control(context.getSelf());
+        resize(settings.workers);
+        if (settings.metricsJmx) {
+            Jmx.register(control, OBJECT_NAME);
+        }
+    }
+
+    @Override
+    public Receive<Command> createReceive() {
+        return newReceiveBuilder()
+                .onMessage(Fetch.class, this::onFetch)
+                .onMessage(CancelFetch.class, this::onCancelFetch)
+                .onMessage(TaskDone.class, this::onTaskDone)
+                .onMessage(Resize.class, this::onResize)
+                .onSignal(Terminated.class, signal -> onWorkerTerminated(signal.getRef()))
+                .onSignal(PostStop.class, signal -> onPostStop())
+                .build();
+    }
+
+    //Hands the task to a worker with free capacity or queues it
+    private Behavior<Command> onFetch(Fetch msg) {
+        Member member = pick();
+        if (member == null) {
+            queue.add(msg);
+            control.queuedTasks = queue.size();
+        } else {
+            assign(member, msg);
+        }
+        return this;
+    }
+
+    //A queued task is dropped, one in hand is called off at its worker, which reports it done
+    private Behavior<Command> onCancelFetch(CancelFetch msg) {
+        Member member = tasks.get(taskKey(msg.orderNumber, msg.attempt));
+        if (member != null) {
+            member.worker.tell(new Worker.CancelFetch(msg.orderNumber, msg.attempt));
+        } else if (queue.removeIf(task -> task.orderNumber == msg.orderNumber && task.attempt == msg.attempt)) {
+            control.queuedTasks = queue.size();
+        }
+        return this;
+    }
+
+    //The worker has room again, gives it the oldest queued task
+    private Behavior<Command> onTaskDone(TaskDone msg) {
+        long key = taskKey(msg.orderNumber, msg.attempt);
+        tasks.remove(key);
+        Member member = byWorker.get(msg.worker);
+        if (member == null) {
+            return this;
+        }
+        member.fetches.remove(key);
+        member.tasks--;
+        if (member.retiring) {
+            if (member.tasks == 0) {
+                byWorker.remove(member.worker);
+                getContext().stop(member.worker);
+            }
+        } else if (!queue.isEmpty()) {
+            assign(member, queue.poll());
+            control.queuedTasks = queue.size();
+        }
+        return this;
+    }
+
+    private Behavior<Command> onResize(Resize msg) {
+        if (msg.workers < 1) {
+            getContext().getLog().warn("Pool size {} ignored, at least one worker is needed", msg.workers);
+            return this;
+        }
+        resize(msg.workers);
+        getContext().getLog().info("Worker pool resized to {} workers", members.size());
+
+        // New workers take over the queue
+        Member member;
+        while (!queue.isEmpty() && (member = pick()) != null) {
+            assign(member, queue.poll());
+        }
+        control.queuedTasks = queue.size();
+        return this;
+    }
+
+    //A failed worker leaves the pool, a new one takes its place and its tasks are handed out again once
+    //the partitions took back what they had reserved for it
+    private Behavior<Command> onWorkerTerminated(akka.actor.typed.ActorRef<Void> worker) {
+        Member member = byWorker.remove(worker.<Worker.Command>unsafeUpcast());
+        if (member == null) {
+            // Retired
+            return this;
+        }
+        getContext().getLog().warn("{} stopped with {} tasks in hand, it is replaced", worker.path().name(),
+                member.tasks);
+        if (!member.retiring) {
+            members.remove(member);
+            resize(members.size() + 1);
+        }
+        for (Fetch task : member.fetches.values()) {
+            tasks.remove(taskKey(task.orderNumber, task.attempt));
+            // The items a worker picks at random are unknown here, every partition is asked
+            for (int partition = 0; partition < storage.size(); partition++) {
+                storage.partition(partition).tell(new ReservationBatcher.CancelReserve(task.orderNumber,
+                        task.attempt, member.worker));
+            }
+            onFetch(task);
+        }
+        return this;
+    }
+
+    private Behavior<Command> onPostStop() {
+        if (settings.metricsJmx) {
+            Jmx.unregister(OBJECT_NAME);
+        }
+        return this;
+    }
+
+    private void assign(Member member, Fetch task) {
+        member.tasks++;
+        long key = taskKey(task.orderNumber, task.attempt);
+        tasks.put(key, member);
+        member.fetches.put(key, task);
+        member.worker.tell(new Worker.FetchSpecialItems(task.orderNumber, task.attempt, task.items,
+                task.productionLine));
+    }
+
+    //Identifies the fetch of one attempt of an order
+    static long taskKey(int orderNumber, int attempt) {
+        return (long) orderNumber << 32 | (attempt & 0xFFFFFFFFL);
+    }
+
+    //The worker for the next task, null if all of them are at their limit
+    private Member pick() {
+        int size = members.size();
+        if (settings.workerPoolStrategy == Strategy.POWER_OF_TWO_CHOICES && size > 1) {
+            Member first = members.get(random.nextInt(size));
+            Member second = members.get(random.nextInt(size));
+            Member less = second.tasks < first.tasks ? second : first;
+            if (less.tasks < settings.tasksPerWorker) {
+                return less;
+            }
+            // Both are full, only a full scan can tell whether anyone has room
+        }
+        Member least = null;
+        for (int i = 0; i < size; i++) {
+            Member member = members.get(i);
+            if (least == null || member.tasks < least.tasks) {
+                least = member;
+            }
+        }
+        return least != null && least.tasks < settings.tasksPerWorker ? least : null;
+    }
+
+    private void resize(int workers) {
+        while (members.size() < workers) {
+            spawned++;
+            var worker = getContext().spawn(
+                    Worker.create("Worker-" + spawned, storage, getContext().getSelf(), settings, metrics,
+                            random.split()),
+                    "worker-" + spawned, DispatcherSelector.fromConfig(settings.workerDispatcher));
+            getContext().watch(worker);
+            Member member = new Member(worker);
+            members.add(member);
+            byWorker.put(worker, member);
+        }
+        while (members.size() > workers) {
+            Member member = members.remove(members.size() - 1);
+            member.retiring = true;
+            if (member.tasks == 0) {
+                byWorker.remove(member.worker);
+                getContext().stop(member.worker);
+            }
+        }
+        control.workers = members.size();
+    }
+}
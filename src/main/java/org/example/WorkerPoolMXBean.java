@@ -0,0 +1,16 @@
+package org.example;
+
+/**
+ * JMX view and control of the {@link WorkerPool}, registered as org.example:type=WorkerPool.
+ */
+public interface WorkerPoolMXBean {
+
+    //Workers taking new tasks, retiring ones are not counted
+    int getWorkers();
+
+    //Resizes the pool, removed workers finish their tasks first
+    void setWorkers(int workers);
+
+    //Tasks waiting for a worker with free capacity
+    int getQueuedTasks();
+}
@@ -0,0 +1,130 @@
+package org.example;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+public class JournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysWhatWasAppended() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        append(directory, 0, 3);
+        append(directory, 3, 6);
+
+        List<Integer> replayed = new ArrayList<>();
+        try (Journal journal = Journal.open(directory, (type, a, b, c, d) -> replayed.add(a))) {
+            assertEquals(6, journal.replayedEvents());
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), replayed);
+    }
+
+    @Test
+    public void tornTailIsCutOff() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        append(directory, 0, 3);
+        Path segment = files(directory, "segment-").get(0);
+        Files.write(segment, new byte[Journal.RECORD_SIZE / 2], StandardOpenOption.APPEND);
+
+        List<Integer> replayed = new ArrayList<>();
+        Journal.open(directory, (type, a, b, c, d) -> replayed.add(a)).close();
+
+        assertEquals(Arrays.asList(0, 1, 2), replayed);
+        assertEquals(3 * Journal.RECORD_SIZE, Files.size(segment));
+    }
+
+    @Test
+    public void corruptRecordDropsTheRestAndLaterSegments() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        append(directory, 0, 3);
+        append(directory, 3, 6);
+        List<Path> segments = files(directory, "segment-");
+        assertEquals(2, segments.size());
+        corrupt(segments.get(0), Journal.RECORD_SIZE + 8);
+
+        List<Integer> replayed = new ArrayList<>();
+        Journal.open(directory, (type, a, b, c, d) -> replayed.add(a)).close();
+
+        assertEquals(Arrays.asList(0), replayed);
+        assertEquals(Journal.RECORD_SIZE, Files.size(segments.get(0)));
+        // The later segment was deleted, the journal appends to a new one of the same number
+        assertEquals(0, Files.size(segments.get(1)));
+
+        // What is appended after the recovery follows the recovered events
+        append(directory, 10, 11);
+        replayed.clear();
+        Journal.open(directory, (type, a, b, c, d) -> replayed.add(a)).close();
+        assertEquals(Arrays.asList(0, 10), replayed);
+    }
+
+    @Test
+    public void snapshotReplacesTheSegments() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        append(directory, 0, 3);
+        try (Journal journal = Journal.open(directory, (type, a, b, c, d) -> { })) {
+            journal.snapshot(state -> {
+                state.append(1, 7, 0, 0, 0);
+                state.append(1, 8, 0, 0, 0);
+            });
+            journal.append(1, 9, 0, 0, 0);
+        }
+
+        List<Integer> replayed = new ArrayList<>();
+        Journal.open(directory, (type, a, b, c, d) -> replayed.add(a)).close();
+        assertEquals(Arrays.asList(7, 8, 9), replayed);
+    }
+
+    @Test
+    public void corruptSnapshotFailsTheRecovery() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        try (Journal journal = Journal.open(directory, (type, a, b, c, d) -> { })) {
+            journal.snapshot(state -> {
+                state.append(1, 7, 0, 0, 0);
+                state.append(1, 8, 0, 0, 0);
+            });
+        }
+        corrupt(files(directory, "snapshot-").get(0), Journal.RECORD_SIZE + 8);
+
+        assertThrows(UncheckedIOException.class, () -> Journal.open(directory, (type, a, b, c, d) -> { }));
+    }
+
+    //Appends the events from up to to, numbered in a, in a journal session of their own
+    private static void append(Path directory, int from, int to) {
+        try (Journal journal = Journal.open(directory, (type, a, b, c, d) -> { })) {
+            for (int a = from; a < to; a++) {
+                journal.append(1, a, 0, 0, 0);
+            }
+        }
+    }
+
+    private static void corrupt(Path file, int at) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[at] ^= 1;
+        Files.write(file, bytes);
+    }
+
+    private static List<Path> files(Path directory, String prefix) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith(prefix))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.example;
+
+import akka.actor.testkit.typed.javadsl.BehaviorTestKit;
+import akka.actor.testkit.typed.javadsl.TestInbox;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.SplittableRandom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Withdrawing reservations from a storage partition: what was granted goes back to the stock, what
+ * waits for a restock is never granted. One partition with one unit of each item runs synchronously
+ * in a BehaviorTestKit, its batcher and the workers are test inboxes.
+ */
+public class LocalStorageTest {
+
+    private static final FactorySettings SETTINGS = FactorySettings.fromConfig(ConfigFactory.parseString(
+            String.join("\n",
+                    "factory {",
+                    "  time-scale = 1",
+                    "  journal.enabled = false",
+                    "  local-storage { initial-stock = 1, reorder-point = 0, restock-quantity = 1 }",
+                    "  local-storage.restock-time { min = 10s, max = 10s }",
+                    "}"))
+            .withFallback(ConfigFactory.load())
+            .getConfig("factory"));
+
+    private ManualClock clock;
+    private TestInbox<ReservationBatcher.Command> batcher;
+    private TestInbox<Worker.Command> first;
+    private TestInbox<Worker.Command> second;
+    private BehaviorTestKit<LocalStorage.Command> storage;
+
+    @Before
+    public void setup() {
+        clock = new ManualClock();
+        batcher = TestInbox.create("reservationBatcher");
+        first = TestInbox.create("first");
+        second = TestInbox.create("second");
+        storage = BehaviorTestKit.create(LocalStorage.create(StoragePartitions.of(batcher.getRef()), 0, SETTINGS,
+                clock, new FactoryMetrics(SETTINGS, clock), null, new SplittableRandom(1), null));
+    }
+
+    @Test
+    public void cancelledReservationGoesBackToTheStock() {
+        reserve(1, first);
+        assertGranted(true);
+
+        // Another worker's cancel for the same attempt leaves the reservation alone
+        storage.run(new LocalStorage.CancelReserve(1, 1, second.getRef()));
+        reserve(2, second);
+        assertGranted(false);
+
+        storage.run(new LocalStorage.CancelReserve(1, 1, first.getRef()));
+        Worker.ItemsReserved reserved = (Worker.ItemsReserved) second.receiveMessage();
+        assertArrayEquals(new int[]{0}, reserved.items);
+    }
+
+    @Test
+    public void cancelledBackorderIsNeverGranted() {
+        reserve(1, first);
+        assertGranted(true);
+        reserve(2, second);
+        assertGranted(false);
+
+        storage.run(new LocalStorage.CancelReserve(2, 1, second.getRef()));
+        clock.advance(Duration.ofSeconds(10));
+        clock.deliver(storage);
+        assertFalse(second.hasMessages());
+
+        // The restocked unit is there for the next reservation
+        reserve(3, second);
+        assertGranted(true);
+    }
+
+    @Test
+    public void committedReservationIsNotReleasedByALateCancel() {
+        reserve(1, first);
+        assertGranted(true);
+        storage.run(new LocalStorage.CommitBatch(new int[]{1}, new int[]{1}, new int[]{0}));
+
+        storage.run(new LocalStorage.CancelReserve(1, 1, first.getRef()));
+        reserve(2, second);
+        assertGranted(false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void reserve(int orderNumber, TestInbox<Worker.Command> worker) {
+        storage.run(new LocalStorage.ReserveBatch(new int[]{orderNumber}, new int[]{1}, new int[]{0},
+                new akka.actor.typed.ActorRef[]{worker.getRef()}, batcher.getRef()));
+    }
+
+    private void assertGranted(boolean granted) {
+        ReservationBatcher.ReservationResult result = (ReservationBatcher.ReservationResult) batcher.receiveMessage();
+        assertEquals(1, result.granted.length);
+        assertEquals(granted, result.granted[0]);
+    }
+}
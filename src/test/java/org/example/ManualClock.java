@@ -0,0 +1,65 @@
+package org.example;
+
+import akka.actor.testkit.typed.javadsl.BehaviorTestKit;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+//A clock the test moves forward, scheduled messages wait until it delivers them
+final class ManualClock implements FactoryClock {
+
+    private static final class Scheduled {
+        final long dueNanos;
+        final akka.actor.typed.ActorRef<?> target;
+        final Object message;
+
+        Scheduled(long dueNanos, akka.actor.typed.ActorRef<?> target, Object message) {
+            this.dueNanos = dueNanos;
+            this.target = target;
+            this.message = message;
+        }
+    }
+
+    private final List<Scheduled> scheduled = new ArrayList<>();
+    private long nanos;
+
+    @Override
+    public long currentTimeMillis() {
+        return nanos / 1_000_000;
+    }
+
+    @Override
+    public long nanoTime() {
+        return nanos;
+    }
+
+    @Override
+    public <T> void scheduleOnce(Duration delay, akka.actor.typed.ActorRef<T> target, T message) {
+        scheduled.add(new Scheduled(nanos + delay.toNanos(), target, message));
+    }
+
+    void advance(Duration duration) {
+        nanos += duration.toNanos();
+    }
+
+    boolean scheduled(Class<?> messageClass) {
+        return scheduled.stream().anyMatch(entry -> messageClass.isInstance(entry.message));
+    }
+
+    //Runs the messages for the behavior that are due by now
+    @SuppressWarnings("unchecked")
+    <T> void deliver(BehaviorTestKit<T> behavior) {
+        List<T> due = new ArrayList<>();
+        Iterator<Scheduled> entries = scheduled.iterator();
+        while (entries.hasNext()) {
+            Scheduled entry = entries.next();
+            if (entry.dueNanos <= nanos && entry.target.equals(behavior.getRef())) {
+                entries.remove();
+                due.add((T) entry.message);
+            }
+        }
+        due.forEach(behavior::run);
+    }
+}
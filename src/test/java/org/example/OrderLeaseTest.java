@@ -0,0 +1,263 @@
+package org.example;
+
+import akka.actor.testkit.typed.javadsl.BehaviorTestKit;
+import akka.actor.testkit.typed.javadsl.TestInbox;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.SplittableRandom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The lease protocol between the OrderBook and a production line: acknowledgement, expiry,
+ * requeueing under the next attempt and deduplicated completions. The behaviors run synchronously
+ * in a BehaviorTestKit on a clock the test moves forward, their peers are test inboxes.
+ */
+public class OrderLeaseTest {
+
+    private static final FactorySettings SETTINGS = FactorySettings.fromConfig(ConfigFactory.parseString(
+            String.join("\n",
+                    "factory {",
+                    "  time-scale = 1",
+                    "  journal.enabled = false",
+                    "  order-book.lease { ack-timeout = 10s, production-timeout = 60s, check-interval = 1s }",
+                    "}"))
+            .withFallback(ConfigFactory.load())
+            .getConfig("factory"));
+
+    private ManualClock clock;
+    private FactoryMetrics metrics;
+    private TestInbox<ProductionLine.Command> line;
+    private BehaviorTestKit<OrderBook.Command> orderBook;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        clock = new ManualClock();
+        metrics = new FactoryMetrics(SETTINGS, clock);
+        line = TestInbox.create("productionLine");
+        orderBook = BehaviorTestKit.create(OrderBook.create(
+                new akka.actor.typed.ActorRef[]{line.getRef()}, null, SETTINGS, clock, metrics, null));
+        assertTrue(line.receiveMessage() instanceof ProductionLine.RegisterOrderBook);
+    }
+
+    @Test
+    public void unacknowledgedOrderIsCalledOffAndHandedOutAgain() {
+        orderBook.run(new OrderBook.AddOrder(1));
+        orderBook.run(new OrderBook.ProductionLineAvailable(line.getRef(), 1));
+        expectStart(1, 1);
+
+        clock.advance(Duration.ofSeconds(11));
+        clock.deliver(orderBook);
+        expectCancel(1, 1);
+        assertEquals(1, metrics.expiredLeases());
+        assertStatus(1, 0);
+
+        orderBook.run(new OrderBook.ProductionLineAvailable(line.getRef(), 1));
+        expectStart(1, 2);
+        assertStatus(0, 1);
+    }
+
+    @Test
+    public void acceptedOrderKeepsItsLeaseForTheProduction() {
+        orderBook.run(new OrderBook.AddOrder(1));
+        orderBook.run(new OrderBook.ProductionLineAvailable(line.getRef(), 1));
+        expectStart(1, 1);
+        orderBook.run(new OrderBook.ProductionAccepted(1, 1));
+
+        clock.advance(Duration.ofSeconds(30));
+        clock.deliver(orderBook);
+        assertFalse(line.hasMessages());
+        assertEquals(0, metrics.expiredLeases());
+
+        clock.advance(Duration.ofSeconds(31));
+        clock.deliver(orderBook);
+        expectCancel(1, 1);
+        assertEquals(1, metrics.expiredLeases());
+    }
+
+    @Test
+    public void rejectedOrderIsHandedOutUnderTheNextAttempt() {
+        orderBook.run(new OrderBook.AddOrder(1));
+        orderBook.run(new OrderBook.ProductionLineAvailable(line.getRef(), 1));
+        expectStart(1, 1);
+
+        orderBook.run(new OrderBook.ProductionRejected(1, 1, line.getRef()));
+        assertFalse(line.hasMessages());
+        assertStatus(1, 0);
+
+        orderBook.run(new OrderBook.ProductionLineAvailable(line.getRef(), 1));
+        expectStart(1, 2);
+    }
+
+    @Test
+    public void firstCompletionWinsAndCallsOffTheCurrentAttempt() {
+        orderBook.run(new OrderBook.AddOrder(1));
+        orderBook.run(new OrderBook.ProductionLineAvailable(line.getRef(), 1));
+        expectStart(1, 1);
+        clock.advance(Duration.ofSeconds(11));
+        clock.deliver(orderBook);
+        expectCancel(1, 1);
+        orderBook.run(new OrderBook.ProductionLineAvailable(line.getRef(), 1));
+        expectStart(1, 2);
+
+        // The expired attempt finishes first after all
+        orderBook.run(new OrderBook.OrderCompleted(1, 1));
+        expectCancel(1, 2);
+        assertStatus(0, 0);
+
+        orderBook.run(new OrderBook.OrderCompleted(1, 2));
+        assertEquals(1, metrics.duplicateCompletions());
+        assertFalse(line.hasMessages());
+    }
+
+    @Test
+    public void lateCompletionOfAnExpiredAttemptTakesTheOrderOutOfTheQueue() {
+        orderBook.run(new OrderBook.AddOrder(1));
+        orderBook.run(new OrderBook.ProductionLineAvailable(line.getRef(), 1));
+        expectStart(1, 1);
+        clock.advance(Duration.ofSeconds(11));
+        clock.deliver(orderBook);
+        expectCancel(1, 1);
+        assertStatus(1, 0);
+
+        orderBook.run(new OrderBook.OrderCompleted(1, 1));
+        assertStatus(0, 0);
+        assertEquals(0, metrics.duplicateCompletions());
+
+        orderBook.run(new OrderBook.ProductionLineAvailable(line.getRef(), 1));
+        assertFalse(line.hasMessages());
+        orderBook.run(new OrderBook.OrderCompleted(1, 1));
+        assertEquals(1, metrics.duplicateCompletions());
+    }
+
+    @Test
+    public void completedOrderSentAgainIsDropped() {
+        orderBook.run(new OrderBook.AddOrder(1));
+        orderBook.run(new OrderBook.ProductionLineAvailable(line.getRef(), 1));
+        expectStart(1, 1);
+        orderBook.run(new OrderBook.OrderCompleted(1, 1));
+
+        orderBook.run(new OrderBook.AddOrder(1));
+        orderBook.run(new OrderBook.ProductionLineAvailable(line.getRef(), 1));
+        assertFalse(line.hasMessages());
+        assertEquals(1, metrics.duplicateOrders());
+        assertStatus(0, 0);
+    }
+
+    @Test
+    public void veryLargeOrderNumberIsCompletedAndDeduplicated() {
+        orderBook.run(new OrderBook.AddOrder(Integer.MAX_VALUE));
+        orderBook.run(new OrderBook.ProductionLineAvailable(line.getRef(), 1));
+        expectStart(Integer.MAX_VALUE, 1);
+        orderBook.run(new OrderBook.OrderCompleted(Integer.MAX_VALUE, 1));
+
+        orderBook.run(new OrderBook.AddOrder(Integer.MAX_VALUE));
+        orderBook.run(new OrderBook.AddOrder(0));
+        orderBook.run(new OrderBook.ProductionLineAvailable(line.getRef(), 1));
+        expectStart(0, 1);
+        assertEquals(1, metrics.duplicateOrders());
+    }
+
+    @Test
+    public void calledOffAttemptCancelsItsFetch() {
+        TestInbox<WorkerPool.Command> workerPool = TestInbox.create("workerPool");
+        TestInbox<OrderBook.Command> book = TestInbox.create("orderBook");
+        TestInbox<Worker.Command> worker = TestInbox.create("worker");
+        BehaviorTestKit<ProductionLine.Command> productionLine = BehaviorTestKit.create(ProductionLine.create(
+                workerPool.getRef(), null, SETTINGS, clock, metrics, new SplittableRandom(1)));
+        productionLine.run(new ProductionLine.RegisterOrderBook(book.getRef()));
+        book.getAllReceived();
+
+        productionLine.run(new ProductionLine.StartProduction(1, 1, 0, null));
+        productionLine.run(new ProductionLine.BodyBuilt(1));
+        WorkerPool.Fetch fetch = (WorkerPool.Fetch) workerPool.receiveMessage();
+        assertEquals(1, fetch.attempt);
+
+        productionLine.run(new ProductionLine.CancelProduction(1, 1));
+        WorkerPool.CancelFetch cancel = (WorkerPool.CancelFetch) workerPool.receiveMessage();
+        assertEquals(1, cancel.orderNumber);
+        assertEquals(1, cancel.attempt);
+        assertEquals(1, metrics.cancelledProductions());
+
+        // Handed out again: the items of the called-off fetch do not count for the new attempt
+        productionLine.run(new ProductionLine.StartProduction(1, 2, 0, null));
+        productionLine.run(new ProductionLine.BodyBuilt(1, 2));
+        assertEquals(2, ((WorkerPool.Fetch) workerPool.receiveMessage()).attempt);
+        productionLine.run(new ProductionLine.SpecialItemsFetched(1, 1, worker.getRef()));
+        assertFalse(clock.scheduled(ProductionLine.SpecialRequestsInstalled.class));
+        productionLine.run(new ProductionLine.SpecialItemsFetched(1, 2, worker.getRef()));
+        assertTrue(clock.scheduled(ProductionLine.SpecialRequestsInstalled.class));
+    }
+
+    @Test
+    public void timersOfACalledOffAttemptAreIgnored() {
+        TestInbox<WorkerPool.Command> workerPool = TestInbox.create("workerPool");
+        TestInbox<OrderBook.Command> book = TestInbox.create("orderBook");
+        TestInbox<Worker.Command> worker = TestInbox.create("worker");
+        BehaviorTestKit<ProductionLine.Command> productionLine = BehaviorTestKit.create(ProductionLine.create(
+                workerPool.getRef(), null, SETTINGS, clock, metrics, new SplittableRandom(1)));
+        productionLine.run(new ProductionLine.RegisterOrderBook(book.getRef()));
+        book.getAllReceived();
+
+        // Attempt 1 is called off while its items are installed
+        productionLine.run(new ProductionLine.StartProduction(1, 1, 0, null));
+        clock.advance(Duration.ofSeconds(11));
+        clock.deliver(productionLine);
+        workerPool.receiveMessage();
+        productionLine.run(new ProductionLine.SpecialItemsFetched(1, 1, worker.getRef()));
+        assertTrue(clock.scheduled(ProductionLine.SpecialRequestsInstalled.class));
+        productionLine.run(new ProductionLine.CancelProduction(1, 1));
+        book.getAllReceived();
+
+        // Handed out again to the same line, the installation of attempt 1 finishes meanwhile
+        productionLine.run(new ProductionLine.StartProduction(1, 2, 0, null));
+        assertTrue(book.receiveMessage() instanceof OrderBook.ProductionAccepted);
+        clock.deliver(productionLine);
+        assertFalse(book.hasMessages());
+
+        // So does a stray build of attempt 1, attempt 2 is still building
+        productionLine.run(new ProductionLine.BodyBuilt(1, 1));
+        assertFalse(workerPool.hasMessages());
+
+        // Attempt 2 is built, frees its body build slot and completes under its own attempt
+        clock.advance(Duration.ofSeconds(11));
+        clock.deliver(productionLine);
+        assertEquals(2, ((WorkerPool.Fetch) workerPool.receiveMessage()).attempt);
+        OrderBook.ProductionLineAvailable available = (OrderBook.ProductionLineAvailable) book.receiveMessage();
+        assertEquals(1, available.freeCapacity);
+        productionLine.run(new ProductionLine.SpecialItemsFetched(1, 2, worker.getRef()));
+        clock.deliver(productionLine);
+        OrderBook.OrderCompleted completed = (OrderBook.OrderCompleted) book.receiveMessage();
+        assertEquals(1, completed.orderNumber);
+        assertEquals(2, completed.attempt);
+        assertFalse(book.hasMessages());
+    }
+
+    private void expectStart(int orderNumber, int attempt) {
+        ProductionLine.StartProduction start = (ProductionLine.StartProduction) line.receiveMessage();
+        assertEquals(orderNumber, start.orderNumber);
+        assertEquals(attempt, start.attempt);
+        assertFalse(line.hasMessages());
+    }
+
+    private void expectCancel(int orderNumber, int attempt) {
+        ProductionLine.CancelProduction cancel = (ProductionLine.CancelProduction) line.receiveMessage();
+        assertEquals(orderNumber, cancel.orderNumber);
+        assertEquals(attempt, cancel.attempt);
+        assertFalse(line.hasMessages());
+    }
+
+    private void assertStatus(int pending, int inProduction) {
+        TestInbox<OrderBook.Status> replyTo = TestInbox.create("status");
+        orderBook.run(new OrderBook.GetStatus(replyTo.getRef()));
+        OrderBook.Status status = replyTo.receiveMessage();
+        assertEquals(pending, status.pending);
+        assertEquals(inProduction, status.inProduction);
+    }
+}
@@ -0,0 +1,94 @@
+package org.example;
+
+import org.junit.Test;
+
+import java.util.SplittableRandom;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OrderNumberSetTest {
+
+    @Test
+    public void consecutiveNumbersMergeIntoOneRun() {
+        OrderNumberSet set = new OrderNumberSet();
+        set.add(3);
+        set.add(1);
+        set.add(5);
+        assertEquals(3, set.runs());
+
+        set.add(2);
+        set.add(4);
+        assertEquals(1, set.runs());
+        assertEquals(1, set.first(0));
+        assertEquals(5, set.last(0));
+        assertFalse(set.contains(0));
+        assertTrue(set.contains(3));
+        assertFalse(set.contains(6));
+    }
+
+    @Test
+    public void rangeSpanningRunsJoinsThem() {
+        OrderNumberSet set = new OrderNumberSet();
+        set.add(1, 2);
+        set.add(5, 6);
+        set.add(9, 10);
+        set.add(20, 30);
+
+        set.add(4, 11);
+        assertEquals(3, set.runs());
+        assertEquals(4, set.first(1));
+        assertEquals(11, set.last(1));
+        assertTrue(set.contains(7));
+        assertFalse(set.contains(3));
+        assertFalse(set.contains(12));
+    }
+
+    @Test
+    public void veryLargeNumbersTakeOneRunEach() {
+        OrderNumberSet set = new OrderNumberSet();
+        set.add(Integer.MAX_VALUE);
+        set.add(0);
+        set.add(Integer.MIN_VALUE);
+        set.add(Integer.MAX_VALUE - 1);
+
+        assertEquals(3, set.runs());
+        assertEquals(Integer.MIN_VALUE, set.first(0));
+        assertEquals(Integer.MAX_VALUE - 1, set.first(2));
+        assertEquals(Integer.MAX_VALUE, set.last(2));
+        assertTrue(set.contains(Integer.MAX_VALUE));
+        assertTrue(set.contains(Integer.MIN_VALUE));
+        assertFalse(set.contains(Integer.MAX_VALUE - 2));
+        assertFalse(set.contains(Integer.MIN_VALUE + 1));
+    }
+
+    @Test
+    public void randomAddsMatchASortedSet() {
+        SplittableRandom random = new SplittableRandom(4);
+        OrderNumberSet set = new OrderNumberSet();
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int step = 0; step < 20_000; step++) {
+            int first = random.nextInt(5_000);
+            int last = first + (random.nextInt(10) == 0 ? random.nextInt(20) : 0);
+            set.add(first, last);
+            for (int n = first; n <= last; n++) {
+                expected.add(n);
+            }
+        }
+
+        for (int n = -1; n <= 5_100; n++) {
+            assertEquals("contains " + n, expected.contains(n), set.contains(n));
+        }
+        int numbers = 0;
+        for (int run = 0; run < set.runs(); run++) {
+            assertTrue(set.first(run) <= set.last(run));
+            if (run > 0) {
+                assertTrue(set.first(run) > set.last(run - 1) + 1);
+            }
+            numbers += set.last(run) - set.first(run) + 1;
+        }
+        assertEquals(expected.size(), numbers);
+    }
+}
@@ -0,0 +1,108 @@
+package org.example;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class OrderParserTest {
+
+    private final OrderParser parser = new OrderParser(16, ItemCatalog.of("a", "b", "c"));
+
+    @Test
+    public void parsesAllFields() {
+        OrderBook.AddOrders batch = parse("7,2,RUSH,1000,0;2\n8,3,BULK,2000\n9,1,,,1\n");
+
+        assertArrayEquals(new int[]{7, 8, 9}, batch.orderNumbers);
+        assertArrayEquals(new int[]{2, 3, 1}, batch.models);
+        assertArrayEquals(new int[]{OrderPriority.RUSH.ordinal(), OrderPriority.BULK.ordinal(),
+                OrderPriority.STANDARD.ordinal()}, batch.priorities);
+        assertArrayEquals(new long[]{1000, 2000, Long.MAX_VALUE}, batch.dueTimes);
+        assertArrayEquals(new int[]{0, 2, 2, 3}, batch.itemStarts);
+        assertArrayEquals(new int[]{0, 2, 1}, batch.items);
+        assertEquals(0, parser.rejectedLines());
+    }
+
+    @Test
+    public void acceptsCrlfCommentsAndEmptyLines() {
+        OrderBook.AddOrders batch = parse("# orders\r\n1,1,STANDARD,5\r\n\r\n\n2,1,RUSH,6,1\r\n");
+
+        assertArrayEquals(new int[]{1, 2}, batch.orderNumbers);
+        assertArrayEquals(new long[]{5, 6}, batch.dueTimes);
+        assertArrayEquals(new int[]{1}, batch.items);
+        assertEquals(0, parser.rejectedLines());
+    }
+
+    @Test
+    public void rejectsMalformedLines() {
+        OrderBook.AddOrders batch = parse(String.join("\n",
+                "1,1,STANDARD,5",
+                "x,1,STANDARD,5",
+                ",1,STANDARD,5",
+                "2,1,URGENT,5",
+                "3,1,STANDARD",
+                "5,1,STANDARD,5,3",
+                "6,1,STANDARD,5,1;1",
+                "7,1,STANDARD,5,1,2",
+                "8,1,STANDARD,-5",
+                "9,1,STANDARD,5 ",
+                "10,1,STANDARD,5"));
+
+        assertArrayEquals(new int[]{1, 10}, batch.orderNumbers);
+        assertEquals(9, parser.rejectedLines());
+    }
+
+    @Test
+    public void rejectsNumbersThatOverflow() {
+        OrderBook.AddOrders batch = parse(String.join("\n",
+                "2147483647,2147483647,STANDARD,9223372036854775807,2",
+                "2147483648,1,STANDARD,5",
+                "1,2147483648,STANDARD,5",
+                "1,1,STANDARD,9223372036854775808",
+                "1,1,STANDARD,99999999999999999999",
+                "1,1,STANDARD,5,4294967296",
+                "3,1,STANDARD,5\n"));
+
+        assertArrayEquals(new int[]{Integer.MAX_VALUE, 3}, batch.orderNumbers);
+        assertArrayEquals(new int[]{Integer.MAX_VALUE, 1}, batch.models);
+        assertArrayEquals(new long[]{Long.MAX_VALUE, 5}, batch.dueTimes);
+        assertEquals(5, parser.rejectedLines());
+    }
+
+    @Test
+    public void keepsAnIncompleteLastLineUntilTheEndOfInput() {
+        ByteBuffer in = ByteBuffer.wrap("1,1,STANDARD,5\n2,1,STAN".getBytes(StandardCharsets.US_ASCII));
+
+        parser.parse(in, false);
+        assertEquals(1, parser.size());
+        assertEquals(15, in.position());
+
+        ByteBuffer rest = ByteBuffer.wrap("2,1,STANDARD,6".getBytes(StandardCharsets.US_ASCII));
+        parser.parse(rest, true);
+        assertEquals(0, rest.remaining());
+        assertArrayEquals(new int[]{1, 2}, parser.drain().orderNumbers);
+    }
+
+    @Test
+    public void stopsAtTheLimit() {
+        ByteBuffer in = ByteBuffer.wrap("1,1,,\n2,1,,\n3,1,,\n".getBytes(StandardCharsets.US_ASCII));
+        parser.limit(2);
+
+        parser.parse(in, true);
+        assertEquals(true, parser.isFull());
+        assertArrayEquals(new int[]{1, 2}, parser.drain().orderNumbers);
+
+        parser.parse(in, true);
+        assertArrayEquals(new int[]{3}, parser.drain().orderNumbers);
+    }
+
+    private OrderBook.AddOrders parse(String lines) {
+        ByteBuffer in = ByteBuffer.wrap(lines.getBytes(StandardCharsets.US_ASCII));
+        parser.parse(in, true);
+        assertEquals(0, in.remaining());
+        return parser.drain();
+    }
+}
@@ -0,0 +1,185 @@
+package org.example;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OrderQueueTest {
+
+    @Test
+    public void ordersLeaveByDispatchKey() {
+        OrderQueue queue = new OrderQueue(4);
+        long[] keys = {50, 10, 40, 20, 30, 60, 0};
+        for (int order = 0; order < keys.length; order++) {
+            queue.offer(order, OrderPriority.STANDARD, Long.MAX_VALUE, keys[order]);
+        }
+
+        assertArrayEquals(new int[]{6, 1, 3, 4, 2, 0, 5}, pollAll(queue));
+    }
+
+    @Test
+    public void equalKeysLeaveInArrivalOrder() {
+        OrderQueue queue = new OrderQueue(4);
+        for (int order = 0; order < 20; order++) {
+            queue.offer(order, OrderPriority.STANDARD, Long.MAX_VALUE, order % 2 == 0 ? 7 : 3);
+        }
+
+        assertArrayEquals(new int[]{1, 3, 5, 7, 9, 11, 13, 15, 17, 19, 0, 2, 4, 6, 8, 10, 12, 14, 16, 18},
+                pollAll(queue));
+    }
+
+    @Test
+    public void peekReadsTheHead() {
+        OrderQueue queue = new OrderQueue(4);
+        queue.offer(1, OrderPriority.BULK, 900, 20);
+        queue.offer(2, OrderPriority.RUSH, 500, 10);
+
+        assertEquals(2, queue.peekOrderNumber());
+        assertEquals(OrderPriority.RUSH, queue.peekPriority());
+        assertEquals(500, queue.peekDueTime());
+        assertEquals(10, queue.peekKey());
+        queue.remove();
+        assertEquals(1, queue.peekOrderNumber());
+        assertEquals(OrderPriority.BULK, queue.peekPriority());
+    }
+
+    @Test
+    public void removeByOrderNumberKeepsTheOthersInOrder() {
+        OrderQueue queue = new OrderQueue(4);
+        for (int order = 0; order < 100; order++) {
+            queue.offer(order, OrderPriority.STANDARD, Long.MAX_VALUE, 1000 - order);
+        }
+
+        assertTrue(queue.remove(99));
+        assertTrue(queue.remove(0));
+        assertTrue(queue.remove(42));
+        assertFalse(queue.remove(42));
+        assertFalse(queue.contains(42));
+        assertTrue(queue.contains(43));
+        assertEquals(97, queue.size());
+
+        int[] polled = pollAll(queue);
+        assertEquals(97, polled.length);
+        for (int i = 1; i < polled.length; i++) {
+            assertTrue(polled[i] < polled[i - 1]);
+            assertTrue(polled[i] != 42);
+        }
+    }
+
+    @Test
+    public void removeVisitsTheRemovedOrder() {
+        OrderQueue queue = new OrderQueue(4);
+        queue.offer(5, OrderPriority.RUSH, 700, 3);
+        List<String> visited = new ArrayList<>();
+
+        queue.remove(5, (orderNumber, priority, dueTime, key) ->
+                visited.add(orderNumber + " " + priority + " " + dueTime + " " + key));
+
+        assertEquals(Arrays.asList("5 RUSH 700 3"), visited);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void peekFirstMatchesThePollOrder() {
+        SplittableRandom random = new SplittableRandom(1);
+        OrderQueue queue = new OrderQueue(16);
+        OrderQueue copy = new OrderQueue(16);
+        for (int order = 0; order < 500; order++) {
+            long key = random.nextInt(50);
+            queue.offer(order, OrderPriority.STANDARD, Long.MAX_VALUE, key);
+            copy.offer(order, OrderPriority.STANDARD, Long.MAX_VALUE, key);
+        }
+
+        int[] first = new int[32];
+        assertEquals(32, queue.peekFirst(first));
+        assertEquals(500, queue.size());
+        assertArrayEquals(Arrays.copyOf(pollAll(copy), 32), first);
+    }
+
+    @Test
+    public void peekFirstStopsAtTheSize() {
+        OrderQueue queue = new OrderQueue(4);
+        queue.offer(1, OrderPriority.STANDARD, Long.MAX_VALUE, 2);
+        queue.offer(2, OrderPriority.STANDARD, Long.MAX_VALUE, 1);
+
+        int[] first = new int[8];
+        assertEquals(2, queue.peekFirst(first));
+        assertEquals(2, first[0]);
+        assertEquals(1, first[1]);
+        assertEquals(0, new OrderQueue(4).peekFirst(first));
+    }
+
+    @Test
+    public void offeringInVisitOrderQueuesTheSame() {
+        SplittableRandom random = new SplittableRandom(2);
+        OrderQueue queue = new OrderQueue(8);
+        OrderQueue expected = new OrderQueue(8);
+        for (int order = 0; order < 300; order++) {
+            long key = random.nextInt(10);
+            queue.offer(order, OrderPriority.STANDARD, Long.MAX_VALUE, key);
+            expected.offer(order, OrderPriority.STANDARD, Long.MAX_VALUE, key);
+        }
+        for (int order = 0; order < 300; order += 7) {
+            queue.remove(order);
+            expected.remove(order);
+        }
+
+        OrderQueue replayed = new OrderQueue(8);
+        queue.forEachInOrder((orderNumber, priority, dueTime, key) ->
+                replayed.offer(orderNumber, priority, dueTime, key));
+
+        assertEquals(queue.size(), replayed.size());
+        assertArrayEquals(pollAll(expected), pollAll(replayed));
+    }
+
+    @Test
+    public void randomOffersRemovesAndPollsStayOrdered() {
+        SplittableRandom random = new SplittableRandom(3);
+        OrderQueue queue = new OrderQueue(4);
+        List<long[]> model = new ArrayList<>();
+        long sequence = 0;
+        int nextOrder = 0;
+        for (int step = 0; step < 20_000; step++) {
+            int action = random.nextInt(4);
+            if (action < 2 || model.isEmpty()) {
+                long key = random.nextInt(100);
+                queue.offer(nextOrder, OrderPriority.STANDARD, Long.MAX_VALUE, key);
+                model.add(new long[]{key, sequence++, nextOrder++});
+            } else if (action == 2) {
+                long[] head = model.stream().min(OrderQueueTest::compare).get();
+                model.remove(head);
+                assertEquals(head[2], queue.poll());
+            } else {
+                long[] removed = model.remove(random.nextInt(model.size()));
+                assertTrue(queue.remove((int) removed[2]));
+            }
+            assertEquals(model.size(), queue.size());
+        }
+        model.sort(OrderQueueTest::compare);
+        int[] polled = pollAll(queue);
+        for (int i = 0; i < polled.length; i++) {
+            assertEquals(model.get(i)[2], polled[i]);
+        }
+    }
+
+    private static int compare(long[] a, long[] b) {
+        return a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]);
+    }
+
+    private static int[] pollAll(OrderQueue queue) {
+        int[] polled = new int[queue.size()];
+        for (int i = 0; i < polled.length; i++) {
+            polled[i] = queue.poll();
+        }
+        assertTrue(queue.isEmpty());
+        return polled;
+    }
+}